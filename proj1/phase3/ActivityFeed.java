@@ -0,0 +1,386 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * This class maintains the materialized wall feed.  Every watch, like and
+ * rate is copied into feed_item once per follower of the acting user in
+ * the transaction that records it, so reading a wall is a single range
+ * scan on
+ * feed_item(owner_id, event_time).  Recently read walls are also kept in
+ * memory and updated as new items are fanned out.  Whether an actor shares
+ * a kind of activity is checked against Permissions, both when it is
+ * fanned out and again when a wall is read, so making an activity private
+ * also hides what was already shared.
+ *
+ */
+public class ActivityFeed {
+
+    public static final String WATCHED = "watched";
+    public static final String LIKED = "liked";
+    public static final String RATED = "rated";
+
+    /**
+     * One entry on a user's wall.
+     */
+    public static class Item {
+        public final long id;
+        public final String actor;
+        public final String title;
+        public final Timestamp time;
+        public final String kind;
+        public final int rating;
+
+        public Item(long id, String actor, String title, Timestamp time,
+                String kind, int rating) {
+            this.id = id;
+            this.actor = actor;
+            this.title = title;
+            this.time = time;
+            this.kind = kind;
+            this.rating = rating;
+        }
+    }
+
+    /**
+     * An item written to a wall, to be put on the cached wall once the
+     * transaction that wrote it has committed.
+     */
+    public static class Delivery {
+        public final String owner;
+        public final Item item;
+
+        public Delivery(String owner, Item item) {
+            this.owner = owner;
+            this.item = item;
+        }
+    }
+
+    /**
+     * One page of a wall, newest first.
+     */
+    public static class Page {
+        public final List<Item> items = new ArrayList<Item>();
+        // the last row read, shown or hidden; null once the wall ran out.
+        Item last = null;
+
+        /**
+        * @return the cursor to pass for the next page, or null if this page
+        *         was the last
+        */
+        public Item next() {
+            return this.last;
+        }
+    }
+
+    /*
+    ** a cached wall: the newest items first, whether they are all the
+    ** items of the wall, and when it was loaded.
+    */
+    private static class Wall {
+        final LinkedList<Item> items = new LinkedList<Item>();
+        boolean complete = false;
+        final long loadedAt = System.currentTimeMillis();
+    }
+
+    // one row per event from the arrays, joined to the actor's followers.
+    private static final String FAN_OUT_SQL =
+        "INSERT INTO feed_item(owner_id, actor_id, video_id, title, kind, "
+        + "rating, event_time) "
+        + "SELECT D.user_id_to, E.actor_id, B.video_id, B.title, E.kind, "
+        + "E.rating, E.event_time "
+        + "FROM unnest(?, ?, ?, ?, ?) "
+        + "AS E(actor_id, video_id, kind, rating, event_time), "
+        + "follow D, video B "
+        + "WHERE D.user_id_from=E.actor_id AND B.video_id=E.video_id "
+        + "RETURNING owner_id, actor_id, title, kind, rating, event_time, "
+        + "feed_id";
+
+    private final EmbeddedSQL _esql;
+    private final Permissions _permissions;
+    private final int _capacity;
+    private final long _ttl;
+    private final ConcurrentHashMap<String, Wall> _walls =
+        new ConcurrentHashMap<String, Wall>();
+
+    /**
+    * Creates a new feed on top of a database.
+    *
+    * @param esql the database the feed_item table lives in
+    * @param permissions who shares which kinds of activity
+    * @param capacity the number of items kept in memory per wall
+    * @param ttl milliseconds a cached wall is trusted before it is reloaded,
+    *        to pick up items written by other processes
+    */
+    public ActivityFeed(EmbeddedSQL esql, Permissions permissions,
+            int capacity, long ttl) {
+        this._esql = esql;
+        this._permissions = permissions;
+        this._capacity = capacity;
+        this._ttl = ttl;
+    }
+
+    /**
+    * Fans interactions out to the walls of everyone following their
+    * actors, inside the caller's transaction, with one INSERT ... SELECT
+    * over arrays of the events.  Events whose actor has made that kind of
+    * activity private are left out, and so are comments.  Cached walls are
+    * not touched until deliver() is given the result after the commit.
+    *
+    * @param conn the connection of the caller's transaction
+    * @param events the interactions to fan out
+    * @return the items written, for deliver()
+    * @throws java.sql.SQLException when the fan-out insert fails
+    */
+    public List<Delivery> fanOut(PooledConnection conn,
+            List<Interactions.Event> events) throws SQLException {
+        final List<Delivery> written = new ArrayList<Delivery>();
+        List<Interactions.Event> shared = new ArrayList<Interactions.Event>();
+        for(Interactions.Event event : events) {
+            if(!Interactions.COMMENTED.equals(event.kind)
+                    && this._permissions.isPublic(event.user,
+                        Permissions.of(event.kind))) {
+                shared.add(event);
+            }
+        }
+        if(shared.isEmpty()) {
+            return written;
+        }
+        String[] actors = new String[shared.size()];
+        Integer[] videos = new Integer[shared.size()];
+        String[] kinds = new String[shared.size()];
+        Integer[] ratings = new Integer[shared.size()];
+        Timestamp[] times = new Timestamp[shared.size()];
+        for(int i = 0; i < shared.size(); ++i) {
+            Interactions.Event event = shared.get(i);
+            actors[i] = event.user;
+            videos[i] = event.videoId;
+            kinds[i] = event.kind;
+            ratings[i] = event.rating;
+            times[i] = event.time;
+        }
+        Connection c = conn.getConnection();
+        this._esql.forEachRow(conn, FAN_OUT_SQL, 0, new RowHandler() {
+                public void row(ResultSet rs) throws SQLException {
+                    written.add(new Delivery(rs.getString(1), new Item(
+                        rs.getLong(7), rs.getString(2), rs.getString(3),
+                        rs.getTimestamp(6), rs.getString(4),
+                        rs.getInt(5))));
+                }
+            }, c.createArrayOf("varchar", actors),
+            c.createArrayOf("int4", videos),
+            c.createArrayOf("varchar", kinds),
+            c.createArrayOf("int4", ratings),
+            c.createArrayOf("timestamp", times));
+        return written;
+    }
+
+    /**
+    * Puts items on the cached walls of their owners once the transaction
+    * that wrote them has committed.
+    *
+    * @param deliveries what fanOut() returned
+    */
+    public void deliver(List<Delivery> deliveries) {
+        for(Delivery delivery : deliveries) {
+            insert(delivery.owner, delivery.item);
+        }
+    }
+
+    /**
+    * Returns the newest items on a user's wall, from memory when the wall
+    * was read recently.  Items whose actor has since made that kind of
+    * activity private are left out.
+    *
+    * @param owner the user whose wall is read
+    * @param limit the maximum number of items returned
+    * @return the items, newest first
+    * @throws java.sql.SQLException when the wall has to be loaded and fails
+    */
+    public List<Item> recent(String owner, int limit) throws SQLException {
+        return page(owner, null, limit).items;
+    }
+
+    /**
+    * Reads one page of a user's wall, newest first.  Pages are addressed by
+    * the (event_time, feed_id) of the last row seen, so deep pages cost the
+    * same as the first; pages within the cached wall come from memory.
+    * Items whose actor has since made that kind of activity private are
+    * left out.
+    *
+    * @param owner the user whose wall is read
+    * @param after the next() of the previous page, or null for the newest
+    * @param pageSize the maximum number of items returned
+    * @return the items of the page
+    * @throws java.sql.SQLException when the rows cannot be read
+    */
+    public Page page(String owner, Item after, int pageSize)
+            throws SQLException {
+        Page page = new Page();
+        Item cursor = after;
+        while(true) {
+            List<Item> rows = read(owner, cursor, pageSize);
+            int used = 0;
+            while(used < rows.size() && page.items.size() < pageSize) {
+                cursor = rows.get(used++);
+                if(this._permissions.isPublic(cursor.actor,
+                        Permissions.of(cursor.kind))) {
+                    page.items.add(cursor);
+                }
+            }
+            if(used == rows.size() && rows.size() < pageSize) {
+                return page;
+            }
+            if(page.items.size() == pageSize) {
+                page.last = cursor;
+                return page;
+            }
+        }
+    }
+
+    /**
+    * Drops a user's cached wall, e.g. after the user is deleted.
+    *
+    * @param owner the user whose wall is dropped
+    */
+    public void evict(String owner) {
+        this._walls.remove(owner);
+    }
+
+    private boolean expired(Wall wall) {
+        return System.currentTimeMillis() - wall.loadedAt > this._ttl;
+    }
+
+    /*
+    ** up to limit rows of the wall older than after, hidden ones included,
+    ** from the cached wall when it holds them.
+    */
+    private List<Item> read(String owner, Item after, int limit)
+            throws SQLException {
+        Wall wall = this._walls.get(owner);
+        if(after == null && (wall == null || expired(wall))
+                && limit <= this._capacity) {
+            wall = new Wall();
+            wall.items.addAll(query(owner, null, this._capacity));
+            wall.complete = wall.items.size() < this._capacity;
+            this._walls.put(owner, wall);
+        }
+        if(wall != null && !expired(wall)) {
+            synchronized(wall) {
+                int from = 0;
+                if(after != null) {
+                    from = -1;
+                    int i = 0;
+                    for(Item item : wall.items) {
+                        ++i;
+                        if(item.id == after.id) {
+                            from = i;
+                            break;
+                        }
+                    }
+                }
+                if(from >= 0 && (wall.complete
+                        || wall.items.size() - from >= limit)) {
+                    return new ArrayList<Item>(wall.items.subList(from,
+                        Math.min(wall.items.size(), from + limit)));
+                }
+            }
+        }
+        return query(owner, after, limit);
+    }
+
+    private List<Item> query(String owner, Item after, int limit)
+            throws SQLException {
+        final List<Item> items = new ArrayList<Item>();
+        RowHandler handler = new RowHandler() {
+            public void row(ResultSet rs) throws SQLException {
+                items.add(new Item(rs.getLong(1), rs.getString(2),
+                    rs.getString(3), rs.getTimestamp(4), rs.getString(5),
+                    rs.getInt(6)));
+            }
+        };
+        String select = "SELECT feed_id, actor_id, title, event_time, kind, "
+            + "rating FROM feed_item WHERE owner_id=? ";
+        String order = "ORDER BY event_time DESC, feed_id DESC LIMIT ?";
+        if(after == null) {
+            this._esql.forEachRow(select + order, handler, owner, limit);
+        } else {
+            this._esql.forEachRow(select
+                + "AND (event_time, feed_id) < (?, ?) " + order, handler,
+                owner, after.time, after.id, limit);
+        }
+        return items;
+    }
+
+    /*
+    ** caches a wall as if it had just been read: items newest first,
+    ** complete when they are every item of the wall.
+    */
+    void cache(String owner, List<Item> items, boolean complete) {
+        Wall wall = new Wall();
+        wall.items.addAll(items);
+        wall.complete = complete;
+        this._walls.put(owner, wall);
+    }
+
+    /*
+    ** puts a new item on the owner's wall, if the wall is cached.
+    */
+    void insert(String owner, Item item) {
+        Wall wall = this._walls.get(owner);
+        if(wall != null) {
+            synchronized(wall) {
+                insert(wall, item);
+            }
+        }
+    }
+
+    /*
+    ** puts a new item in its place on a cached wall; callers hold the
+    ** wall's lock.
+    */
+    private void insert(Wall wall, Item item) {
+        boolean placed = false;
+        ListIterator<Item> it = wall.items.listIterator();
+        while(it.hasNext() && !placed) {
+            Item next = it.next();
+            if(next.time.before(item.time) || (next.time.equals(item.time)
+                    && next.id < item.id)) {
+                it.previous();
+                it.add(item);
+                placed = true;
+            }
+        }
+        if(!placed) {
+            // older than everything cached; only a whole wall takes it
+            if(!wall.complete) {
+                return;
+            }
+            wall.items.addLast(item);
+        }
+        if(wall.items.size() > this._capacity) {
+            wall.items.removeLast();
+            wall.complete = false;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * This class is a Bloom filter over strings: a set that can answer
+ * "definitely not a member" with certainty and "maybe a member" with a
+ * chosen false positive rate, in a fixed number of bits.  Each key sets k
+ * bits picked by double hashing a 64-bit hash of its characters.  Members
+ * cannot be removed.  Adding and testing are lock-free and safe from any
+ * number of threads.
+ *
+ */
+public class BloomFilter {
+
+    private final long _bits;
+    private final int _hashes;
+    private final long _capacity;
+    private final AtomicLongArray _words;
+    private final AtomicLong _added = new AtomicLong();
+
+    /**
+    * Creates an empty filter sized for a number of keys.
+    *
+    * @param capacity the number of keys expected
+    * @param fpp the false positive rate wanted at that many keys
+    */
+    public BloomFilter(long capacity, double fpp) {
+        capacity = Math.max(1, capacity);
+        double ln2 = Math.log(2);
+        long bits = (long)Math.ceil(-capacity * Math.log(fpp) / (ln2 * ln2));
+        this._bits = Math.max(64, bits);
+        this._hashes = Math.max(1,
+            (int)Math.round((double)this._bits / capacity * ln2));
+        this._capacity = capacity;
+        this._words = new AtomicLongArray((int)((this._bits + 63) >>> 6));
+    }
+
+    /**
+    * Adds a key.
+    *
+    * @param key the key to add
+    */
+    public void add(String key) {
+        long hash = hash(key);
+        int h1 = (int)hash;
+        int h2 = (int)(hash >>> 32);
+        for(int i = 0; i < this._hashes; ++i) {
+            long bit = index(h1 + i * h2);
+            int word = (int)(bit >>> 6);
+            long mask = 1L << bit;
+            long old;
+            while(((old = this._words.get(word)) & mask) == 0) {
+                if(this._words.compareAndSet(word, old, old | mask)) {
+                    break;
+                }
+            }
+        }
+        this._added.incrementAndGet();
+    }
+
+    /**
+    * @param key the key to test
+    * @return false if the key was never added, true if it may have been
+    */
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        int h1 = (int)hash;
+        int h2 = (int)(hash >>> 32);
+        for(int i = 0; i < this._hashes; ++i) {
+            long bit = index(h1 + i * h2);
+            if((this._words.get((int)(bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+    * @return the number of keys the filter was sized for
+    */
+    public long getCapacity() {
+        return this._capacity;
+    }
+
+    /**
+    * @return the number of adds so far, counting repeats
+    */
+    public long getAdded() {
+        return this._added.get();
+    }
+
+    /**
+    * @return the size of the filter in bits
+    */
+    public long getBits() {
+        return this._bits;
+    }
+
+    private long index(int combined) {
+        return (combined & 0x7fffffffL) % this._bits;
+    }
+
+    /*
+    ** FNV-1a over the characters, then the murmur3 finalizer so both
+    ** halves of the hash are well mixed.
+    */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < key.length(); ++i) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.postgresql.PGConnection;
+
+
+/**
+ * This class loads the semicolon-delimited files in dataset/ from the
+ * client, replacing the server-side COPY in script/load_data.sql.  Each file
+ * is streamed to the server with COPY FROM STDIN, in the same format the
+ * script reads, one transaction per table, and tables that do not depend
+ * on each other load in parallel.  Foreign keys are respected by
+ * starting a table only after the tables it references have committed.
+ *
+ */
+public class BulkLoader {
+
+    /*
+    ** one step of the load: either a data file copied into a table or a
+    ** plain SQL statement, run after the steps named in deps.
+    */
+    private static class Step {
+        final String name;
+        final String[] deps;
+        final String file;
+        final String sql;
+
+        Step(String name, String[] deps, String file, String sql) {
+            this.name = name;
+            this.deps = deps;
+            this.file = file;
+            this.sql = sql;
+        }
+    }
+
+    private final EmbeddedSQL _esql;
+    private final File _dir;
+    private final int _threads;
+    private final Map<String, Step> _steps = new LinkedHashMap<String, Step>();
+
+    /**
+    * Creates a new loader for a dataset directory.
+    *
+    * @param esql the database to load into
+    * @param dir the directory holding the .data files
+    * @param threads the number of tables loaded at once
+    */
+    public BulkLoader(EmbeddedSQL esql, File dir, int threads) {
+        this._esql = esql;
+        this._dir = dir;
+        this._threads = threads;
+
+        table("users", "users.data", "users(user_id, password, first_name, "
+            + "last_name, e_mail, street1, state, country, zipcode, balance)");
+        table("video", "video.data",
+            "video(video_id, title, year, online_price, dvd_price)");
+        table("genre", "genre.data", "genre(genre_id, genre_name)");
+        table("director", "director.data",
+            "director(director_id, first_name, last_name)");
+        table("star", "stars.data", "star(star_id, first_name, last_name)");
+        table("author", "authors.data",
+            "author(author_id, first_name, last_name)");
+        table("super_user", "superusers.data", "super_user(super_user_id)",
+            "users");
+        table("follow", "followers.data",
+            "follow(user_id_to, user_id_from, follow_time)", "users");
+        table("categorize", "categorize.data",
+            "categorize(video_id, genre_id)", "video", "genre");
+        table("directed", "directed.data",
+            "directed(video_id, director_id)", "video", "director");
+        table("played", "played.data", "played(video_id, star_id)", "video",
+            "star");
+        table("written", "written.data", "written(video_id, author_id)",
+            "video", "author");
+        statement("permission",
+            "INSERT INTO permission(user_id) SELECT user_id FROM users",
+            "users");
+        // orders and comments are not loaded here, but may hold rows written
+        // before their keys came from the sequences
+        statement("sequences",
+            "SELECT " + setval("video", "video_id") + ", "
+            + setval("genre", "genre_id") + ", "
+            + setval("director", "director_id") + ", "
+            + setval("star", "star_id") + ", "
+            + setval("author", "author_id") + ", "
+            + setval("orders", "order_id") + ", "
+            + setval("comment", "comment_id"),
+            "video", "genre", "director", "star", "author");
+    }
+
+    /**
+    * Loads every table, printing rows/sec per table as each one commits.
+    *
+    * @throws Exception when any table fails to load; tables that depend
+    *         on it are not attempted
+    */
+    public void load() throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(this._threads);
+        Map<String, CompletableFuture<Void>> done =
+            new LinkedHashMap<String, CompletableFuture<Void>>();
+        long start = System.nanoTime();
+        try {
+            for(final Step step : this._steps.values()) {
+                List<CompletableFuture<Void>> deps =
+                    new ArrayList<CompletableFuture<Void>>();
+                for(String dep : step.deps) {
+                    deps.add(done.get(dep));
+                }
+                done.put(step.name, CompletableFuture
+                    .allOf(deps.toArray(new CompletableFuture<?>[0]))
+                    .thenRunAsync(new Runnable() {
+                        public void run() {
+                            try {
+                                execute(step);
+                            } catch(Exception e) {
+                                throw new RuntimeException(step.name + ": "
+                                    + e.getMessage(), e);
+                            }
+                        }
+                    }, workers));
+            }
+            CompletableFuture.allOf(done.values().toArray(
+                new CompletableFuture<?>[0])).get();
+        } catch(ExecutionException e) {
+            throw new SQLException("Load failed: "
+                + e.getCause().getMessage());
+        } finally {
+            workers.shutdown();
+        }
+        System.out.println("Loaded " + this._steps.size() + " steps in "
+            + ((System.nanoTime() - start) / 1000000) + "ms");
+    }
+
+    private void table(String name, String file, String target,
+            String... deps) {
+        this._steps.put(name, new Step(name, deps, file,
+            "COPY " + target + " FROM STDIN WITH DELIMITER ';'"));
+    }
+
+    /*
+    ** moves the SERIAL sequence of table.column so its next value is past
+    ** every id in the table, or 1 for an empty table.
+    */
+    private static String setval(String table, String column) {
+        return "setval('" + table + "_" + column + "_seq', coalesce((SELECT "
+            + "max(" + column + ") FROM " + table + "), 0) + 1, false)";
+    }
+
+    private void statement(String name, String sql, String... deps) {
+        this._steps.put(name, new Step(name, deps, null, sql));
+    }
+
+    private void execute(Step step) throws Exception {
+        long start = System.nanoTime();
+        long rows = 0;
+        PooledConnection conn = this._esql.getPool().borrow();
+        try {
+            Connection c = conn.getConnection();
+            c.setAutoCommit(false);
+            if(step.file == null) {
+                Statement stmt = c.createStatement();
+                stmt.execute(step.sql);
+                stmt.close();
+            } else {
+                rows = copy(conn, step);
+            }
+            c.commit();
+        } catch(Exception e) {
+            conn.markBroken();
+            throw e;
+        } finally {
+            this._esql.getPool().release(conn);
+        }
+        report(step.name, rows, System.nanoTime() - start);
+    }
+
+    private long copy(PooledConnection conn, Step step) throws Exception {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(new File(this._dir, step.file)), "UTF-8"));
+        try {
+            return conn.getConnection().unwrap(PGConnection.class)
+                .getCopyAPI().copyIn(step.sql, reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static synchronized void report(String name, long rows,
+            long nanos) {
+        double seconds = nanos / 1e9;
+        if(rows == 0) {
+            System.out.printf("%-12s done in %.3fs%n", name, seconds);
+        } else {
+            System.out.printf("%-12s %8d rows in %.3fs (%.0f rows/s)%n", name,
+                rows, seconds, rows / seconds);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * This class reads a user's cart (the orders table) and checks out several
+ * videos at once.  A page of the cart, with titles, prices and the cart
+ * total, comes back from one query; checkout charges the balance once for
+ * all items in the same transaction that inserts the orders.
+ *
+ */
+public class Cart {
+
+    /**
+     * One ordered video.
+     */
+    public static class Line {
+        public final long orderId;
+        public final String title;
+        public final int type;
+        public final int price;
+
+        public Line(long orderId, String title, int type, int price) {
+            this.orderId = orderId;
+            this.title = title;
+            this.type = type;
+            this.price = price;
+        }
+    }
+
+    /**
+     * One page of a cart together with totals over the whole cart.
+     */
+    public static class Page {
+        public final List<Line> lines = new ArrayList<Line>();
+        public int itemCount = 0;
+        public int total = 0;
+
+        /**
+        * @return the cursor to pass for the next page, or -1 if this page
+        *         was the last
+        */
+        public long next(int pageSize) {
+            if(this.lines.size() < pageSize) {
+                return -1;
+            }
+            return this.lines.get(this.lines.size() - 1).orderId;
+        }
+    }
+
+    /**
+     * A video to buy at checkout.
+     */
+    public static class Item {
+        public final int videoId;
+        public final int type;
+        public final int price;
+
+        public Item(int videoId, int type, int price) {
+            this.videoId = videoId;
+            this.type = type;
+            this.price = price;
+        }
+    }
+
+    // price of an order line, from its video_type.
+    private static final String PRICE =
+        "CASE WHEN A.video_type=1 THEN B.online_price ELSE B.dvd_price END";
+
+    private final EmbeddedSQL _esql;
+
+    public Cart(EmbeddedSQL esql) {
+        this._esql = esql;
+    }
+
+    /**
+    * Reads one page of a user's cart, oldest orders first.  Pages are
+    * addressed by the last order_id seen, so deep pages cost the same as
+    * the first.
+    *
+    * @param user the owner of the cart
+    * @param after the order_id the previous page ended on, or 0
+    * @param pageSize the maximum number of lines returned
+    * @return the lines of the page and the totals of the whole cart
+    * @throws java.sql.SQLException when the query fails
+    */
+    public Page page(String user, long after, int pageSize)
+            throws SQLException {
+        final Page page = new Page();
+        String query = "SELECT A.order_id, B.title, A.video_type, "
+            + PRICE + ", T.items, T.total "
+            + "FROM orders A, video B, (SELECT count(*) AS items, "
+            + "coalesce(sum(" + PRICE + "), 0) AS total "
+            + "FROM orders A, video B "
+            + "WHERE A.user_id=? AND A.video_id=B.video_id) T "
+            + "WHERE A.user_id=? AND A.video_id=B.video_id AND A.order_id>? "
+            + "ORDER BY A.order_id LIMIT ?";
+        this._esql.forEachRow(query, new RowHandler() {
+            public void row(ResultSet rs) throws SQLException {
+                page.lines.add(new Line(rs.getLong(1), rs.getString(2),
+                    rs.getInt(3), rs.getInt(4)));
+                page.itemCount = rs.getInt(5);
+                page.total = rs.getInt(6);
+            }
+        }, user, user, after, pageSize);
+        return page;
+    }
+
+    /**
+    * Buys several videos at once.  The balance is charged for the sum of
+    * their prices with one conditional update, and the orders are inserted
+    * in the same transaction, so either everything is bought or nothing.
+    *
+    * @param user the buyer
+    * @param items the videos to buy
+    * @return the amount charged, or -1 if the balance was too low
+    * @throws java.sql.SQLException when the transaction fails
+    */
+    public int checkout(final String user, final List<Item> items)
+            throws SQLException {
+        int sum = 0;
+        for(Item item : items) {
+            sum += item.price;
+        }
+        final int total = sum;
+        // reserve the keys first so the transaction holds one connection
+        final long[] orderIds = new long[items.size()];
+        for(int i = 0; i < orderIds.length; ++i) {
+            orderIds[i] = this._esql.nextId("orders_order_id_seq");
+        }
+        return this._esql.inTransaction(new Transaction<Integer>() {
+            public Integer run(PooledConnection conn) throws SQLException {
+                int charged = conn.prepare("UPDATE users "
+                    + "SET balance = balance - ? "
+                    + "WHERE user_id=? AND balance >= ?", total, user, total)
+                    .executeUpdate();
+                if(charged == 0) {
+                    return -1;
+                }
+                PreparedStatement stmt = conn.prepare(
+                    "INSERT INTO orders VALUES(?, ?, ?, ?)");
+                for(int i = 0; i < orderIds.length; ++i) {
+                    Item item = items.get(i);
+                    stmt.setLong(1, orderIds[i]);
+                    stmt.setInt(2, item.videoId);
+                    stmt.setString(3, user);
+                    stmt.setInt(4, item.type);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                return total;
+            }
+        });
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * This class defines a bounded pool of physical PostgreSQL connections.
+ * Connections are borrowed for the duration of a query and returned right
+ * after, so concurrent users share a small number of sockets.
+ *
+ */
+public class ConnectionPool {
+
+    // SQL used to check a connection that has been idle for a while.
+    private static final String VALIDATION_QUERY = "SELECT 1";
+
+    private final String _url;
+    private final String _user;
+    private final String _passwd;
+    private final int _minSize;
+    private final int _maxSize;
+    private final long _borrowTimeout;
+    private final long _idleTimeout;
+    private final long _validationInterval;
+    private final int _statementCacheSize;
+
+    // most recently returned connections sit at the head of the deque.
+    private final LinkedBlockingDeque<PooledConnection> _idle =
+        new LinkedBlockingDeque<PooledConnection>();
+    private final Semaphore _permits;
+    private final AtomicInteger _total = new AtomicInteger();
+    private final AtomicInteger _active = new AtomicInteger();
+    private final AtomicLong _borrows = new AtomicLong();
+    private final AtomicLong _timeouts = new AtomicLong();
+    private final AtomicLong _waitNanos = new AtomicLong();
+    private final AtomicLong _maxWaitNanos = new AtomicLong();
+    private final ScheduledExecutorService _evictor;
+    private volatile boolean _closed = false;
+
+    /**
+    * Creates a new pool and opens minSize connections up front.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize the number of connections kept open when idle
+    * @param maxSize the maximum number of connections open at once
+    * @param borrowTimeout milliseconds to wait for a free connection
+    * @param idleTimeout milliseconds before an idle connection is closed
+    * @param validationInterval milliseconds of idleness after which a
+    *        connection is validated before being handed out
+    * @throws java.sql.SQLException when the initial connections fail
+    */
+    public ConnectionPool(String url, String user, String passwd, int minSize,
+            int maxSize, long borrowTimeout, long idleTimeout,
+            long validationInterval) throws SQLException {
+        if(minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min="
+                + minSize + " max=" + maxSize);
+        }
+        this._url = url;
+        this._user = user;
+        this._passwd = passwd;
+        this._minSize = minSize;
+        this._maxSize = maxSize;
+        this._borrowTimeout = borrowTimeout;
+        this._idleTimeout = idleTimeout;
+        this._validationInterval = validationInterval;
+        this._statementCacheSize = StatementCache.DEFAULT_SIZE;
+        this._permits = new Semaphore(maxSize, true);
+
+        for(int i = 0; i < minSize; ++i) {
+            this._idle.addLast(open());
+        }
+
+        this._evictor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "pool-evictor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        long period = Math.max(1000, idleTimeout / 2);
+        this._evictor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    evictIdle();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+    * Borrows a connection, waiting up to the borrow timeout for one to be
+    * returned when the pool is at its maximum size.
+    *
+    * @return a validated connection that must be passed back to release
+    * @throws java.sql.SQLException when no connection became available
+    */
+    public PooledConnection borrow() throws SQLException {
+        if(this._closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long start = System.nanoTime();
+        try {
+            if(!this._permits.tryAcquire(this._borrowTimeout,
+                    TimeUnit.MILLISECONDS)) {
+                this._timeouts.incrementAndGet();
+                throw new SQLException("Timed out after " + this._borrowTimeout
+                    + "ms waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection");
+        }
+        recordWait(System.nanoTime() - start);
+
+        try {
+            PooledConnection conn;
+            while((conn = this._idle.pollFirst()) != null) {
+                if(validate(conn)) {
+                    break;
+                }
+                discard(conn);
+            }
+            if(conn == null) {
+                conn = open();
+            }
+            this._active.incrementAndGet();
+            this._borrows.incrementAndGet();
+            return conn;
+        } catch (SQLException e) {
+            this._permits.release();
+            throw e;
+        }
+    }
+
+    /**
+    * Returns a borrowed connection to the pool.  Connections left inside a
+    * transaction are rolled back; broken ones are closed.
+    *
+    * @param conn the connection obtained from borrow
+    */
+    public void release(PooledConnection conn) {
+        if(conn == null) {
+            return;
+        }
+        this._active.decrementAndGet();
+        try {
+            if(!conn.isBroken() && !conn.getConnection().getAutoCommit()) {
+                conn.getConnection().rollback();
+                conn.getConnection().setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            conn.markBroken();
+        }
+        if(this._closed || conn.isBroken()) {
+            discard(conn);
+        } else {
+            conn.touch();
+            this._idle.addFirst(conn);
+        }
+        this._permits.release();
+    }
+
+    /**
+    * Closes every idle connection and refuses further borrows.  Connections
+    * still borrowed are closed when they are released.
+    */
+    public void close() {
+        this._closed = true;
+        this._evictor.shutdownNow();
+        PooledConnection conn;
+        while((conn = this._idle.pollFirst()) != null) {
+            discard(conn);
+        }
+    }
+
+    /**
+    * @return the number of connections currently borrowed
+    */
+    public int getActiveCount() {
+        return this._active.get();
+    }
+
+    /**
+    * @return the number of open connections waiting in the pool
+    */
+    public int getIdleCount() {
+        return this._idle.size();
+    }
+
+    /**
+    * @return the number of open physical connections
+    */
+    public int getTotalCount() {
+        return this._total.get();
+    }
+
+    /**
+    * @return the maximum number of open connections
+    */
+    public int getMaxSize() {
+        return this._maxSize;
+    }
+
+    /**
+    * @return the number of successful borrows since startup
+    */
+    public long getBorrowCount() {
+        return this._borrows.get();
+    }
+
+    /**
+    * @return the number of borrows that gave up waiting
+    */
+    public long getTimeoutCount() {
+        return this._timeouts.get();
+    }
+
+    /**
+    * @return the total time spent waiting for connections, in milliseconds
+    */
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this._waitNanos.get());
+    }
+
+    /**
+    * @return the longest single wait for a connection, in milliseconds
+    */
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this._maxWaitNanos.get());
+    }
+
+    public String toString() {
+        return "active=" + getActiveCount() + " idle=" + getIdleCount()
+            + " total=" + getTotalCount() + " max=" + this._maxSize
+            + " borrows=" + getBorrowCount() + " timeouts=" + getTimeoutCount()
+            + " waitMs=" + getTotalWaitMillis()
+            + " maxWaitMs=" + getMaxWaitMillis();
+    }
+
+    private PooledConnection open() throws SQLException {
+        PooledConnection conn = new PooledConnection(
+            DriverManager.getConnection(this._url, this._user, this._passwd),
+            this._statementCacheSize);
+        this._total.incrementAndGet();
+        return conn;
+    }
+
+    private void discard(PooledConnection conn) {
+        this._total.decrementAndGet();
+        conn.close();
+    }
+
+    private boolean validate(PooledConnection conn) {
+        long idle = System.currentTimeMillis() - conn.getLastUsed();
+        if(idle < this._validationInterval) {
+            return true;
+        }
+        try {
+            ResultSet rs = conn.prepare(VALIDATION_QUERY).executeQuery();
+            rs.close();
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void recordWait(long nanos) {
+        this._waitNanos.addAndGet(nanos);
+        long max;
+        while(nanos > (max = this._maxWaitNanos.get())) {
+            if(this._maxWaitNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /*
+    ** closes connections idle past the idle timeout, oldest first, while
+    ** the pool is above its minimum size.
+    */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<PooledConnection> it = this._idle.descendingIterator();
+        while(it.hasNext() && this._total.get() > this._minSize) {
+            PooledConnection conn = it.next();
+            if(now - conn.getLastUsed() > this._idleTimeout
+                    && this._idle.removeLastOccurrence(conn)) {
+                discard(conn);
+            }
+        }
+    }
+}
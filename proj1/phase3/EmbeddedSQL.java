@@ -11,21 +11,24 @@
  */
 
 
-import java.sql.DriverManager;
-import java.sql.Connection;
 import java.sql.Statement;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetProvider;
 
 
 /**
@@ -35,17 +38,79 @@ import java.util.ArrayList;
  */
 public class EmbeddedSQL {
 
-    // reference to physical database connection.
-    private Connection _connection = null;
-    static String username = null;
-    static String password = null;
+    // pool of physical database connections, borrowed per query.
+    private ConnectionPool _pool = null;
+    // rows fetched per round trip by callers streaming whole tables.
+    private int _fetchSize = Integer.getInteger("movienet.fetchSize", 100);
+    // times inTransaction reruns work after a serialization failure.
+    static final int TRANSACTION_RETRIES = 3;
+    // template inTransaction is counted under in the query metrics.
+    static final String TRANSACTION = "BEGIN ... COMMIT";
+    // latency, error and row statistics of every query template.
+    private final QueryMetrics _metrics = new QueryMetrics();
+    // slow queries and their plans; null when no threshold is set.
+    private SlowQueryLog _slowLog = null;
+    // key allocators, one per sequence, created on first use.
+    private final ConcurrentHashMap<String, IdAllocator> _ids =
+        new ConcurrentHashMap<String, IdAllocator>();
+    // shared by every session; queries borrow connections from the pool.
     static EmbeddedSQL esql = null;
-    static String[][] sqlResult = null;
-
-    // handling the keyboard inputs through a BufferedReader
-    // This variable can be global for convenience.
-    static BufferedReader in = new BufferedReader(
-                            new InputStreamReader(System.in));
+    // who shares which kinds of activity, for feed visibility checks.
+    static Permissions permissions = null;
+    // materialized wall feed, written when users watch, like and rate.
+    static ActivityFeed feed = null;
+    // writes watch, like, rate and comment events.
+    static Interactions interactions = null;
+    // queues interaction events for group commit; null writes them inline.
+    static WriteBehindBuffer writeBehind = null;
+    // serves query metrics on localhost; null unless a port is set.
+    static MetricsServer metrics = null;
+    // in-memory copy of the video table for title, id and price lookups.
+    static VideoCatalog catalog = null;
+    // cart reads and multi-item checkout.
+    static Cart cart = null;
+    // which user_ids and video_ids may exist, to skip lookups of ones that
+    // certainly do not.
+    static IdFilter userIds = null;
+    static IdFilter videoIds = null;
+    // in-memory copy of the follow table for counts and suggestions.
+    static FollowGraph graph = null;
+    // per-user video recommendations, rebuilt in the background.
+    static Recommender recommender = null;
+    // what was watched, liked and rated most in the last hour, day and week.
+    static Trending trending = null;
+    // reads and verifies the rating aggregates kept on the video table.
+    static RatingAggregates ratings = null;
+    // number of cart lines shown per page by viewCart.
+    static final int CART_PAGE_SIZE =
+        Integer.getInteger("movienet.cart.pageSize", 10);
+    // number of items shown per page by seeUpdatesQuery.
+    static final int WALL_SIZE = Integer.getInteger("movienet.wall.size", 20);
+    // number of titles suggested when a title is not found.
+    static final int SUGGESTIONS =
+        Integer.getInteger("movienet.search.suggestions", 5);
+    // number of users suggested by followUserMenu.
+    static final int WHO_TO_FOLLOW =
+        Integer.getInteger("movienet.graph.suggestions", 5);
+    // number of videos shown by recommendedQuery.
+    static final int RECOMMENDATIONS =
+        Integer.getInteger("movienet.recommend.size", 10);
+    // number of videos shown by trendingMenu.
+    static final int TRENDING =
+        Integer.getInteger("movienet.trending.size", 10);
+    // trace span names of the menu choices, indexed by choice.
+    private static final String[] WALL_ACTIONS = { null, "seeUpdatesQuery",
+        "followUserMenu", "favoritesMenu", "permissionMenu", "balanceMenu" };
+    private static final String[] ORDER_ACTIONS = { null, "purchaseMovie",
+        "viewCart", "checkoutMenu" };
+    // permission bits of the permission menu choices, indexed by choice.
+    private static final int[] PERMISSIONS = { 0, Permissions.LIKES,
+        Permissions.RATE, Permissions.WATCH, Permissions.PLAYLISTS };
+    private static final String[] SU_ACTIONS = { null, "deleteUser",
+        "deleteMovie", "buildMovie", "trendingMenu" };
+    // trending windows of the trending menu choices, indexed by choice.
+    private static final int[] WINDOWS = { 0, Trending.HOUR, Trending.DAY,
+        Trending.WEEK };
 
     /**
     * Creates a new instance of EmbeddedSQL
@@ -65,8 +130,28 @@ public class EmbeddedSQL {
             String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
             System.out.println ("Connection URL: " + url + "\n");
 
-            // obtain a physical connection
-            this._connection = DriverManager.getConnection(url, user, passwd);
+            // open the connection pool; sizes can be tuned with -D options
+            this._pool = new ConnectionPool(url, user, passwd,
+                    Integer.getInteger("movienet.pool.min", 1),
+                    Integer.getInteger("movienet.pool.max", 8),
+                    Long.getLong("movienet.pool.borrowTimeout", 5000L),
+                    Long.getLong("movienet.pool.idleTimeout", 60000L),
+                    Long.getLong("movienet.pool.validationInterval", 5000L));
+
+            // log queries slower than movienet.slowQuery.ms, if set
+            long slowMillis = Long.getLong("movienet.slowQuery.ms", 0L);
+            if(slowMillis > 0) {
+                this._slowLog = new SlowQueryLog(url, user, passwd,
+                    slowMillis,
+                    System.getProperty("movienet.slowQuery.log",
+                        "movienet-slow.%g.log"),
+                    Integer.getInteger("movienet.slowQuery.logSize",
+                        10 << 20),
+                    Integer.getInteger("movienet.slowQuery.logCount", 5),
+                    Long.getLong("movienet.slowQuery.explainInterval",
+                        60000L));
+                this._metrics.setSlowLog (this._slowLog);
+            }
             System.out.println("Done");
         } catch (Exception e) {
             System.err.println("Error - Unable to Connect to Database: " + 
@@ -84,106 +169,393 @@ public class EmbeddedSQL {
     * @throws java.sql.SQLException when update failed
     */
     public void executeUpdate (String sql) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement ();
+        QueryMetrics.Timer timer = this._metrics.startLiteral (sql);
+        PooledConnection conn = null;
+        try {
+            conn = this._pool.borrow ();
+            // creates a statement object
+            Statement stmt = conn.getConnection().createStatement ();
 
-        // issues the update instruction
-        stmt.executeUpdate (sql);
+            // issues the update instruction
+            timer.ok (stmt.executeUpdate (sql));
 
-        // close the instruction
-        stmt.close ();
+            // close the instruction
+            stmt.close ();
+        } finally {
+            this._pool.release (conn);
+            timer.stop ();
+        }
+    }
+
+    /**
+    * Method to execute a parameterized update SQL statement.  The statement
+    * is prepared once per template and reused from the statement cache.
+    *
+    * @param sql the SQL template using '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+    public int executeUpdate (String sql, Object... params)
+            throws SQLException {
+        QueryMetrics.Timer timer = this._metrics.start (sql, params);
+        PooledConnection conn = null;
+        try {
+            conn = this._pool.borrow ();
+            return timer.ok (conn.prepare(sql, params).executeUpdate ());
+        } finally {
+            this._pool.release (conn);
+            timer.stop ();
+        }
     }
 
     /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
-    * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * method issues the query to the DBMS and counts the rows returned.
     *
     * @param query the input query string
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
     public int executeQuery (String query) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement ();
-
-        // issues the query instruction
-        ResultSet rs = stmt.executeQuery (query);
-
-        /*
-        ** obtains the metadata object for the returned result set.  The metadata
-        ** contains row and column info.
-        */
-        ResultSetMetaData rsmd = rs.getMetaData ();
-        int numCol = rsmd.getColumnCount ();
-        int rowCount = 0;
-        sqlResult = new String[10][numCol];
-
-        // iterates through the result set and output them to standard out.
-//         boolean outputHeader = true;
-        while (rs.next()) {
-//             if(outputHeader) {
-//                 for(int i = 1; i <= numCol; i++) {
-//                 System.out.print(rsmd.getColumnName(i) + "\t");
-//                 }
-//                 System.out.println();
-//                 outputHeader = false;
-//             }
-            for(int i = 1; i <= numCol; ++i) {
-                sqlResult[rowCount][i - 1] = rs.getString(i);
-//                  System.out.print(rs.getString (i) + "\t");
-            }
-//             System.out.println();
-            ++rowCount;
-        }//end while
-        stmt.close ();
-        return rowCount;
+        QueryMetrics.Timer timer = this._metrics.startLiteral (query);
+        PooledConnection conn = null;
+        try {
+            conn = this._pool.borrow ();
+            // creates a statement object
+            Statement stmt = conn.getConnection().createStatement ();
+
+            // issues the query instruction
+            ResultSet rs = stmt.executeQuery (query);
+            int rowCount = 0;
+            while (rs.next()) {
+                ++rowCount;
+            }
+            stmt.close ();
+            return timer.ok (rowCount);
+        } finally {
+            this._pool.release (conn);
+            timer.stop ();
+        }
     }
 
-    public ResultSet getResultSet (String query) throws SQLException {
-        // creates a statement object
-        Statement stmt = this._connection.createStatement ();
+    /**
+    * Method to execute a parameterized query and count the rows returned.
+    *
+    * @param query the SQL template using '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+    public int executeQuery (String query, Object... params)
+            throws SQLException {
+        return forEachRow (query, null, params);
+    }
 
-        // issues the query instruction
-        ResultSet rs = stmt.executeQuery (query);
-        return rs;
+    /**
+    * Method to execute a parameterized query and hand its rows to a
+    * handler.  The query runs in autocommit mode and the driver reads
+    * every row in the same round trip, so this is meant for lookups and
+    * other small results; pass a fetch size for results that may be large.
+    *
+    * @param query the SQL template using '?' placeholders
+    * @param handler called once per row, or null to only count rows
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+    public int forEachRow (String query, RowHandler handler, Object... params)
+            throws SQLException {
+        QueryMetrics.Timer timer = this._metrics.start (query, params);
+        PooledConnection conn = null;
+        try {
+            conn = this._pool.borrow ();
+            return timer.ok (forEachRow (conn, query, 0, handler, params));
+        } finally {
+            this._pool.release (conn);
+            timer.stop ();
+        }
     }
 
+    /**
+    * Method to execute a parameterized query and stream its rows to a
+    * handler.  The query runs inside a transaction so the driver can fetch
+    * rows through a cursor, fetchSize rows per round trip, and memory use
+    * stays constant however many rows there are.
+    *
+    * @param query the SQL template using '?' placeholders
+    * @param fetchSize the number of rows fetched per round trip
+    * @param handler called once per row, or null to only count rows
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+    public int forEachRow (String query, int fetchSize, RowHandler handler,
+            Object... params) throws SQLException {
+        QueryMetrics.Timer timer = this._metrics.start (query, params);
+        PooledConnection conn = null;
+        try {
+            conn = this._pool.borrow ();
+            conn.getConnection().setAutoCommit (false);
+            int rowCount = forEachRow (conn, query, fetchSize, handler,
+                params);
+            conn.getConnection().commit ();
+            return timer.ok (rowCount);
+        } finally {
+            this._pool.release (conn);
+            timer.stop ();
+        }
+    }
 
     /**
-    * Method to close the physical connection if it is open.
+    * Method to stream the rows of a parameterized query on a connection
+    * the caller already holds, e.g. inside inTransaction so that several
+    * queries read the same snapshot.  The connection must not be in
+    * autocommit mode, or the driver ignores fetchSize and reads every row
+    * at once.
+    *
+    * @param conn the connection of the caller's transaction
+    * @param query the SQL template using '?' placeholders
+    * @param fetchSize the number of rows fetched per round trip
+    * @param handler called once per row, or null to only count rows
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
     */
-    public void cleanup(){
+    public int forEachRow (PooledConnection conn, String query,
+            int fetchSize, RowHandler handler, Object... params)
+            throws SQLException {
+        PreparedStatement stmt = conn.prepare (query, params);
+        stmt.setFetchSize (fetchSize);
+        try {
+            ResultSet rs = stmt.executeQuery ();
+            int rowCount = 0;
+            try {
+                while (rs.next()) {
+                    if(handler != null) {
+                        handler.row (rs);
+                    }
+                    ++rowCount;
+                }
+            } finally {
+                rs.close ();
+            }
+            return rowCount;
+        } finally {
+            // the statement is cached and reused by other callers
+            stmt.setFetchSize (0);
+        }
+    }
+
+    /**
+    * Method to execute a query and hand back its rows.  The rows are copied
+    * into a disconnected result set so the connection can go straight back
+    * to the pool; use forEachRow for results that may be large.
+    *
+    * @param query the input query string
+    * @return the rows of the query
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+    public ResultSet getResultSet (String query) throws SQLException {
+        QueryMetrics.Timer timer = this._metrics.startLiteral (query);
+        PooledConnection conn = null;
+        try {
+            conn = this._pool.borrow ();
+            // creates a statement object
+            Statement stmt = conn.getConnection().createStatement ();
+
+            // issues the query instruction
+            ResultSet rs = stmt.executeQuery (query);
+            CachedRowSet rows =
+                RowSetProvider.newFactory().createCachedRowSet();
+            rows.populate (rs);
+            stmt.close ();
+            timer.ok (rows.size ());
+            return rows;
+        } finally {
+            this._pool.release (conn);
+            timer.stop ();
+        }
+    }
+
+    /**
+    * Method to execute a parameterized query and hand back its rows in a
+    * disconnected result set.
+    *
+    * @param query the SQL template using '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the rows of the query
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+    public ResultSet getResultSet (String query, Object... params)
+            throws SQLException {
+        QueryMetrics.Timer timer = this._metrics.start (query, params);
+        PooledConnection conn = null;
         try {
-            if(this._connection != null) {
-                this._connection.close ();
+            conn = this._pool.borrow ();
+            ResultSet rs = conn.prepare(query, params).executeQuery ();
+            CachedRowSet rows =
+                RowSetProvider.newFactory().createCachedRowSet();
+            rows.populate (rs);
+            rs.close ();
+            timer.ok (rows.size ());
+            return rows;
+        } finally {
+            this._pool.release (conn);
+            timer.stop ();
+        }
+    }
+
+    /**
+    * Method to get the next key from a SERIAL sequence.  Keys are reserved
+    * from the database in blocks and handed out from memory.
+    *
+    * @param sequence the sequence name, e.g. orders_order_id_seq
+    * @return an unused key
+    * @throws java.sql.SQLException when a new block cannot be reserved
+    */
+    public long nextId (String sequence) throws SQLException {
+        IdAllocator ids = this._ids.get (sequence);
+        if(ids == null) {
+            IdAllocator created = new IdAllocator (this, sequence,
+                Integer.getInteger("movienet.id.block", 32));
+            ids = this._ids.putIfAbsent (sequence, created);
+            if(ids == null) {
+                ids = created;
             }
-        } catch (SQLException e) {
+        }
+        return ids.next ();
+    }
+
+    /**
+    * Method to run several statements as one transaction on a single
+    * pooled connection.  The transaction commits when work returns and
+    * rolls back when it throws.  Work that fails with a serialization
+    * failure or deadlock is run again, up to TRANSACTION_RETRIES times,
+    * so it must not have side effects outside the database.
+    *
+    * @param work the statements to run
+    * @return whatever work returned
+    * @throws java.sql.SQLException when the work or the commit fails
+    */
+    public <T> T inTransaction (Transaction<T> work) throws SQLException {
+        for(int attempt = 1; ; ++attempt) {
+            // statements inside the work are timed as one transaction
+            QueryMetrics.Timer timer = this._metrics.start (TRANSACTION);
+            PooledConnection conn = null;
+            try {
+                conn = this._pool.borrow ();
+                conn.getConnection().setAutoCommit (false);
+                T result = work.run (conn);
+                conn.getConnection().commit ();
+                timer.ok (0);
+                return result;
+            } catch (SQLException e) {
+                if(attempt > TRANSACTION_RETRIES || !isRetryable (e)) {
+                    throw e;
+                }
+            } finally {
+                this._pool.release (conn);
+                timer.stop ();
+            }
+            try {
+                // back off a little more on every retry
+                Thread.sleep ((long) (Math.random () * 10 * attempt));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt ();
+                throw new SQLException ("Interrupted retrying transaction");
+            }
+        }
+    }
+
+    /*
+    ** serialization_failure and deadlock_detected can succeed when rerun.
+    */
+    private static boolean isRetryable (SQLException e) {
+        String state = e.getSQLState ();
+        return "40001".equals (state) || "40P01".equals (state);
+    }
+
+    /**
+    * @return the connection pool, for its statistics
+    */
+    public ConnectionPool getPool () {
+        return this._pool;
+    }
+
+    /**
+    * @return the rows per round trip for results that may be large
+    */
+    public int getFetchSize () {
+        return this._fetchSize;
+    }
+
+    /**
+    * @return the per query template statistics
+    */
+    public QueryMetrics getMetrics () {
+        return this._metrics;
+    }
+
+
+    /**
+    * Method to close the pooled physical connections.
+    */
+    public void cleanup(){
+        if(this._slowLog != null) {
+            this._metrics.setSlowLog (null);
+            this._slowLog.close ();
+        }
+        if(this._pool != null) {
+            this._pool.close ();
         }
     }
 
     public static int checkProgramInput (String[] args) {
-        if(args.length != 4) {
+        if(args.length != 4 && args.length != 5 && !(args.length == 6
+                && args[4].equals("--load"))) {
             System.err.println (
                 "Usage: " + "java [-classpath <classpath>] " +
                 EmbeddedSQL.class.getName () + 
-                " <dbname> <port> <user> <passwd>");
+                " <dbname> <port> <user> <passwd>" +
+                " [<listen port> | --load <dataset dir>]");
             return -1;
         }
         return 0;
     }
 
+    /**
+    * @return the session served by the calling thread
+    */
+    static Session session () {
+        return Session.current ();
+    }
+
+    /**
+    * Logs a failed query and counts it against the current session, if
+    * there is one.
+    *
+    * @param e the failure
+    */
+    static void reportError (Exception e) {
+        System.err.println (e.getMessage ());
+        Session session = Session.peek ();
+        if(session != null) {
+            session.errors++;
+        }
+    }
+
     /**
     * The main execution method
     *
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+    *             and, for server mode, the local port to listen on
     */
     public static void main (String[] args) {
         if(checkProgramInput(args) == -1) {
             return;
         }
 
-        Greeting();
         try {
             // use postgres JDBC driver.
             Class.forName("org.postgresql.Driver").newInstance();
@@ -194,24 +566,69 @@ public class EmbeddedSQL {
             String user = args[2];
             String passwd = args[3];
             esql = new EmbeddedSQL (dbname, dbport, user, passwd);
-
-            int initialMenuChoice = initialMenu();
-            if(initialMenuChoice == 1) {
-                loginMenu();
-            } else if(initialMenuChoice == 2) {
-                registerMenu();
+            if(args.length == 6) {
+                // the loader only needs the pool; the services below would
+                // read the tables it is about to fill
+                new BulkLoader(esql, new File(args[5]),
+                    Math.min(esql.getPool().getMaxSize(),
+                        Integer.getInteger("movienet.load.threads", 4)))
+                    .load();
+                return;
             }
-            
-            while(true) {
-                int userMenuChoice = userMenu();
-                if(userMenuChoice == 1) {
-                    wallMenu();
-                } else if(userMenuChoice == 2) {
-                    watchOnlineMenu();
-                } else if(userMenuChoice == 3) {
-                    orderMenu();
-                } else if(userMenuChoice == 4) {
-                    break;
+            esql.getMetrics().register ();
+            int metricsPort = Integer.getInteger("movienet.metrics.port", 0);
+            if(metricsPort > 0) {
+                metrics = new MetricsServer (esql, metricsPort);
+            }
+            permissions = new Permissions (esql);
+            feed = new ActivityFeed (esql, permissions, 50,
+                Long.getLong("movienet.feed.ttl", 30000L));
+            catalog = new VideoCatalog (esql,
+                Long.getLong("movienet.catalog.refresh", 60000L));
+            cart = new Cart (esql);
+            double fpp = Double.parseDouble(
+                System.getProperty("movienet.filter.fpp", "0.01"));
+            long filterRefresh = Long.getLong("movienet.filter.refresh",
+                600000L);
+            userIds = new IdFilter (esql, "users",
+                "SELECT user_id FROM users", fpp, filterRefresh);
+            videoIds = new IdFilter (esql, "video",
+                "SELECT video_id FROM video", fpp, filterRefresh);
+            graph = new FollowGraph (esql,
+                Long.getLong("movienet.graph.refresh", 600000L));
+            recommender = new Recommender (esql, RECOMMENDATIONS,
+                Double.parseDouble(
+                    System.getProperty("movienet.recommend.blend", "0.7")),
+                Integer.getInteger("movienet.recommend.threads",
+                    Runtime.getRuntime().availableProcessors()),
+                Long.getLong("movienet.recommend.rebuild", 86400000L));
+            ratings = new RatingAggregates (esql,
+                Math.min(esql.getPool().getMaxSize(),
+                    Integer.getInteger("movienet.ratings.threads", 4)),
+                Long.getLong("movienet.ratings.verify", 86400000L));
+            trending = new Trending (esql, TRENDING,
+                Long.getLong("movienet.trending.publish", 10000L));
+            interactions = new Interactions (esql, feed, trending);
+            if(Boolean.getBoolean("movienet.writeBehind")) {
+                writeBehind = new WriteBehindBuffer (interactions,
+                    new File(System.getProperty("movienet.writeBehind.spill",
+                        "movienet-events.spill")),
+                    Integer.getInteger("movienet.writeBehind.capacity", 10000),
+                    Integer.getInteger("movienet.writeBehind.flushSize", 500),
+                    Long.getLong("movienet.writeBehind.flushInterval", 200L),
+                    Long.getLong("movienet.writeBehind.offerTimeout", 1000L),
+                    !"false".equals(
+                        System.getProperty("movienet.writeBehind.fsync")));
+            }
+
+            if(args.length == 5) {
+                new MovieNetServer(Integer.parseInt(args[4])).serve();
+            } else {
+                Session.attach(new Session(new BufferedReader(
+                    new InputStreamReader(System.in)), System.out));
+                try {
+                    runSession();
+                } catch(Session.ClosedError e) {
                 }
             }
 
@@ -219,6 +636,33 @@ public class EmbeddedSQL {
             System.err.println (e.getMessage ());
         } finally {
             try{
+                if(writeBehind != null) {
+                    writeBehind.close ();
+                }
+                if(trending != null) {
+                    trending.close ();
+                }
+                if(ratings != null) {
+                    ratings.close ();
+                }
+                if(recommender != null) {
+                    recommender.close ();
+                }
+                if(catalog != null) {
+                    catalog.close ();
+                }
+                if(graph != null) {
+                    graph.close ();
+                }
+                if(userIds != null) {
+                    userIds.close ();
+                }
+                if(videoIds != null) {
+                    videoIds.close ();
+                }
+                if(metrics != null) {
+                    metrics.close ();
+                }
                 if(esql != null) {
                     System.out.print("Disconnecting from database...");
                     esql.cleanup ();
@@ -229,11 +673,67 @@ public class EmbeddedSQL {
         }
     }
    
+    /**
+      * Function that runs the menus for the session bound to the calling
+      * thread, from the initial login/register prompt until the user exits.
+      */
+    public static void runSession() {
+        Greeting();
+        int initialMenuChoice = initialMenu();
+        Tracer.Span span = Tracer.begin(
+            initialMenuChoice == 1 ? "loginMenu" : "registerMenu");
+        try {
+            if(initialMenuChoice == 1) {
+                loginMenu();
+            } else if(initialMenuChoice == 2) {
+                registerMenu();
+            }
+        } finally {
+            span.end();
+        }
+        // outside the login span, so the super user actions get their own
+        if(initialMenuChoice == 1 && SUCheck() > 0) {
+            SUMenu();
+        }
+
+        while(true) {
+            int userMenuChoice = userMenu();
+            if(userMenuChoice == 1) {
+                wallMenu();
+            } else if(userMenuChoice == 2) {
+                span = Tracer.begin("watchOnlineMenu");
+                try {
+                    watchOnlineMenu();
+                } finally {
+                    span.end();
+                }
+            } else if(userMenuChoice == 3) {
+                orderMenu();
+            } else if(userMenuChoice == 4) {
+                span = Tracer.begin("recommendedQuery");
+                try {
+                    recommendedQuery();
+                } finally {
+                    span.end();
+                }
+            } else if(userMenuChoice == 5) {
+                span = Tracer.begin("trendingMenu");
+                try {
+                    trendingMenu();
+                } finally {
+                    span.end();
+                }
+            } else if(userMenuChoice == 6) {
+                break;
+            }
+        }
+    }
+
     /**
       * Function that holds Greeting.
       */
     public static void Greeting() {
-        System.out.println(
+        session().out.println(
             "\n\n*******************************************************\n" +
             "                          Welcome      	               \n" +
             "*******************************************************\n");
@@ -245,19 +745,19 @@ public class EmbeddedSQL {
       */
     public static int initialMenu() {
         while(true) {
-            System.out.print(
+            session().out.print(
                 "\n1) Login" +
                 "\t2) Register: ");
             int choice = 0;
             try {
-                choice = Integer.parseInt(in.readLine());
+                choice = Integer.parseInt(session().readLine());
             } catch (Exception e) {
             }
 
             if((choice == 1) || (choice == 2)) {
                 return choice;
             } else {
-                System.out.println("Your input is invalid!");
+                session().out.println("Your input is invalid!");
             }
         }
     }
@@ -269,15 +769,14 @@ public class EmbeddedSQL {
         boolean keepon = true;
         while(keepon) {
             try {
-                System.out.print("\nUsername: ");
-                username = in.readLine(); 
-                System.out.print("Password: ");
-                password = in.readLine();
-                SUCheck();
+                session().out.print("\nUsername: ");
+                session().username = session().readLine(); 
+                session().out.print("Password: ");
+                session().password = session().readLine();
                 if(loginQuery() > 0) {
                     keepon = false;
                 } else {
-                    System.out.println("Your input is invalid!");
+                    session().out.println("Your input is invalid!");
                 }
             } catch (Exception e) {
             }
@@ -290,27 +789,27 @@ public class EmbeddedSQL {
       */
     public static int loginQuery() {
         try {
-            String query = "SELECT * FROM users WHERE user_id='";
-                        query += username + "' AND ";
-            query += "password='" + password + "';";
-            int rowCount = esql.executeQuery(query);
+            String query = "SELECT * FROM users WHERE user_id=? "
+                + "AND password=?";
+            int rowCount = esql.executeQuery(query, session().username,
+                session().password);
             return rowCount;
         } catch(Exception e) {
-            System.err.println(e.getMessage());
+            reportError(e);
         }
         return 0;
     }
 
+    /**
+      * Function that checks whether the logged in user is a super user.
+      * @return int returns 1 for a super user, 0 otherwise.
+      */
     public static int SUCheck() {
         try {
-            String query = "SELECT * FROM super_user WHERE super_user_id='"
-                         + username + "';";
-            int rowCount = esql.executeQuery(query);
-            if (rowCount > 0) {
-                SUMenu();
-            }
+            String query = "SELECT * FROM super_user WHERE super_user_id=?";
+            return esql.executeQuery(query, session().username);
         } catch(Exception e) {
-            System.err.println(e.getMessage());
+            reportError(e);
         }
         return 0;
     }
@@ -319,27 +818,36 @@ public class EmbeddedSQL {
         try{
             boolean exit = false;
             while(exit == false) {
-                System.out.print("\n--Super User Access--" +
+                session().out.print("\n--Super User Access--" +
                 "\n1) Delete User" +
                 "   2) Delete Movie" +
                 "   3) Add Movie" +
-                "   4) User Menu: ");
+                "   4) Trending" +
+                "   5) User Menu: ");
                 int choice = 0;
-                choice = Integer.parseInt(in.readLine());
-                switch (choice) {
-                case 1: deleteUser();
-                    break;
-                case 2: deleteMovie();
-                    break;
-                case 3: buildMovie();
-                    break;
-                case 4: exit = true;
-                    break;
-                default: System.out.println("Your input is invalid!");
+                choice = Integer.parseInt(session().readLine());
+                Tracer.Span span = Tracer.begin(choice >= 1 && choice <= 4
+                    ? SU_ACTIONS[choice] : null);
+                try {
+                    switch (choice) {
+                    case 1: deleteUser();
+                        break;
+                    case 2: deleteMovie();
+                        break;
+                    case 3: buildMovie();
+                        break;
+                    case 4: trendingMenu();
+                        break;
+                    case 5: exit = true;
+                        break;
+                    default: session().out.println("Your input is invalid!");
+                    }
+                } finally {
+                    span.end();
                 }
             }
         } catch(Exception e) {
-            System.err.println(e.getMessage());
+            reportError(e);
         }
     }
 
@@ -347,29 +855,33 @@ public class EmbeddedSQL {
         try{
             boolean exit = false;
             while(exit == false) {
-                System.out.print("\tEnter a User ID: ");
-                String delete = in.readLine();
+                session().out.print("\tEnter a User ID: ");
+                String delete = session().readLine();
                 if(checkUserQuery(delete) == 0) {
-                    System.out.println("Your input is invalid!");
+                    session().out.println("Your input is invalid!");
                 } else {
                     clearUser(delete);
-                    String query = "DELETE FROM users WHERE user_id='"
-                            + delete + "';";
-                    esql.executeQuery(query);
+                    feed.evict(delete);
+                    ratings.removeUser(delete);
+                    String query = "DELETE FROM users WHERE user_id=?";
+                    esql.executeUpdate(query, delete);
+                    graph.remove(delete);
+                    permissions.remove(delete);
+                    userIds.remove(delete);
                 }
             }
         } catch(Exception e) {
-            System.err.println(e.getMessage());
+            reportError(e);
         }
     }
 
     public static void clearUser(String delete) {
         try{
-            String query = "DELETE FROM follow WHERE user_id_to='"
-                    + delete + "' OR user_id_from='" + delete + "';";
-            esql.executeQuery(query);
+            String query = "DELETE FROM follow WHERE user_id_to=? "
+                    + "OR user_id_from=?";
+            esql.executeUpdate(query, delete, delete);
         } catch(Exception e) {
-            System.err.println(e.getMessage());
+            reportError(e);
         }
     }
 
@@ -377,85 +889,82 @@ public class EmbeddedSQL {
          try{
             boolean exit = false;
             while(exit == false) {
-                System.out.print("\tEnter a Video ID: ");
-                String delete = in.readLine();
+                session().out.print("\tEnter a Video ID: ");
+                String delete = session().readLine();
                 if(checkVideoQuery(delete) == 0) {
-                    System.out.println("Your input is invalid!");
+                    session().out.println("Your input is invalid!");
                 } else {
-                    String query = "DELETE FROM video WHERE video_id='"
-                            + delete + "';";
-                    esql.executeQuery(query);
+                    String query = "DELETE FROM video WHERE video_id=?";
+                    esql.executeUpdate(query, Integer.valueOf(delete));
+                    catalog.invalidate(Integer.parseInt(delete));
+                    videoIds.remove(String.valueOf(Integer.parseInt(delete)));
                 }
             }
         } catch(Exception e) {
-            System.err.println(e.getMessage());
+            reportError(e);
         }
     }
 
-    public static void addMovie(String title, int year, int oprice, 
-            int dprice, int votes, int rating, String episode, int season) {
+    /**
+      * Function that inserts a new video, letting its SERIAL column pick
+      * the video_id.  Its votes and rating start empty and follow the
+      * ratings users give it.
+      * @return int returns the new video_id, 0 for failure
+      */
+    public static int addMovie(String title, int year, int oprice, 
+            int dprice, String episode, int season) {
         try {
-            int movNum = 0;
-            String query = "SELECT max(video_id) FROM video;";
-            ResultSet rs = esql.getResultSet(query);
-            while (rs.next()) {
-                movNum = rs.getInt("max") + 1;
-            }
+            String query;
+            ResultSet rs;
             if (season > 0) {
-                query = "INSERT INTO video VALUES(" 
-                    + movNum + ", '" + title + "', " + year + ", " + oprice 
-                    + ", " + dprice + ", " + votes + ", " + rating + ", '"
-                    + episode + "', " + season + ");";
-                esql.executeQuery(query);
+                query = "INSERT INTO video(title, year, online_price, "
+                    + "dvd_price, episode, season_id) "
+                    + "VALUES(?, ?, ?, ?, ?, ?) RETURNING video_id";
+                rs = esql.getResultSet(query, title, year, oprice, dprice,
+                    episode, season);
             } else {
-                query = "INSERT INTO video VALUES(" 
-                    + movNum + ", '" + title + "', " + year + ", " + oprice 
-                    + ", " + dprice + ", " + votes + ", " + rating + ");";
-                esql.executeQuery(query);
+                query = "INSERT INTO video(title, year, online_price, "
+                    + "dvd_price) "
+                    + "VALUES(?, ?, ?, ?) RETURNING video_id";
+                rs = esql.getResultSet(query, title, year, oprice, dprice);
+            }
+            while (rs.next()) {
+                int vidID = rs.getInt("video_id");
+                videoIds.add(String.valueOf(vidID));
+                catalog.put(new VideoCatalog.Video(vidID, title, oprice,
+                    dprice));
+                return vidID;
             }
-
         } catch(Exception e) {
-            System.err.println(e.getMessage());
+            reportError(e);
         }
+        return 0;
     }
     
     public static void buildMovie() {
         try {
-            System.out.print("\tEnter Title: ");
-            String title = in.readLine();
+            session().out.print("\tEnter Title: ");
+            String title = session().readLine();
 
-            System.out.print("\tEnter Year: ");
-            int year = Integer.parseInt(in.readLine());
+            session().out.print("\tEnter Year: ");
+            int year = Integer.parseInt(session().readLine());
 
-            System.out.print("\tEnter Online Price: ");
-            int oPrice = Integer.parseInt(in.readLine());
+            session().out.print("\tEnter Online Price: ");
+            int oPrice = Integer.parseInt(session().readLine());
 
-            System.out.print("\tEnter DVD Price: ");
-            int dPrice = Integer.parseInt(in.readLine());
-
-            System.out.print("\tEnter Votes: ");
-            int votes = Integer.parseInt(in.readLine());
-
-            int rating = 0;
-            while (rating < 1 || rating > 10) {
-                System.out.print("\tEnter Rating [1-10]: ");
-                rating = Integer.parseInt(in.readLine());
-                if (rating < 1 || rating > 10) {
-                    System.out.println("Invalid input!");
-                }
-            }
+            session().out.print("\tEnter DVD Price: ");
+            int dPrice = Integer.parseInt(session().readLine());
 
-            System.out.print("\tEnter Episode [0 if none]: ");
-            String episode = in.readLine();
+            session().out.print("\tEnter Episode [0 if none]: ");
+            String episode = session().readLine();
 
-            System.out.print("\tEnter Season ID [0 if none]: ");
-            int season = Integer.parseInt(in.readLine());
+            session().out.print("\tEnter Season ID [0 if none]: ");
+            int season = Integer.parseInt(session().readLine());
 
-            addMovie(title, year, oPrice, dPrice, votes, rating, episode,
-                    season);
+            addMovie(title, year, oPrice, dPrice, episode, season);
 
         } catch(Exception e) {
-            System.err.println(e.getMessage());
+            reportError(e);
         }
     }
 
@@ -465,66 +974,78 @@ public class EmbeddedSQL {
     public static void registerMenu() {
         try {
             do {
-                System.out.print("\tEnter a User ID: ");
-                username = in.readLine();
-                if(checkUserQuery(username) == 1) {
-                    System.out.println("Your input is invalid!");
-                } else {
-                    break;
+                if(registerDetails() > 0) {
+                    return;
                 }
             } while(true);
+        } catch (Exception e) {
+        }
+    }
 
-            System.out.print("\tEnter a Password: ");
-            password = in.readLine();
+    /**
+      * Function that asks for the details of a new user and registers it.
+      * @return int returns 1 for success, 0 for failure
+      */
+    public static int registerDetails() {
+        do {
+            session().out.print("\tEnter a User ID: ");
+            session().username = session().readLine();
+            if(checkUserQuery(session().username) == 1) {
+                session().out.println("Your input is invalid!");
+            } else {
+                break;
+            }
+        } while(true);
 
-            System.out.print("\tEnter an Email: ");
-            String email = in.readLine();
+        session().out.print("\tEnter a Password: ");
+        session().password = session().readLine();
 
-            System.out.print("\tEnter your Firstname: ");
-            String firstname = in.readLine();
+        session().out.print("\tEnter an Email: ");
+        String email = session().readLine();
 
-            System.out.print("\tEnter your Middlename (optional): ");
-            String middlename = in.readLine();
+        session().out.print("\tEnter your Firstname: ");
+        String firstname = session().readLine();
 
-            System.out.print("\tEnter your Lastname: ");
-            String lastname = in.readLine();
+        session().out.print("\tEnter your Middlename (optional): ");
+        String middlename = session().readLine();
 
-            System.out.print("\tDo you want to add an Address?\n\t" + 
-                    "Enter 'y' for yes, 'n' for no: ");
-            String inputaddress = in.readLine();
+        session().out.print("\tEnter your Lastname: ");
+        String lastname = session().readLine();
 
-            while (!(inputaddress.equals("y")) && !(inputaddress.equals("n"))) {
-                System.out.print("\nPlease enter 'y' or 'n': ");
-                inputaddress = in.readLine();   
-            }
+        session().out.print("\tDo you want to add an Address?\n\t" + 
+                "Enter 'y' for yes, 'n' for no: ");
+        String inputaddress = session().readLine();
 
-            String street1 = "",
-                   street2 = "",
-                   state = "",
-                   country = "",
-                   zip = "";
-            if(inputaddress.equals("y")) {
-                System.out.print("\tEnter Street1: ");
-                street1 = in.readLine();
+        while (!(inputaddress.equals("y")) && !(inputaddress.equals("n"))) {
+            session().out.print("\nPlease enter 'y' or 'n': ");
+            inputaddress = session().readLine();   
+        }
 
-                System.out.print("\tEnter Street2: ");
-                street2 = in.readLine();
+        String street1 = "",
+               street2 = "",
+               state = "",
+               country = "",
+               zip = "";
+        if(inputaddress.equals("y")) {
+            session().out.print("\tEnter Street1: ");
+            street1 = session().readLine();
 
-                System.out.print("\tEnter State: ");
-                state = in.readLine();
+            session().out.print("\tEnter Street2: ");
+            street2 = session().readLine();
 
-                System.out.print("\tEnter Country: ");
-                country = in.readLine();
+            session().out.print("\tEnter State: ");
+            state = session().readLine();
 
-                System.out.print("\tEnter Zip Code: ");
-                zip = in.readLine();
+            session().out.print("\tEnter Country: ");
+            country = session().readLine();
+
+            session().out.print("\tEnter Zip Code: ");
+            zip = session().readLine();
 
-            }
-            System.out.println("\tStarting balance is $0\n");
-            registerQuery(email, firstname, middlename, lastname, street1, 
-                    street2, state, country, zip);
-        } catch (Exception e) {
         }
+        session().out.println("\tStarting balance is $0\n");
+        return registerQuery(email, firstname, middlename, lastname,
+                street1, street2, state, country, zip);
     }
 
     /**
@@ -538,21 +1059,33 @@ public class EmbeddedSQL {
       * @param  state       the state of user (optional)
       * @param  country     the country of user (optional)
       * @param  zip         the zip of user (optional)
+      * @return int returns 1 for success, 0 for failure
       */
-    public static void registerQuery(String email, String firstname, 
+    public static int registerQuery(String email, String firstname, 
             String middlename, String lastname, String street1, String street2, 
             String state, String country, String zip) {
 
         try {
-            String query = "INSERT INTO USERS VALUES(" +
-                "'" + username + "','" + password  + "','" + firstname
-                 + "','" + middlename + "','" + lastname + "','" +  email 
-                 + "','" + street1 + "','" + street2 + "','" + state + "','" 
-                 + country + "','" + zip + "'," + "0);";  
-            esql.executeQuery(query);
-        } catch(Exception e) {
-            System.err.println(e.getMessage());
+            String query = "INSERT INTO USERS VALUES("
+                 + "?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 0)";
+            esql.executeUpdate(query, session().username, session().password,
+                 firstname, middlename, lastname, email, street1, street2,
+                 state, country, zip);
+            userIds.add(session().username);
+            return 1;
+        } catch(SQLException e) {
+            if("23505".equals(e.getSQLState())) {
+                // the id filter had not seen a user inserted elsewhere
+                userIds.add(session().username);
+                session().out.println("User ID " + session().username
+                    + " is already taken, please register again.");
+            } else {
+                reportError(e);
+                session().out.println("Registration failed, please try "
+                    + "again.");
+            }
         }
+        return 0;
     }
 
     /**
@@ -561,51 +1094,130 @@ public class EmbeddedSQL {
       * @return int returns 1 for success, 0 for failure
       */
     public static int checkUserQuery(String userToCheck) {
+        if(!userIds.mightContain(userToCheck)) {
+            return 0;
+        }
         try {
-             String query = "SELECT * FROM users WHERE user_id='" 
-                 + userToCheck + "';";
-            int rowCount = esql.executeQuery(query);
+            String query = "SELECT 1 FROM users WHERE user_id=?";
+            int rowCount = esql.executeQuery(query, userToCheck);
             return rowCount;
         } catch(Exception e) {
-            System.err.println(e.getMessage());
+            reportError(e);
         }
         return 0;        
     }
 
     public static int checkVideoQuery(String vidID) {
         try {
-             String query = "SELECT * FROM video WHERE video_id='" 
-                 + vidID + "';";
-            int rowCount = esql.executeQuery(query);
-            return rowCount;
+            int id = Integer.parseInt(vidID);
+            if(videoIds.mightContain(String.valueOf(id))
+                    && catalog.get(id) != null) {
+                return 1;
+            }
         } catch(Exception e) {
-            System.err.println(e.getMessage());
+            reportError(e);
         }
         return 0;        
     }
 
     /**
       * Function for the user menu.
-      * @return int returns 1 for wall, 2 for watch, 3 for order, 4 for exit
+      * @return int returns 1 for wall, 2 for watch, 3 for order,
+      *             4 for recommendations, 5 for trending, 6 for exit
       */
     public static int userMenu() {
         while(true) {
-            System.out.print(
+            session().out.print(
                 "\n1) Personal Wall" +
                 "   2) Watch Online" +
                 "   3) Order" +
-                "   4) Exit: ");
+                "   4) Recommended for you" +
+                "   5) Trending" +
+                "   6) Exit: ");
             int choice = 0;
             try {
-                choice = Integer.parseInt(in.readLine());
+                choice = Integer.parseInt(session().readLine());
             } catch (Exception e) {
             }
 
-            if((choice == 1) || (choice == 2) || (choice == 3) || choice == 4) {
+            if(choice >= 1 && choice <= 6) {
                 return choice;
             } else {
-                System.out.println("Your input is invalid!");
+                session().out.println("Your input is invalid!");
+            }
+        }
+    }
+
+    /**
+      * Function that lists the videos trending in a window, over all
+      * genres or in one, as last published by the trending engine.
+      */
+    public static void trendingMenu() {
+        try {
+            session().out.print("\n1) Last Hour" +
+                "   2) Last Day" +
+                "   3) Last Week: ");
+            int window = Integer.parseInt(session().readLine());
+            if(window < 1 || window > 3) {
+                session().out.println("Your input is invalid!");
+                return;
+            }
+            Map<Integer, String> genres = trending.getGenres();
+            StringBuilder prompt = new StringBuilder("0) All Genres");
+            for(Map.Entry<Integer, String> e : genres.entrySet()) {
+                prompt.append("   ").append(e.getKey()).append(") ")
+                    .append(e.getValue());
+            }
+            session().out.print(prompt.append(": ").toString());
+            int genreID = Integer.parseInt(session().readLine());
+            if(genreID != 0 && !genres.containsKey(genreID)) {
+                session().out.println("Your input is invalid!");
+                return;
+            }
+            List<Trending.Entry> top = trending.top(WINDOWS[window], genreID);
+            if(top.isEmpty()) {
+                session().out.println("Nothing is trending yet.");
+                return;
             }
+            session().out.println("Trending:");
+            for(Trending.Entry entry : top) {
+                VideoCatalog.Video video = catalog.get(entry.videoId);
+                if(video != null) {
+                    session().out.println("  " + video.title);
+                }
+            }
+        } catch(Exception e) {
+            reportError(e);
+        }
+    }
+
+    /**
+      * Function that lists the videos recommended to the user by the
+      * last rebuild of the recommender.
+      */
+    public static void recommendedQuery() {
+        try {
+            List<Recommender.Recommendation> found =
+                recommender.recommend(session().username, RECOMMENDATIONS);
+            if(found == null) {
+                session().out.println(
+                    "Recommendations are being prepared, try again later.");
+                return;
+            }
+            if(found.isEmpty()) {
+                session().out.println("Nothing to recommend yet. Watch, "
+                    + "like or rate a few movies first.");
+                return;
+            }
+            session().out.println("Recommended for you:");
+            for(Recommender.Recommendation r : found) {
+                VideoCatalog.Video video = catalog.get(r.videoId);
+                if(video != null) {
+                    session().out.println("  " + video.title);
+                }
+            }
+        } catch(Exception e) {
+            reportError(e);
         }
     }
 
@@ -613,15 +1225,14 @@ public class EmbeddedSQL {
         int count = 0;
         try {
             if (vidID == 0) {
-                String query = "SELECT * FROM orders WHERE video_type=1"
-                    + "AND user_id='" + username + "';";
-                count = esql.executeQuery(query);
+                String query = "SELECT * FROM orders WHERE video_type=1 "
+                    + "AND user_id=?";
+                count = esql.executeQuery(query, session().username);
                 //System.out.println(count);
             } else {
-                String query = "SELECT video_id FROM orders WHERE video_id=" 
-                    + vidID + " AND video_type=1 AND user_id='" 
-                    + username + "';";
-                count = esql.executeQuery(query);
+                String query = "SELECT video_id FROM orders WHERE video_id=? "
+                    + "AND video_type=1 AND user_id=?";
+                count = esql.executeQuery(query, vidID, session().username);
             }
 
         } catch (Exception e) {
@@ -631,112 +1242,104 @@ public class EmbeddedSQL {
 
     public static void deleteOrder(int vidID) {
         try {
-            String query = "DELETE FROM orders WHERE video_id=" 
-                 + vidID + " AND video_type=1 AND user_id='" 
-                 + username + "';";
-            esql.executeQuery(query);
+            String query = "DELETE FROM orders WHERE video_id=? "
+                 + "AND video_type=1 AND user_id=?";
+            esql.executeUpdate(query, vidID, session().username);
         } catch (Exception e) {
         }
     }
 
     public static void addWatched(int vidID) {
         try {
-            String query = "SELECT video_id, user_id FROM watch WHERE " 
-                    + "video_id=" + vidID + " AND user_id='" 
-                    + username + "';";
-            int count = esql.executeQuery(query);
-            if (count == 0) {
-                Date date = new Date();
-                Timestamp ts = new Timestamp((date.getTime() / 1000) * 1000);
-                query = "INSERT INTO watch VALUES('" 
-                    + username + "', " + vidID + ", '" + ts + "');";
-                esql.executeQuery(query);
-            } else {
-                Date date = new Date();
-                Timestamp ts = new Timestamp((date.getTime() / 1000) * 1000);
-                query = "UPDATE watch SET watch_time='" + ts + "' WHERE"
-                    + " user_id='" + username + "' AND video_id= " 
-                    + vidID + ";";
-                esql.executeQuery(query);
-
-            }
+            Date date = new Date();
+            Timestamp ts = new Timestamp((date.getTime() / 1000) * 1000);
+            recordEvent(new Interactions.Event(ActivityFeed.WATCHED,
+                session().username, vidID, -1, ts));
         } catch (Exception e) {
+            reportError(e);
         }
     }
 
     public static void addLike(int vidID) {
         try {
-            String query = "SELECT user_id, video_id FROM likes WHERE " 
-                    + "video_id=" + vidID + " AND user_id='" 
-                    + username + "';";
-            int count = esql.executeQuery(query);
             Date date = new Date();
             Timestamp ts = new Timestamp((date.getTime() / 1000) * 1000);
-            if (count == 0) {
-                query = "INSERT INTO likes VALUES('" 
-                            + username + "' , " + vidID + "," + ts + ");";
-                esql.executeQuery(query);
-            } else {
-                query = "UPDATE likes SET like_time='" + ts + "' WHERE"
-                    + " user_id='" + username + "' AND video_id= " 
-                    + vidID + ";";
-                esql.executeQuery(query);
-            }
+            recordEvent(new Interactions.Event(ActivityFeed.LIKED,
+                session().username, vidID, -1, ts));
         } catch (Exception e) {
+            reportError(e);
+        }
+    }
+
+    /**
+      * Function that shows a video's average rating and how its ratings
+      * are spread, from the aggregates on its video row.
+      * @param  vidID   the video_id
+      */
+    public static void showRating(int vidID) {
+        try {
+            RatingAggregates.Summary summary = ratings.get(vidID);
+            if(summary == null || summary.votes == 0) {
+                session().out.println("\nNot rated yet.");
+                return;
+            }
+            StringBuilder line = new StringBuilder(String.format(
+                "%nRated %.1f/10 by %d users (", summary.average(),
+                summary.votes));
+            for(int r = RatingAggregates.MAX_RATING;
+                    r >= RatingAggregates.MIN_RATING; --r) {
+                line.append(r).append(": ")
+                    .append(summary.histogram[r - RatingAggregates.MIN_RATING])
+                    .append(r == RatingAggregates.MIN_RATING ? ")" : ", ");
+            }
+            session().out.println(line.toString());
+        } catch(Exception e) {
+            reportError(e);
         }
     }
 
     public static void addRate(int vidID) {
         try {
-            System.out.println("Enter Rating [1-10]: ");
-            int rating = Integer.parseInt(in.readLine());
+            session().out.println("Enter Rating [1-10]: ");
+            int rating = Integer.parseInt(session().readLine());
             if (rating < 1 || rating >10) {
-                System.out.println("Invalid input!");
+                session().out.println("Invalid input!");
                 return;
             }
-            String query = "SELECT user_id, video_id FROM rate WHERE " 
-                    + "video_id=" + vidID + " AND user_id='" 
-                    + username + "';";
-            int count = esql.executeQuery(query);
-            if (count == 0) {
-                Date date = new Date();
-                Timestamp ts = new Timestamp((date.getTime() / 1000) * 1000);
-                query = "INSERT INTO rate VALUES('" 
-                            + username + "' , " + vidID + ", '" 
-                            + ts + "', " + rating + ");";
-                esql.executeQuery(query);
-            } else {
-                Date date = new Date();
-                Timestamp ts = new Timestamp((date.getTime() / 1000) * 1000);
-                query = "UPDATE rate SET rate_time='" + ts + "', rating="
-                    + rating + "WHERE"
-                    + " user_id='" + username + "' AND video_id= " 
-                    + vidID + ";";
-                esql.executeQuery(query);
-            }
+            Date date = new Date();
+            Timestamp ts = new Timestamp((date.getTime() / 1000) * 1000);
+            recordEvent(new Interactions.Event(ActivityFeed.RATED,
+                session().username, vidID, rating, ts));
         } catch (Exception e) {
+            reportError(e);
         }
     }
 
     public static void addComment(int vidID) {
         try {
-            System.out.println("Enter Comment: ");
-            String comment = in.readLine();
-            int comNum = 0;
-            String query = "SELECT max(comment_id) FROM comment;";
-            ResultSet rs = esql.getResultSet(query);
-            while (rs.next()) {
-                comNum = rs.getInt("max") + 1;
-                System.out.println(comNum);
-            }
+            session().out.println("Enter Comment: ");
+            String comment = session().readLine();
+            long comNum = esql.nextId("comment_comment_id_seq");
             Date date = new Date();
             Timestamp ts = new Timestamp((date.getTime() / 1000) * 1000);
-            System.out.println(comNum);
-            query = "insert into comment values("
-                    + comNum + ", '" + username + "', " + vidID
-                    + ", '" + ts + "', '" + comment + "');";
-            esql.executeQuery(query);
+            recordEvent(new Interactions.Event(Interactions.COMMENTED,
+                session().username, vidID, -1, ts, comNum, comment));
         } catch (Exception e) {
+            reportError(e);
+        }
+    }
+
+    /**
+      * Function that records an interaction, through the write-behind
+      * buffer when it is enabled.
+      * @param  event   the watch, like, rate or comment to record
+      */
+    static void recordEvent(Interactions.Event event)
+            throws IOException, SQLException {
+        if(writeBehind != null) {
+            writeBehind.submit(event);
+        } else {
+            interactions.record(event);
         }
     }
 
@@ -746,25 +1349,27 @@ public class EmbeddedSQL {
                 int checkOrder = checkOrder(0);
                 //System.out.println(checkOrder);
                 if (checkOrder == 0) {
-                    System.out.println("\nYou have no online movies" 
+                    session().out.println("\nYou have no online movies" 
                             + " in your cart");
                     break;
                 }
 
-                System.out.print("Enter a movie to watch: ");
-                String title = in.readLine();
+                session().out.print("Enter a movie to watch: ");
+                String title = session().readLine();
                 int vidID = movieIDQuery(title);
                 if (vidID == 0) {
-                    System.out.println("\nMovie does not exist");
+                    session().out.println("\nMovie does not exist");
+                    suggestTitles(title);
                     break;
                 }
                 checkOrder = checkOrder(vidID);
                 if (checkOrder == 0) {
-                    System.out.println("\nYou have not ordered that movie");
+                    session().out.println("\nYou have not ordered that movie");
                     break;
                 }
+                showRating(vidID);
                 while (true) {
-                    System.out.print(
+                    session().out.print(
                         "\nYou are now watching " + title + " online!" +
                         "\n1) Like" +
                         "   2) Rate" +
@@ -772,7 +1377,7 @@ public class EmbeddedSQL {
                         "   4) Back: ");
                     deleteOrder(vidID);
                     addWatched(vidID);
-                    int choice = Integer.parseInt(in.readLine());
+                    int choice = Integer.parseInt(session().readLine());
                     switch (choice) {
                         case 1: addLike(vidID);
                             break;
@@ -781,7 +1386,8 @@ public class EmbeddedSQL {
                         case 3: addComment(vidID);
                             break;
                         case 4: return;
-                        default: System.out.println("Your input is invalid!");
+                        default:
+                            session().out.println("Your input is invalid!");
                             break;
                     }
                 }   
@@ -797,7 +1403,7 @@ public class EmbeddedSQL {
         while(true) {
             int choice = 0;
             while(true) {
-                System.out.print(
+                session().out.print(
                     "\n1) See Updates" +
                     "  2) Follow User " +
                     "  3) Favorites " +
@@ -805,7 +1411,7 @@ public class EmbeddedSQL {
                     "  5) Balance " +
                     "  6) Back: ");
                 try {
-                    choice = Integer.parseInt(in.readLine());
+                    choice = Integer.parseInt(session().readLine());
                 } catch (Exception e) {
                 }
 
@@ -813,83 +1419,71 @@ public class EmbeddedSQL {
                         (choice == 4) || (choice == 5) || (choice == 6)){
                     break;
                 } else {
-                    System.out.println("Your input is invalid!");
+                    session().out.println("Your input is invalid!");
                 }
             }
 
-            if(choice == 1) {
-                seeUpdatesQuery();
+            if(choice == 6) {
+                return;
             }
 
-            if(choice == 2) {
-                followUserMenu();
-            }
+            Tracer.Span span = Tracer.begin(WALL_ACTIONS[choice]);
+            try {
+                if(choice == 1) {
+                    seeUpdatesQuery();
+                }
 
-            if(choice == 3) {
-                favoritesMenu();
-            }
+                if(choice == 2) {
+                    followUserMenu();
+                }
 
-            if(choice == 4) {
-                permissionMenu();
-            }
+                if(choice == 3) {
+                    favoritesMenu();
+                }
 
-            if(choice == 5) {
-                balanceMenu();
-            }
-            
-            if(choice == 6) {
-                return;
+                if(choice == 4) {
+                    permissionMenu();
+                }
+
+                if(choice == 5) {
+                    balanceMenu();
+                }
+            } finally {
+                span.end();
             }
         }
     }
 
     /**
-      * Function that queries the database for updates for the user
+      * Function that shows the updates on the user's wall, a page at a
+      * time, newest first.
       */
     public static void seeUpdatesQuery() {
         try {
-            String query = null;
-            query = "ALTER TABLE watch ADD temprating INT DEFAULT -1; "
-                + "ALTER TABLE watch ADD type VARCHAR(9) DEFAULT 'watched'; " 
-                + "ALTER TABLE rate ADD type VARCHAR(9) DEFAULT 'rated'; " 
-                + "ALTER TABLE likes ADD temprating INT DEFAULT -1; "
-                + "ALTER TABLE likes ADD type VARCHAR(9) DEFAULT 'liked'; "
-                + "(SELECT A.user_id, B.title, A.rate_time, A.type, A.rating "
-                + "FROM rate A, video B, permission C, follow D "
-                + "WHERE A.video_id=B.video_id AND A.user_id=C.user_id AND "
-                + "C.rate='public' AND D.user_id_to='" + username + "' AND "
-                + "A.user_id=D.user_id_from UNION ALL "
-                + "SELECT A.user_id,B.title,A.watch_time,A.type,A.temprating "
-                + "FROM watch A, video B, permission C, follow D "
-                + "WHERE A.video_id=B.video_id AND A.user_id=C.user_id AND "
-                + "C.watch='public' AND D.user_id_to='" + username + "' AND "
-                + "A.user_id=D.user_id_from) UNION ALL " 
-                + "SELECT A.user_id,B.title,A.like_time,A.type,A.temprating "
-                + "FROM likes A, video B, permission C, follow D "
-                + "WHERE A.video_id=B.video_id AND A.user_id=C.user_id AND "
-                + "C.likes='public' AND D.user_id_to='" + username + "' AND "
-                + "A.user_id=D.user_id_from ORDER BY 3 DESC; "
-                + "ALTER TABLE watch DROP temprating; "
-                + "ALTER TABLE watch DROP type; "
-                + "ALTER TABLE rate DROP type; "
-                + "ALTER TABLE likes DROP temprating; "
-                + "ALTER TABLE likes DROP type; ";
-
-            esql.executeQuery(query);
-        } catch(Exception e) {
-            System.err.println(e.getMessage());
-        }
+            ActivityFeed.Item after = null;
+            do {
+                ActivityFeed.Page page = feed.page(session().username, after,
+                    WALL_SIZE);
+                for(ActivityFeed.Item item : page.items) {
+                    session().out.print("At " + item.time + " " + item.actor
+                        + " " + item.kind + " " + item.title);
+                    if(item.rating != -1) {
+                        session().out.print(" with " + item.rating
+                            + " stars");
+                    }
+                    session().out.println();
+                }
 
-        for(int i = 0; i < 10; ++i) {
-            if(sqlResult[i][0] == null) {
-                break;
-            }
-            System.out.print("At " + sqlResult[i][2] + " " + sqlResult[i][0] +
-                " " + sqlResult[i][3] + " " + sqlResult[i][1]);
-            if(Integer.parseInt(sqlResult[i][4]) != -1) {
-                System.out.print(" with " + sqlResult[i][4] + " stars");
-            }
-            System.out.println();
+                after = page.next();
+                if(after != null) {
+                    session().out.print("\n1) Load Older    2) Back: ");
+                    if(!session().readLine().equals("1")) {
+                        break;
+                    }
+                }
+            } while(after != null);
+        } catch(Exception e) {
+            reportError(e);
         }
     }
 
@@ -898,23 +1492,43 @@ public class EmbeddedSQL {
       * allows valid users to be followed.
       */
     public static void followUserMenu() {
+        whoToFollow();
         while(true) {
             try {
-                System.out.print("\nFollow User\n\tUsername: ");
-                String followUser = in.readLine();
-                if(username.equals(followUser)) {
-                    System.out.println("You cannot follow yourself!");
+                session().out.print("\nFollow User\n\tUsername: ");
+                String followUser = session().readLine();
+                if(session().username.equals(followUser)) {
+                    session().out.println("You cannot follow yourself!");
                 } else if(checkUserQuery(followUser) == 1) {
                     followUserQuery(followUser);
                     break;
                 } else {
-                    System.out.println("User does not exist!");
+                    session().out.println("User does not exist!");
                 }
             } catch (Exception e) {
             }
         }
     }
 
+    /**
+      * Function that shows the user's follow counts and the users followed
+      * most by the users they follow.
+      */
+    public static void whoToFollow() {
+        String user = session().username;
+        session().out.println("\nYou follow " + graph.followingCount(user)
+            + " users and have " + graph.followerCount(user) + " followers.");
+        List<FollowGraph.Suggestion> found =
+            graph.suggest(user, WHO_TO_FOLLOW);
+        if(!found.isEmpty()) {
+            session().out.println("Who to follow:");
+            for(FollowGraph.Suggestion s : found) {
+                session().out.println("  " + s.user + " (followed by "
+                    + s.mutual + " you follow)");
+            }
+        }
+    }
+
     /**
       * Function that queries the database to follow a user.
       * @param  followUser  the user to follow
@@ -923,11 +1537,11 @@ public class EmbeddedSQL {
         try {
             Date date = new Date();
             Timestamp ts = new Timestamp((date.getTime() / 1000) * 1000);
-            String query = "INSERT INTO follow VALUES('" +
-                username + "','" + followUser + "','" + ts + "');";
-            esql.executeQuery(query);
+            String query = "INSERT INTO follow VALUES(?, ?, ?)";
+            esql.executeUpdate(query, session().username, followUser, ts);
+            graph.follow(session().username, followUser);
         } catch(Exception e) {
-            System.err.println(e.getMessage());
+            reportError(e);
         }
     }
 
@@ -938,16 +1552,17 @@ public class EmbeddedSQL {
     public static void favoritesMenu() {
         while(true) {
             try {
-                System.out.print("\nFavorites\n\tMovie Title: ");
-                String movie = in.readLine();
+                session().out.print("\nFavorites\n\tMovie Title: ");
+                String movie = session().readLine();
                 int checkMovie = checkMovieQuery(movie);
                 if(checkMovie == 1) {
                     favoritesQuery(movie);
                     break;
                 } else if(checkMovie == 2) {
-                    System.out.println("Movie is already favorited!");
+                    session().out.println("Movie is already favorited!");
                 } else {
-                    System.out.println("Movie does not exist!");
+                    session().out.println("Movie does not exist!");
+                    suggestTitles(movie);
                 }
             } catch (Exception e) {
             }
@@ -963,12 +1578,10 @@ public class EmbeddedSQL {
         try {
             Date date = new Date();
             Timestamp ts = new Timestamp((date.getTime() / 1000) * 1000);
-            String query = "INSERT INTO likes(user_id, video_id, like_time)"
-                + " SELECT '" + username + "' ,video.video_id," + "'" + ts 
-                + "'" + " FROM video WHERE title='" + movie + "';";
-            esql.executeQuery(query);
+            recordEvent(new Interactions.Event(ActivityFeed.LIKED,
+                session().username, movieIDQuery(movie), -1, ts));
         } catch(Exception e) {
-            System.err.println(e.getMessage());
+            reportError(e);
         }
     }
 
@@ -980,35 +1593,41 @@ public class EmbeddedSQL {
       */
     public static int checkMovieQuery(String movieToCheck) {
         try {
-            String query = "SELECT * FROM video WHERE title='" 
-                 + movieToCheck + "';";
-            int rowCount = esql.executeQuery(query);
-
-            query = "SELECT * FROM likes WHERE user_id='" + username + 
-                "' AND video_id=(SELECT video_id FROM video WHERE title='" 
-                + movieToCheck + "');";
-
-            int rowCount2 = esql.executeQuery(query);
-
-            query = "SELECT B.title FROM likes A, video B WHERE user_id='" + 
-                username + "' AND A.video_id=B.video_id;";
-            esql.executeQuery(query);
-            if(sqlResult[0][0] != null) {
-                System.out.println("\nRecent favorites:");
-            }
-            for(int i = 0;  i < 10; ++i) {
-                if(sqlResult[i][0] == null) {
-                    break;
+            VideoCatalog.Video video = catalog.byTitle(movieToCheck);
+            int rowCount = video == null ? 0 : 1;
+            int rowCount2 = 0;
+
+            String query;
+            if(video != null) {
+                query = "SELECT * FROM likes WHERE user_id=? AND video_id=?";
+                rowCount2 = esql.executeQuery(query, session().username,
+                    video.id);
+            }
+
+            query = "SELECT video_id FROM likes WHERE user_id=?";
+            final Session session = session();
+            esql.forEachRow(query, new RowHandler() {
+                private boolean first = true;
+
+                public void row(ResultSet rs) throws SQLException {
+                    VideoCatalog.Video liked = catalog.get(rs.getInt(1));
+                    if(liked == null) {
+                        return;
+                    }
+                    if(first) {
+                        session.out.println("\nRecent favorites:");
+                        first = false;
+                    }
+                    session.out.println("\t" + liked.title);
                 }
-                System.out.println("\t" + sqlResult[i][0]);
-            }
-            System.out.println();
+            }, session.username);
+            session.out.println();
             if(rowCount2 != 0) {
                 return 2;
             }
             return rowCount;
         } catch(Exception e) {
-            System.err.println(e.getMessage());
+            reportError(e);
         }
         return 0;        
     }
@@ -1019,13 +1638,13 @@ public class EmbeddedSQL {
     public static void permissionMenu() {
         int choice = 0;
         while(true) {
-            System.out.print(
+            session().out.print(
                 "\n1) Favorites" +
                 "\t2) Ranks " +
                 "\t3) Watched " +
                 "\t4) Playlist ");
             try {
-                choice = Integer.parseInt(in.readLine());
+                choice = Integer.parseInt(session().readLine());
             } catch (Exception e) {
             }
 
@@ -1033,24 +1652,24 @@ public class EmbeddedSQL {
                     (choice == 4)){
                 break;
             } else {
-                System.out.println("Your input is invalid!");
+                session().out.println("Your input is invalid!");
             }
         }
 
         int choice2 = 0;
         while(true) {
-            System.out.print(
+            session().out.print(
                 "\n1) Public" +
                 "\t2) Private: ");
             try {
-                choice2 = Integer.parseInt(in.readLine());
+                choice2 = Integer.parseInt(session().readLine());
             } catch (Exception e) {
             }
 
             if((choice2 == 1) || (choice2 == 2)){
                 break;
             } else {
-                System.out.println("Your input is invalid!");
+                session().out.println("Your input is invalid!");
             }
         }
 
@@ -1058,36 +1677,18 @@ public class EmbeddedSQL {
     }
 
     /**
-      * Function that queries the database to change users permissions.
+      * Function that changes users permissions, in the database and in
+      * the permission service.
       * @param  choice  the input user provided (favorite, rank, watch,
       *                 playlist)
       * @param  choice2 public or private
       */
     public static void permissionQuery(int choice, int choice2) {
         try {
-            String column = null;
-            String value = null;
-            if(choice == 1) {
-                column = "likes";
-            } else if(choice == 2) {
-                column = "rate";
-            } else if(choice == 3) {
-                column = "watch";
-            } else if(choice == 4) {
-                column = "playlists";
-            }
-
-            if(choice2 == 1) {
-                value = "public";
-            } else if(choice2 == 2) {
-                value = "private";
-            }
-
-            String query = "UPDATE permission SET " + column + "='" + value +
-                "' WHERE user_id='" + username + "';";
-            esql.executeQuery(query);
+            permissions.set(session().username, PERMISSIONS[choice],
+                choice2 == 1);
         } catch(Exception e) {
-            System.err.println(e.getMessage());
+            reportError(e);
         }
     }
 
@@ -1097,35 +1698,35 @@ public class EmbeddedSQL {
     public static void balanceMenu() {
         int choice = 0;
         while(true) {
-            System.out.print(
+            session().out.print(
                 "\n1) View Balance" +
                 "\t2) Add Balance: ");
             try {
-                choice = Integer.parseInt(in.readLine());
+                choice = Integer.parseInt(session().readLine());
             } catch (Exception e) {
             }
 
             if((choice == 1) || (choice == 2)) { 
                 break;
             } else {
-                System.out.println("Your input is invalid!");
+                session().out.println("Your input is invalid!");
             }
         }
         
         int amount = 0;
         if(choice == 2) {
             while(true) {
-                System.out.print(
+                session().out.print(
                     "\n1) Add Amount: ");
                 try {
-                    amount = Integer.parseInt(in.readLine());
+                    amount = Integer.parseInt(session().readLine());
                 } catch (Exception e) {
                 }
 
                 if(amount > 0) { 
                     break;
                 } else {
-                    System.out.println("Please enter atleast 1!");
+                    session().out.println("Please enter atleast 1!");
                 }
             }
         }
@@ -1140,73 +1741,71 @@ public class EmbeddedSQL {
     public static void balanceQuery(int choice, int amount) {
         try {
             String query = null;
-            query = "SELECT balance FROM users WHERE user_id='" +
-                username + "';";
-            esql.executeQuery(query);
-            Integer oldBalance = Integer.parseInt(sqlResult[0][0]);
+            query = "SELECT balance FROM users WHERE user_id=?";
+            ResultSet rs = esql.getResultSet(query, session().username);
+            rs.next();
+            int oldBalance = rs.getInt("balance");
             if(choice == 2) {
                 amount += oldBalance;
-                query = "UPDATE users SET balance=" + amount + 
-                    " WHERE user_id='" + username + "';";
-                esql.executeQuery(query);
+                query = "UPDATE users SET balance=? WHERE user_id=?";
+                esql.executeUpdate(query, amount, session().username);
             } else {
-                System.out.println("Current Balance: " + oldBalance);
+                session().out.println("Current Balance: " + oldBalance);
             }
         } catch(Exception e) {
-            System.err.println(e.getMessage());
+            reportError(e);
         }
     }
 
     public static int movieIDQuery(String movie) {
         try {
-             String query = "SELECT video_id FROM video WHERE title='" 
-                 + movie + "';";
-            ResultSet rs = esql.getResultSet(query);
-
-            while (rs.next()) {
-                int vidID = rs.getInt("video_id");
-                return vidID;
+            VideoCatalog.Video video = catalog.byTitle(movie);
+            if(video != null) {
+                return video.id;
             }
         } catch(Exception e) {
-            System.err.println(e.getMessage());
+            reportError(e);
         }
         return 0;
     }
 
     public static String movieTitleQuery(int vidID) {
         try {
-             String query = "SELECT title FROM video WHERE video_id='" 
-                 + vidID + "';";
-
-            ResultSet rs = esql.getResultSet(query);
-
-            while (rs.next()) {
-                String movie = rs.getString("title");
-                return movie;
+            VideoCatalog.Video video = catalog.get(vidID);
+            if(video != null) {
+                return video.title;
             }
         } catch(Exception e) {
-            System.err.println(e.getMessage());
+            reportError(e);
         }
         return "";
     }
 
+    /**
+      * Function that lists the titles closest to one that was not found,
+      * from the in-memory title index.
+      * @param  title   the title the user typed
+      */
+    public static void suggestTitles(String title) {
+        List<VideoCatalog.Video> found = catalog.search(title,
+            SUGGESTIONS);
+        if(found.isEmpty()) {
+            return;
+        }
+        session().out.println("Did you mean:");
+        for(VideoCatalog.Video video : found) {
+            session().out.println("\t" + video.title);
+        }
+    }
+
     public static int moviePriceQuery(String movie, int type) {
         try {
-            String price;
-            if (type == 1) {
-                price = "online_price";
-            } else {
-                price = "dvd_price";
-            }
-            String query = "SELECT " + price + " FROM video WHERE title='" 
-                + movie + "';";
-            ResultSet rs = esql.getResultSet(query);
-            while (rs.next()) {
-                int vidPrice = rs.getInt(price);
-                return vidPrice;
+            VideoCatalog.Video video = catalog.byTitle(movie);
+            if(video != null) {
+                return video.price(type);
             }
         } catch(Exception e) {
-            System.err.println(e.getMessage());
+            reportError(e);
         }
         return -1;
     }
@@ -1215,20 +1814,30 @@ public class EmbeddedSQL {
         try {
             int exit = -1;
             while(exit != 0) {
-                System.out.print(
+                session().out.print(
                 "\n1) Purchase Movie" +
                 "    2) View Cart " + 
-                "    3) Back: ");
+                "    3) Buy Several " +
+                "    4) Back: ");
 
-                int choice = Integer.parseInt(in.readLine());
-                switch (choice) {
-                case 1: purchaseMovie();
-                    break;
-                case 2: viewCart();
-                    break;
-                case 3: exit = 0;
-                    break;
-                default: System.out.println("Your input is invalid!");
+                int choice = Integer.parseInt(session().readLine());
+                Tracer.Span span = Tracer.begin(choice >= 1 && choice <= 3
+                    ? ORDER_ACTIONS[choice] : null);
+                try {
+                    switch (choice) {
+                    case 1: purchaseMovie();
+                        break;
+                    case 2: viewCart();
+                        break;
+                    case 3: checkoutMenu();
+                        break;
+                    case 4: exit = 0;
+                        break;
+                    default:
+                        session().out.println("Your input is invalid!");
+                    }
+                } finally {
+                    span.end();
                 }
             }
         }catch (Exception e) {}
@@ -1238,65 +1847,38 @@ public class EmbeddedSQL {
     public static int purchaseMovie() {
         int exit = -1;
         while(exit != 0) {
-            System.out.print(
+            session().out.print(
                 "\nSelect purchase type:" +
                 "\n1) Online" +
                 "\t2) DVD: ");
             int choice = 0;
             try {
-                choice = Integer.parseInt(in.readLine());
+                choice = Integer.parseInt(session().readLine());
             } catch (Exception e) {
             }
 
             if((choice == 1) || (choice == 2)) {
                 exit = orderQuery(choice);
             } else {
-                System.out.println("Your input is invalid!");
+                session().out.println("Your input is invalid!");
             }
         }
         return exit;
     }
 
-    public static void addOrder(int vidID, int type) {
-        try {
-            int orderNum = 0;
-            String query = "SELECT max(order_id) FROM orders;";
-            ResultSet rs = esql.getResultSet(query);
-            while (rs.next()) {
-                orderNum = rs.getInt("max") + 1;
-                //System.out.println(orderNum);
-            }
-            query = "INSERT INTO orders VALUES("
-                    + orderNum + ", " + vidID + ", '" + username
-                    + "', " + type + ");";
-            esql.executeQuery(query);
-        } catch (Exception e) {
-        }
-    }  
-
-    public static int deductBalance(int vidPrice) {
-         try {
-            int balance = 0;
-            String query = "SELECT balance FROM users WHERE user_id='" 
-                + username + "';";
-            ResultSet rs = esql.getResultSet(query);
-            while (rs.next()) {
-                balance = rs.getInt("balance");
-            }
-            balance -= vidPrice;
-            if (balance < 0) {
-                return -1;
-            }
-
-            query = "UPDATE users SET balance = " + balance 
-                    + " WHERE user_id='" + username + "';";
-            
-            esql.executeQuery(query);
-        } catch (Exception e) {
-        }
-
-        return 0;
-    } 
+    /**
+      * Function that buys one video for the user.  The balance check, the
+      * debit and the order insert run as one transaction.
+      * @param  video   the video to buy
+      * @param  type    1 for online, 2 for DVD
+      * @return int     returns the amount charged, -1 for insufficient funds
+      */
+    public static int purchaseQuery(VideoCatalog.Video video, int type)
+            throws SQLException {
+        ArrayList<Cart.Item> items = new ArrayList<Cart.Item>();
+        items.add(new Cart.Item(video.id, type, video.price(type)));
+        return cart.checkout(session().username, items);
+    }
 
     public static int orderQuery(int type) {
         try {
@@ -1305,74 +1887,111 @@ public class EmbeddedSQL {
             }
             String input = "y";
             while(input == "y") {
-                System.out.print("\nEnter the movie you wish to purchase: \n");
-                String movie = in.readLine();
-                int vidID = movieIDQuery(movie);
-                int vidPrice = moviePriceQuery(movie, type);
-
-                int balanceCheck = deductBalance(vidPrice);
-                if (balanceCheck < 0) {
-                    System.out.println("ERROR: Insufficient funds!");
-                    return 0;
-                }
-                
-                if (vidID == 0) {
-                    System.out.println("Video does not exist!");
-                    break;
-                } else {
-                    addOrder(vidID, type);
-                    System.out.println("\nAdded to cart");
+                session().out.print(
+                    "\nEnter the movie you wish to purchase: \n");
+                String movie = session().readLine();
+                VideoCatalog.Video video = catalog.byTitle(movie);
+                if (video == null) {
+                    session().out.println("Video does not exist!");
+                    suggestTitles(movie);
                     break;
                 }
+
+                if (purchaseQuery(video, type) < 0) {
+                    session().out.println("ERROR: Insufficient funds!");
+                    return 0;
+                }
+                session().out.println("\nAdded to cart");
+                break;
             }
         } catch (Exception e) {
+            reportError(e);
         }
         return 0;
     }
     
     public static void viewCart() {
         try{
-            ArrayList<String> movieList = new ArrayList<String>();
-            ArrayList<Integer> vidTypes = new ArrayList<Integer>();
-            ArrayList<Integer> priceList = new ArrayList<Integer>();
+            long after = 0;
+            int line = 0;
+            while (after >= 0) {
+                Cart.Page page = cart.page(session().username, after,
+                    CART_PAGE_SIZE);
+                if (line == 0) {
+                    session().out.println("\n" + page.itemCount
+                        + " items, total $" + page.total);
+                }
+                for (Cart.Line item : page.lines) {
+                    String type;
+                    if (item.type == 1) {
+                        type = "online";
+                    } else {
+                        type = "dvd";
+                    }
 
-            String query = "SELECT video_id FROM orders WHERE user_id='" 
-                + username + "';";
-            ResultSet rs = esql.getResultSet(query);
-            while (rs.next()) {
-                int vidID = rs.getInt("video_id");
-                String movTitle = movieTitleQuery(vidID);
-                movieList.add(movTitle);
-            }
+                    session().out.println("\n" + (++line) + ".\t"
+                        + item.title + "\t" + type + "\t$" + item.price);
+                }
 
-            query = "SELECT video_type FROM orders WHERE user_id='" 
-                + username + "';";
-            rs = esql.getResultSet(query);
-            while (rs.next()) {
-                int vidT = rs.getInt("video_type");
-                vidTypes.add(vidT);
+                after = page.next(CART_PAGE_SIZE);
+                if (after >= 0) {
+                    session().out.print("\n1) Next Page    2) Back: ");
+                    if (!session().readLine().equals("1")) {
+                        break;
+                    }
+                }
             }
 
-            for (int i = 0; i < vidTypes.size(); i++){
-                priceList.add(
-                        moviePriceQuery(movieList.get(i), vidTypes.get(i))
-                        );
+        } catch (Exception e) {
+            reportError(e);
+        }
+        return;
+    }
+
+    /**
+      * Function for buying several movies at once.  Reads titles until an
+      * empty line and charges the balance once for all of them.
+      */
+    public static void checkoutMenu() {
+        try {
+            session().out.print(
+                "\nSelect purchase type:" +
+                "\n1) Online" +
+                "\t2) DVD: ");
+            int type = Integer.parseInt(session().readLine());
+            if (type != 1 && type != 2) {
+                session().out.println("Your input is invalid!");
+                return;
             }
 
-            for (int i = 0; i < movieList.size(); i++) {
-                String type;
-                if (vidTypes.get(i) == 1) {
-                    type = "online";
+            ArrayList<Cart.Item> items = new ArrayList<Cart.Item>();
+            while (true) {
+                session().out.print("Enter a movie (empty line to finish): ");
+                String movie = session().readLine();
+                if (movie.length() == 0) {
+                    break;
+                }
+                VideoCatalog.Video video = catalog.byTitle(movie);
+                if (video == null) {
+                    session().out.println("Video does not exist!");
+                    suggestTitles(movie);
                 } else {
-                    type = "dvd";
-                }   
-
-                System.out.println("\n" + (i+1) + ".\t" + movieList.get(i) 
-                            + "\t" + type + "\t$" + priceList.get(i));   
+                    items.add(new Cart.Item(video.id, type, video.price(type)));
+                }
+            }
+            if (items.isEmpty()) {
+                return;
             }
 
+            int charged = cart.checkout(session().username, items);
+            if (charged < 0) {
+                session().out.println("ERROR: Insufficient funds!");
+            } else {
+                session().out.println("\nAdded " + items.size()
+                    + " movies to cart for $" + charged);
+            }
         } catch (Exception e) {
+            reportError(e);
         }
-        return;
     }
 }
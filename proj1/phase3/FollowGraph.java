@@ -0,0 +1,547 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * This class keeps the follow table in memory as a graph.  User ids are
+ * numbered densely and each direction of the graph, who a user follows and
+ * who follows them, is stored as one array of neighbours indexed by an
+ * array of row offsets.  Follows made since the arrays were built go to
+ * small per-user lists beside them, and deleted users are masked out; once
+ * enough changes pile up the arrays are rebuilt in memory.
+ *
+ * The whole table is loaded at startup and reloaded on a fixed schedule to
+ * pick up changes made outside the application.
+ *
+ */
+public class FollowGraph {
+
+    // changes beyond base edges / COMPACT_RATIO + COMPACT_MIN trigger a
+    // rebuild of the arrays.
+    private static final int COMPACT_RATIO = 8;
+    private static final int COMPACT_MIN = 1024;
+
+    /**
+     * A user suggested to follow.
+     */
+    public static class Suggestion {
+        public final String user;
+        public final int mutual;
+
+        public Suggestion(String user, int mutual) {
+            this.user = user;
+            this.mutual = mutual;
+        }
+    }
+
+    /*
+    ** a growable list of user numbers.
+    */
+    private static class IntList {
+        int[] values = new int[4];
+        int size = 0;
+
+        void add(int value) {
+            if(this.size == this.values.length) {
+                int[] grown = new int[this.size * 2];
+                System.arraycopy(this.values, 0, grown, 0, this.size);
+                this.values = grown;
+            }
+            this.values[this.size++] = value;
+        }
+    }
+
+    /*
+    ** one direction of the graph: row u of the arrays, then u's extra list.
+    */
+    private static class Edges {
+        final int[] start;
+        final int[] adj;
+        final HashMap<Integer, IntList> extra =
+            new HashMap<Integer, IntList>();
+
+        Edges(int[] start, int[] adj) {
+            this.start = start;
+            this.adj = adj;
+        }
+
+        /*
+        ** groups (from, to) pairs by from.
+        */
+        static Edges of(IntList from, IntList to, int users) {
+            int[] start = new int[users + 1];
+            for(int i = 0; i < from.size; ++i) {
+                ++start[from.values[i] + 1];
+            }
+            for(int u = 0; u < users; ++u) {
+                start[u + 1] += start[u];
+            }
+            int[] at = new int[users];
+            System.arraycopy(start, 0, at, 0, users);
+            int[] adj = new int[from.size];
+            for(int i = 0; i < from.size; ++i) {
+                adj[at[from.values[i]]++] = to.values[i];
+            }
+            return new Edges(start, adj);
+        }
+
+        void add(int from, int to) {
+            IntList list = this.extra.get(from);
+            if(list == null) {
+                list = new IntList();
+                this.extra.put(from, list);
+            }
+            list.add(to);
+        }
+
+        /*
+        ** calls visit for every live neighbour of u, until it returns
+        ** false.
+        */
+        boolean forEach(int u, BitSet deleted, Visitor visit) {
+            if(u + 1 < this.start.length) {
+                for(int j = this.start[u]; j < this.start[u + 1]; ++j) {
+                    if(!deleted.get(this.adj[j])
+                            && !visit.visit(this.adj[j])) {
+                        return false;
+                    }
+                }
+            }
+            IntList list = this.extra.get(u);
+            for(int j = 0; list != null && j < list.size; ++j) {
+                if(!deleted.get(list.values[j])
+                        && !visit.visit(list.values[j])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /*
+    ** called per neighbour; returns false to stop.
+    */
+    private interface Visitor {
+        boolean visit(int user);
+    }
+
+    private final EmbeddedSQL _esql;
+    private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+    private HashMap<String, Integer> _ids;
+    private ArrayList<String> _names;
+    private Edges _following;
+    private Edges _followers;
+    private BitSet _deleted;
+    private int _changes;
+    // follows and deletes made while a reload reads the table, replayed
+    // onto the reloaded graph; null when no reload is running.
+    private List<String[]> _replay = null;
+    private final ScheduledExecutorService _refresher;
+
+    /**
+    * Creates a new graph, loads the follow table and schedules reloads.
+    *
+    * @param esql the database the follow table lives in
+    * @param refreshMillis milliseconds between full reloads
+    * @throws java.sql.SQLException when the initial load fails
+    */
+    public FollowGraph(EmbeddedSQL esql, long refreshMillis)
+            throws SQLException {
+        this._esql = esql;
+        refresh();
+        this._refresher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "graph-refresh");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        this._refresher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        refresh();
+                    } catch(SQLException e) {
+                        System.err.println(e.getMessage());
+                    }
+                }
+            }, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+    ** an empty graph with no table behind it and no reloads.
+    */
+    FollowGraph() {
+        this._esql = null;
+        this._refresher = null;
+        install(new HashMap<String, Integer>(), new ArrayList<String>(),
+            new IntList(), new IntList());
+    }
+
+    /**
+    * Reloads the whole follow table and replaces the graph.
+    *
+    * @throws java.sql.SQLException when the load fails
+    */
+    public void refresh() throws SQLException {
+        this._lock.writeLock().lock();
+        try {
+            this._replay = new ArrayList<String[]>();
+        } finally {
+            this._lock.writeLock().unlock();
+        }
+        final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        final ArrayList<String> names = new ArrayList<String>();
+        final IntList follower = new IntList();
+        final IntList followed = new IntList();
+        try {
+            this._esql.forEachRow("SELECT user_id_to, user_id_from "
+                + "FROM follow", this._esql.getFetchSize(),
+                new RowHandler() {
+                    public void row(ResultSet rs) throws SQLException {
+                        follower.add(intern(ids, names, rs.getString(1)));
+                        followed.add(intern(ids, names, rs.getString(2)));
+                    }
+                });
+        } catch(SQLException e) {
+            this._lock.writeLock().lock();
+            try {
+                this._replay = null;
+            } finally {
+                this._lock.writeLock().unlock();
+            }
+            throw e;
+        }
+        this._lock.writeLock().lock();
+        try {
+            List<String[]> replay = this._replay;
+            this._replay = null;
+            install(ids, names, follower, followed);
+            for(String[] change : replay) {
+                if(change[1] == null) {
+                    remove(change[0]);
+                } else {
+                    follow(change[0], change[1]);
+                }
+            }
+        } finally {
+            this._lock.writeLock().unlock();
+        }
+    }
+
+    /**
+    * Adds a follow after it was written by this process.
+    *
+    * @param follower the user who follows
+    * @param followed the user being followed
+    */
+    public void follow(String follower, String followed) {
+        this._lock.writeLock().lock();
+        try {
+            if(this._replay != null) {
+                this._replay.add(new String[] { follower, followed });
+            }
+            int from = intern(this._ids, this._names, follower);
+            final int to = intern(this._ids, this._names, followed);
+            // a replayed follow may already have been read by the reload
+            if(!this._following.forEach(from, this._deleted, new Visitor() {
+                    public boolean visit(int user) {
+                        return user != to;
+                    }
+                })) {
+                return;
+            }
+            this._following.add(from, to);
+            this._followers.add(to, from);
+            changed();
+        } finally {
+            this._lock.writeLock().unlock();
+        }
+    }
+
+    /**
+    * Drops a user and every follow to or from them after they were
+    * deleted.
+    *
+    * @param user the user_id that was deleted
+    */
+    public void remove(String user) {
+        this._lock.writeLock().lock();
+        try {
+            if(this._replay != null) {
+                this._replay.add(new String[] { user, null });
+            }
+            Integer id = this._ids.remove(user);
+            if(id != null) {
+                this._deleted.set(id);
+                changed();
+            }
+        } finally {
+            this._lock.writeLock().unlock();
+        }
+    }
+
+    /**
+    * @param user a user_id
+    * @return the number of users the user follows
+    */
+    public int followingCount(String user) {
+        return count(user, true);
+    }
+
+    /**
+    * @param user a user_id
+    * @return the number of users following the user
+    */
+    public int followerCount(String user) {
+        return count(user, false);
+    }
+
+    /**
+    * Suggests users followed by the users a user follows, ranked by how
+    * many of them follow each suggestion.
+    *
+    * @param user the user_id to suggest to
+    * @param limit the maximum number of users returned
+    * @return the suggestions, most mutual follows first
+    */
+    public List<Suggestion> suggest(String user, int limit) {
+        List<Suggestion> found = new ArrayList<Suggestion>();
+        this._lock.readLock().lock();
+        try {
+            final Integer self = this._ids.get(user);
+            if(self == null) {
+                return found;
+            }
+            final HashSet<Integer> followed = new HashSet<Integer>();
+            this._following.forEach(self, this._deleted, new Visitor() {
+                public boolean visit(int friend) {
+                    followed.add(friend);
+                    return true;
+                }
+            });
+            final HashMap<Integer, int[]> mutual =
+                new HashMap<Integer, int[]>();
+            for(int friend : followed) {
+                this._following.forEach(friend, this._deleted,
+                    new Visitor() {
+                        public boolean visit(int candidate) {
+                            if(candidate != self
+                                    && !followed.contains(candidate)) {
+                                int[] count = mutual.get(candidate);
+                                if(count == null) {
+                                    mutual.put(candidate, new int[] { 1 });
+                                } else {
+                                    ++count[0];
+                                }
+                            }
+                            return true;
+                        }
+                    });
+            }
+            List<Map.Entry<Integer, int[]>> ranked =
+                new ArrayList<Map.Entry<Integer, int[]>>(mutual.entrySet());
+            Collections.sort(ranked,
+                    new Comparator<Map.Entry<Integer, int[]>>() {
+                public int compare(Map.Entry<Integer, int[]> a,
+                        Map.Entry<Integer, int[]> b) {
+                    if(a.getValue()[0] != b.getValue()[0]) {
+                        return b.getValue()[0] - a.getValue()[0];
+                    }
+                    return a.getKey() - b.getKey();
+                }
+            });
+            for(int i = 0; i < ranked.size() && i < limit; ++i) {
+                found.add(new Suggestion(
+                    this._names.get(ranked.get(i).getKey()),
+                    ranked.get(i).getValue()[0]));
+            }
+        } finally {
+            this._lock.readLock().unlock();
+        }
+        return found;
+    }
+
+    /**
+    * Checks whether a chain of at most hops follows leads from one user to
+    * another.  Searches forward from the first user and backward from the
+    * second at the same time, always widening the smaller frontier.
+    *
+    * @param from the user the chain starts at
+    * @param to the user the chain ends at
+    * @param hops the longest chain allowed
+    * @return whether such a chain exists
+    */
+    public boolean isReachable(String from, String to, int hops) {
+        this._lock.readLock().lock();
+        try {
+            Integer source = this._ids.get(from);
+            Integer target = this._ids.get(to);
+            if(source == null || target == null) {
+                return false;
+            }
+            if(source.equals(target)) {
+                return true;
+            }
+            final HashSet<Integer> forward = new HashSet<Integer>();
+            final HashSet<Integer> backward = new HashSet<Integer>();
+            forward.add(source);
+            backward.add(target);
+            IntList forwardFrontier = new IntList();
+            IntList backwardFrontier = new IntList();
+            forwardFrontier.add(source);
+            backwardFrontier.add(target);
+            for(int depth = 0; depth < hops; ++depth) {
+                boolean ahead = forwardFrontier.size <= backwardFrontier.size;
+                IntList frontier = ahead ? forwardFrontier : backwardFrontier;
+                final HashSet<Integer> seen = ahead ? forward : backward;
+                final HashSet<Integer> other = ahead ? backward : forward;
+                final IntList next = new IntList();
+                final boolean[] met = new boolean[1];
+                for(int i = 0; i < frontier.size && !met[0]; ++i) {
+                    (ahead ? this._following : this._followers).forEach(
+                        frontier.values[i], this._deleted, new Visitor() {
+                            public boolean visit(int user) {
+                                if(other.contains(user)) {
+                                    met[0] = true;
+                                    return false;
+                                }
+                                if(seen.add(user)) {
+                                    next.add(user);
+                                }
+                                return true;
+                            }
+                        });
+                }
+                if(met[0]) {
+                    return true;
+                }
+                if(next.size == 0) {
+                    return false;
+                }
+                if(ahead) {
+                    forwardFrontier = next;
+                } else {
+                    backwardFrontier = next;
+                }
+            }
+            return false;
+        } finally {
+            this._lock.readLock().unlock();
+        }
+    }
+
+    /**
+    * Stops the scheduled reloads.
+    */
+    public void close() {
+        if(this._refresher != null) {
+            this._refresher.shutdownNow();
+        }
+    }
+
+    private int count(String user, boolean following) {
+        this._lock.readLock().lock();
+        try {
+            Integer id = this._ids.get(user);
+            if(id == null) {
+                return 0;
+            }
+            final int[] count = new int[1];
+            (following ? this._following : this._followers).forEach(id,
+                this._deleted, new Visitor() {
+                    public boolean visit(int other) {
+                        ++count[0];
+                        return true;
+                    }
+                });
+            return count[0];
+        } finally {
+            this._lock.readLock().unlock();
+        }
+    }
+
+    /*
+    ** rebuilds the arrays once the changes beside them grow too many.
+    ** callers hold the write lock.
+    */
+    private void changed() {
+        if(++this._changes
+                <= this._following.adj.length / COMPACT_RATIO + COMPACT_MIN) {
+            return;
+        }
+        final IntList follower = new IntList();
+        final IntList followed = new IntList();
+        for(int u = 0; u < this._names.size(); ++u) {
+            if(this._deleted.get(u)) {
+                continue;
+            }
+            final int from = u;
+            this._following.forEach(u, this._deleted, new Visitor() {
+                public boolean visit(int to) {
+                    follower.add(from);
+                    followed.add(to);
+                    return true;
+                }
+            });
+        }
+        install(this._ids, this._names, follower, followed);
+    }
+
+    /*
+    ** replaces the graph with the given edges; callers hold the write lock
+    ** or are the constructor.
+    */
+    private void install(HashMap<String, Integer> ids,
+            ArrayList<String> names, IntList follower, IntList followed) {
+        this._ids = ids;
+        this._names = names;
+        this._following = Edges.of(follower, followed, names.size());
+        this._followers = Edges.of(followed, follower, names.size());
+        this._deleted = new BitSet(names.size());
+        for(int u = 0; u < names.size(); ++u) {
+            if(!ids.containsKey(names.get(u))
+                    || ids.get(names.get(u)) != u) {
+                this._deleted.set(u);
+            }
+        }
+        this._changes = 0;
+    }
+
+    private static int intern(HashMap<String, Integer> ids,
+            ArrayList<String> names, String user) {
+        Integer id = ids.get(user);
+        if(id == null) {
+            id = names.size();
+            ids.put(user, id);
+            names.add(user);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * This class hands out primary keys from a SERIAL sequence.  It reserves a
+ * block of values with one round trip and then serves them from memory, so
+ * most inserts need no extra query.  Values come straight from nextval, so
+ * they never collide with other writers using the same sequence.
+ *
+ */
+public class IdAllocator {
+
+    /*
+    ** a reserved block of ids and the index of the next one to hand out.
+    */
+    private static class Block {
+        final long[] ids;
+        final AtomicInteger next = new AtomicInteger();
+
+        Block(long[] ids) {
+            this.ids = ids;
+        }
+    }
+
+    private final EmbeddedSQL _esql;
+    private final String _query;
+    private final int _blockSize;
+    private volatile Block _block = new Block(new long[0]);
+
+    /**
+    * Creates a new allocator for a sequence.
+    *
+    * @param esql the database the sequence lives in
+    * @param sequence the name of the sequence, e.g. orders_order_id_seq
+    * @param blockSize the number of values reserved per round trip
+    */
+    public IdAllocator(EmbeddedSQL esql, String sequence, int blockSize) {
+        this._esql = esql;
+        this._query = "SELECT nextval('" + sequence + "') "
+            + "FROM generate_series(1, ?)";
+        this._blockSize = blockSize;
+    }
+
+    /**
+    * Returns the next unused id.  Only the call that finds the current block
+    * exhausted goes to the database.
+    *
+    * @return a value reserved from the sequence
+    * @throws java.sql.SQLException when a new block cannot be reserved
+    */
+    public long next() throws SQLException {
+        while(true) {
+            Block block = this._block;
+            int i = block.next.getAndIncrement();
+            if(i < block.ids.length) {
+                return block.ids[i];
+            }
+            refill(block);
+        }
+    }
+
+    private synchronized void refill(Block exhausted) throws SQLException {
+        if(this._block != exhausted) {
+            return;
+        }
+        final long[] ids = new long[this._blockSize];
+        final int[] count = new int[1];
+        this._esql.forEachRow(this._query, new RowHandler() {
+            public void row(ResultSet rs) throws SQLException {
+                ids[count[0]++] = rs.getLong(1);
+            }
+        }, this._blockSize);
+        this._block = new Block(ids);
+    }
+}
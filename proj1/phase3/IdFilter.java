@@ -0,0 +1,200 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * This class answers "does this key exist" for the primary key of one
+ * table from a Bloom filter, so lookups of keys that do not exist never
+ * reach the database; only possible hits need a query to confirm them.
+ * The filter is built from the table at startup and new keys are added as
+ * this process inserts them.
+ *
+ * Keys inserted by other processes are missing from the filter, and
+ * deleted keys stay in it as false positives, until it is rebuilt.  It is
+ * rebuilt in the background on a fixed schedule, and sooner once deletes
+ * pass a tenth of the keys or adds pass the capacity it was sized for.
+ *
+ */
+public class IdFilter {
+
+    // share of deleted keys that triggers a rebuild.
+    private static final double STALE_RATIO = 0.1;
+    // rows fetched per round trip while rebuilding.
+    private static final int FETCH_SIZE = 10000;
+
+    private final EmbeddedSQL _esql;
+    private final String _query;
+    private final double _fpp;
+    private volatile BloomFilter _filter;
+    // the filter a rebuild is filling; keys added meanwhile go to both.
+    private volatile BloomFilter _next = null;
+    private final AtomicLong _removed = new AtomicLong();
+    private final AtomicBoolean _rebuilding = new AtomicBoolean();
+    private final AtomicLong _absent = new AtomicLong();
+    private final AtomicLong _maybe = new AtomicLong();
+    private final ScheduledExecutorService _rebuilder;
+
+    /**
+    * Creates a new filter, builds it from the table and schedules
+    * rebuilds.
+    *
+    * @param esql the database the table lives in
+    * @param name names the rebuild thread
+    * @param query selects every key of the table, as its first column
+    * @param fpp the false positive rate wanted
+    * @param refreshMillis milliseconds between rebuilds, to pick up keys
+    *        inserted outside this process
+    * @throws java.sql.SQLException when the initial build fails
+    */
+    public IdFilter(EmbeddedSQL esql, final String name, String query,
+            double fpp, long refreshMillis) throws SQLException {
+        this._esql = esql;
+        this._query = query;
+        this._fpp = fpp;
+        this._filter = new BloomFilter(0, fpp);
+        this._rebuilder = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name + "-filter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        this._rebuilding.set(true);
+        try {
+            rebuild();
+        } finally {
+            this._rebuilding.set(false);
+        }
+        this._rebuilder.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    rebuildLater();
+                }
+            }, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+    * @param key the key to test
+    * @return false if the key certainly does not exist, true if it may
+    */
+    public boolean mightContain(String key) {
+        boolean maybe = this._filter.mightContain(key);
+        (maybe ? this._maybe : this._absent).incrementAndGet();
+        return maybe;
+    }
+
+    /**
+    * Adds a key after this process inserted it.
+    *
+    * @param key the new key
+    */
+    public void add(String key) {
+        BloomFilter next = this._next;
+        if(next != null) {
+            next.add(key);
+        }
+        BloomFilter filter = this._filter;
+        filter.add(key);
+        if(filter.getAdded() > filter.getCapacity()) {
+            rebuildLater();
+        }
+    }
+
+    /**
+    * Notes that a key was deleted.  It still tests as maybe present until
+    * the next rebuild.
+    *
+    * @param key the deleted key
+    */
+    public void remove(String key) {
+        long removed = this._removed.incrementAndGet();
+        if(removed > STALE_RATIO * this._filter.getAdded()) {
+            rebuildLater();
+        }
+    }
+
+    /**
+    * Rebuilds the filter from the table, sized for twice the keys found,
+    * and replaces the current one.
+    *
+    * @throws java.sql.SQLException when the table cannot be read
+    */
+    public void rebuild() throws SQLException {
+        final int[] count = new int[1];
+        this._esql.forEachRow("SELECT count(*) FROM (" + this._query
+            + ") keys", new RowHandler() {
+                public void row(ResultSet rs) throws SQLException {
+                    count[0] = rs.getInt(1);
+                }
+            });
+        final BloomFilter next = new BloomFilter(2L * count[0] + 1024,
+            this._fpp);
+        this._next = next;
+        long removed = this._removed.get();
+        try {
+            this._esql.forEachRow(this._query, FETCH_SIZE, new RowHandler() {
+                public void row(ResultSet rs) throws SQLException {
+                    next.add(rs.getString(1));
+                }
+            });
+            this._filter = next;
+            this._removed.addAndGet(-removed);
+        } finally {
+            this._next = null;
+        }
+    }
+
+    /**
+    * Stops background rebuilds.
+    */
+    public void close() {
+        this._rebuilder.shutdownNow();
+    }
+
+    public String toString() {
+        BloomFilter filter = this._filter;
+        return filter.getAdded() + " keys in " + filter.getBits() / 8
+            + " bytes, " + this._absent.get() + " absent, "
+            + this._maybe.get() + " maybe present, " + this._removed.get()
+            + " removed since rebuild";
+    }
+
+    /*
+    ** schedules one rebuild unless one is already pending.
+    */
+    private void rebuildLater() {
+        if(!this._rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        this._rebuilder.execute(new Runnable() {
+            public void run() {
+                try {
+                    rebuild();
+                } catch(SQLException e) {
+                    System.err.println(e.getMessage());
+                } finally {
+                    _rebuilding.set(false);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * This class records watch, like, rate and comment events.  Each event is
+ * one INSERT ... ON CONFLICT statement, so the first event for a (user,
+ * video) pair inserts the row and later ones update its time (and rating)
+ * without a separate existence check.  Ratings also update the rating
+ * aggregates of their video in the same transaction, and the events are
+ * fanned out to the wall feed there too.  Once the transaction commits
+ * they are put on cached walls and counted towards what is trending,
+ * neither of which can fail, so a failed write never leaves anything
+ * published and a retried one never publishes twice.
+ *
+ */
+public class Interactions {
+
+    // kind of a comment event; comments do not appear on walls.
+    public static final String COMMENTED = "commented";
+
+    /**
+     * One watch, like, rate or comment.
+     */
+    public static class Event {
+        public final String kind;
+        public final String user;
+        public final int videoId;
+        public final int rating;
+        public final Timestamp time;
+        public final long commentId;
+        public final String content;
+
+        /**
+        * @param kind ActivityFeed.WATCHED, LIKED or RATED
+        * @param user the user who acted
+        * @param videoId the video acted on
+        * @param rating the rating for RATED events, -1 otherwise
+        * @param time when the event happened
+        */
+        public Event(String kind, String user, int videoId, int rating,
+                Timestamp time) {
+            this(kind, user, videoId, rating, time, 0, null);
+        }
+
+        /**
+        * @param kind ActivityFeed.WATCHED, LIKED, RATED or COMMENTED
+        * @param user the user who acted
+        * @param videoId the video acted on
+        * @param rating the rating for RATED events, -1 otherwise
+        * @param time when the event happened
+        * @param commentId the comment_id for COMMENTED events
+        * @param content the comment text for COMMENTED events
+        */
+        public Event(String kind, String user, int videoId, int rating,
+                Timestamp time, long commentId, String content) {
+            this.kind = kind;
+            this.user = user;
+            this.videoId = videoId;
+            this.rating = rating;
+            this.time = time;
+            this.commentId = commentId;
+            this.content = content;
+        }
+    }
+
+    private static final String WATCH_SQL =
+        "INSERT INTO watch(user_id, video_id, watch_time) VALUES(?, ?, ?) "
+        + "ON CONFLICT (user_id, video_id) "
+        + "DO UPDATE SET watch_time=EXCLUDED.watch_time";
+    private static final String LIKE_SQL =
+        "INSERT INTO likes(user_id, video_id, like_time) VALUES(?, ?, ?) "
+        + "ON CONFLICT (user_id, video_id) "
+        + "DO UPDATE SET like_time=EXCLUDED.like_time";
+    private static final String RATE_SQL =
+        "INSERT INTO rate(user_id, video_id, rate_time, rating) "
+        + "VALUES(?, ?, ?, ?) ON CONFLICT (user_id, video_id) "
+        + "DO UPDATE SET rate_time=EXCLUDED.rate_time, "
+        + "rating=EXCLUDED.rating";
+    // comment ids are allocated up front, so a replayed comment finds its
+    // own row and changes nothing.  a row of another comment under the same
+    // id is left alone and the statement reports 0 rows.
+    private static final String COMMENT_SQL =
+        "INSERT INTO comment(comment_id, user_id, video_id, comment_time, "
+        + "content) VALUES(?, ?, ?, ?, ?) ON CONFLICT (comment_id) "
+        + "DO UPDATE SET content=comment.content "
+        + "WHERE comment.user_id=EXCLUDED.user_id "
+        + "AND comment.video_id=EXCLUDED.video_id "
+        + "AND comment.comment_time=EXCLUDED.comment_time";
+
+    private final EmbeddedSQL _esql;
+    private final ActivityFeed _feed;
+    private final Trending _trending;
+
+    /**
+    * Creates a new recorder that does not count trending videos.
+    *
+    * @param esql the database the interaction tables live in
+    * @param feed the feed events are fanned out to, or null for none
+    */
+    public Interactions(EmbeddedSQL esql, ActivityFeed feed) {
+        this(esql, feed, null);
+    }
+
+    /**
+    * Creates a new recorder.
+    *
+    * @param esql the database the interaction tables live in
+    * @param feed the feed events are fanned out to, or null for none
+    * @param trending the engine events are counted by, or null for none
+    */
+    public Interactions(EmbeddedSQL esql, ActivityFeed feed,
+            Trending trending) {
+        this._esql = esql;
+        this._feed = feed;
+        this._trending = trending;
+    }
+
+    /**
+    * Records one event in its own transaction.
+    *
+    * @param event the event to record
+    * @throws java.sql.SQLException when the write fails
+    */
+    public void record(Event event) throws SQLException {
+        recordAll(Collections.singletonList(event));
+    }
+
+    /**
+    * Records many events in one transaction, sending each kind of event as
+    * a single JDBC batch.  Events for the same (user, video) pair are
+    * applied in list order.
+    *
+    * @param events the events to record
+    * @throws java.sql.SQLException when the transaction fails; no event is
+    *         recorded in that case
+    */
+    public void recordAll(List<Event> events) throws SQLException {
+        recordAll(events, true);
+    }
+
+    /**
+    * Records many events in one transaction, optionally without fanning
+    * them out to walls or counting them as trending.  Replays of events
+    * that may already have been published write the rows only.
+    *
+    * @param events the events to record
+    * @param publish whether to publish the events
+    * @throws java.sql.SQLException when the transaction fails; no event is
+    *         recorded in that case
+    */
+    public void recordAll(final List<Event> events, final boolean publish)
+            throws SQLException {
+        if(events.isEmpty()) {
+            return;
+        }
+        List<ActivityFeed.Delivery> delivered = this._esql.inTransaction(
+                new Transaction<List<ActivityFeed.Delivery>>() {
+            public List<ActivityFeed.Delivery> run(PooledConnection conn)
+                    throws SQLException {
+                PreparedStatement watch = null;
+                PreparedStatement like = null;
+                PreparedStatement rate = null;
+                PreparedStatement comment = null;
+                List<Event> rated = new ArrayList<Event>();
+                List<Event> commented = new ArrayList<Event>();
+                for(Event event : events) {
+                    PreparedStatement stmt;
+                    if(COMMENTED.equals(event.kind)) {
+                        comment = (comment != null ? comment
+                            : conn.prepare(COMMENT_SQL));
+                        comment.setLong(1, event.commentId);
+                        comment.setString(2, event.user);
+                        comment.setInt(3, event.videoId);
+                        comment.setTimestamp(4, event.time);
+                        comment.setString(5, event.content);
+                        comment.addBatch();
+                        commented.add(event);
+                        continue;
+                    } else if(ActivityFeed.WATCHED.equals(event.kind)) {
+                        stmt = watch = (watch != null ? watch
+                            : conn.prepare(WATCH_SQL));
+                    } else if(ActivityFeed.LIKED.equals(event.kind)) {
+                        stmt = like = (like != null ? like
+                            : conn.prepare(LIKE_SQL));
+                    } else {
+                        stmt = rate = (rate != null ? rate
+                            : conn.prepare(RATE_SQL));
+                        stmt.setInt(4, event.rating);
+                        rated.add(event);
+                    }
+                    stmt.setString(1, event.user);
+                    stmt.setInt(2, event.videoId);
+                    stmt.setTimestamp(3, event.time);
+                    stmt.addBatch();
+                }
+                RatingAggregates.apply(conn, rated);
+                for(PreparedStatement stmt : new PreparedStatement[] {
+                        watch, like, rate }) {
+                    if(stmt != null) {
+                        stmt.executeBatch();
+                    }
+                }
+                if(comment != null) {
+                    int[] counts = comment.executeBatch();
+                    for(int i = 0; i < counts.length; ++i) {
+                        if(counts[i] == 0) {
+                            throw collision(commented.get(i));
+                        }
+                    }
+                }
+                if(!publish || _feed == null) {
+                    return Collections.<ActivityFeed.Delivery>emptyList();
+                }
+                return _feed.fanOut(conn, events);
+            }
+        });
+        if(!publish) {
+            return;
+        }
+        if(this._feed != null) {
+            this._feed.deliver(delivered);
+        }
+        if(this._trending != null) {
+            for(Event event : events) {
+                this._trending.record(event.kind, event.videoId,
+                    event.rating, event.time);
+            }
+        }
+    }
+
+    /*
+    ** a comment_id already used by a different comment, e.g. while the
+    ** comment sequence is behind the table. reported as a unique violation
+    ** so nobody mistakes it for a transient failure.
+    */
+    private static SQLException collision(Event event) {
+        return new SQLException("comment_id " + event.commentId
+            + " already belongs to another comment", "23505");
+    }
+
+    private static String sql(String kind) {
+        if(ActivityFeed.WATCHED.equals(kind)) {
+            return WATCH_SQL;
+        } else if(ActivityFeed.LIKED.equals(kind)) {
+            return LIKE_SQL;
+        }
+        throw new IllegalArgumentException("Unknown interaction: " + kind);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * This class counts latencies in log-linear buckets, the layout used by
+ * HDR histograms: every power of two is split into 64 linear sub-buckets,
+ * so any recorded value is reported within 1.6% of its true value while
+ * the whole range of a long fits in a few thousand counters.  Recording is
+ * lock-free and safe from any number of threads.
+ *
+ */
+public class LatencyHistogram {
+
+    // values below this are counted exactly.
+    private static final int LINEAR = 128;
+    private static final int SUB_BUCKETS = 64;
+    private static final int BUCKETS = LINEAR + 57 * SUB_BUCKETS;
+
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong _total = new AtomicLong();
+    private final AtomicLong _sum = new AtomicLong();
+    private final AtomicLong _max = new AtomicLong();
+
+    /**
+    * Counts one value.  Negative values are counted as zero.
+    *
+    * @param value the latency, in whatever unit the caller reports
+    */
+    public void record(long value) {
+        value = Math.max(0, value);
+        this._counts.incrementAndGet(index(value));
+        this._total.incrementAndGet();
+        this._sum.addAndGet(value);
+        long max;
+        while(value > (max = this._max.get())) {
+            if(this._max.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+    * @return the number of values recorded
+    */
+    public long getCount() {
+        return this._total.get();
+    }
+
+    /**
+    * @return the sum of the values recorded
+    */
+    public long getSum() {
+        return this._sum.get();
+    }
+
+    /**
+    * @return the largest value recorded, or 0 if none was
+    */
+    public long getMax() {
+        return this._max.get();
+    }
+
+    /**
+    * @return the mean of the values recorded, or 0 if none was
+    */
+    public double getMean() {
+        long count = this._total.get();
+        return count == 0 ? 0 : (double)this._sum.get() / count;
+    }
+
+    /**
+    * @param percentile between 0 and 100
+    * @return the highest value equivalent to the value at that percentile,
+    *         or 0 if nothing was recorded
+    */
+    public long getValueAt(double percentile) {
+        long count = this._total.get();
+        if(count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; ++i) {
+            seen += this._counts.get(i);
+            if(seen >= rank) {
+                return Math.min(highest(i), this._max.get());
+            }
+        }
+        return this._max.get();
+    }
+
+    /**
+    * Adds every value recorded by another histogram to this one.
+    *
+    * @param other the histogram to add
+    */
+    public void add(LatencyHistogram other) {
+        for(int i = 0; i < BUCKETS; ++i) {
+            long n = other._counts.get(i);
+            if(n != 0) {
+                this._counts.addAndGet(i, n);
+            }
+        }
+        this._total.addAndGet(other._total.get());
+        this._sum.addAndGet(other._sum.get());
+        long value = other._max.get();
+        long max;
+        while(value > (max = this._max.get())) {
+            if(this._max.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    public String toString() {
+        return "count=" + getCount() + " mean=" + Math.round(getMean())
+            + " p50=" + getValueAt(50) + " p90=" + getValueAt(90)
+            + " p99=" + getValueAt(99) + " p99.9=" + getValueAt(99.9)
+            + " max=" + getMax();
+    }
+
+    private static int index(long value) {
+        if(value < LINEAR) {
+            return (int)value;
+        }
+        // shift brings value into [SUB_BUCKETS, 2 * SUB_BUCKETS)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+        return LINEAR + (shift - 1) * SUB_BUCKETS
+            + (int)(value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highest(int index) {
+        if(index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        if(sub + 1 > (Long.MAX_VALUE >> shift)) {
+            return Long.MAX_VALUE;
+        }
+        return ((sub + 1) << shift) - 1;
+    }
+}
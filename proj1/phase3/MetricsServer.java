@@ -0,0 +1,106 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * This class serves the query statistics and connection pool gauges of an
+ * EmbeddedSQL in the Prometheus text format at /metrics.  It only listens
+ * on the loopback address, like MovieNetServer.
+ *
+ */
+public class MetricsServer {
+
+    private final HttpServer _server;
+
+    /**
+    * Starts serving metrics.
+    *
+    * @param esql the database whose statistics are served
+    * @param port the local port to listen on
+    * @throws java.io.IOException when the port cannot be bound
+    */
+    public MetricsServer(final EmbeddedSQL esql, int port) throws IOException {
+        this._server = HttpServer.create(new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), port), 16);
+        this._server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = render(esql).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type",
+                    "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+        this._server.start();
+    }
+
+    /**
+    * Stops serving metrics.
+    */
+    public void close() {
+        this._server.stop(0);
+    }
+
+    private static String render(EmbeddedSQL esql) {
+        StringBuilder out = new StringBuilder();
+        esql.getMetrics().prometheus(out);
+        ConnectionPool pool = esql.getPool();
+        gauge(out, "movienet_pool_active", "Connections borrowed.",
+            pool.getActiveCount());
+        gauge(out, "movienet_pool_idle", "Connections waiting in the pool.",
+            pool.getIdleCount());
+        gauge(out, "movienet_pool_max", "Maximum open connections.",
+            pool.getMaxSize());
+        counter(out, "movienet_pool_borrows_total", "Connections borrowed.",
+            pool.getBorrowCount());
+        counter(out, "movienet_pool_timeouts_total",
+            "Borrows that gave up waiting.", pool.getTimeoutCount());
+        counter(out, "movienet_pool_wait_seconds_total",
+            "Time spent waiting for connections.",
+            pool.getTotalWaitMillis() / 1e3);
+        return out.toString();
+    }
+
+    private static void gauge(StringBuilder out, String name, String help,
+            Number value) {
+        metric(out, name, "gauge", help, value);
+    }
+
+    private static void counter(StringBuilder out, String name, String help,
+            Number value) {
+        metric(out, name, "counter", help, value);
+    }
+
+    private static void metric(StringBuilder out, String name, String type,
+            String help, Number value) {
+        out.append("# HELP ").append(name).append(' ').append(help)
+            .append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type)
+            .append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * This class serves Movie Net sessions over TCP on localhost.  Each client
+ * connection gets its own Session and runs the usual menus, reading one
+ * line per input and receiving the same text the console shows.
+ *
+ */
+public class MovieNetServer {
+
+    private final int _port;
+    private final ExecutorService _sessions;
+    private final AtomicInteger _open = new AtomicInteger();
+
+    /**
+    * Creates a new server for the given local port.
+    *
+    * @param port the TCP port to listen on
+    */
+    public MovieNetServer(int port) {
+        this._port = port;
+        this._sessions = newSessionExecutor();
+    }
+
+    /**
+    * Accepts client connections until the process is stopped.
+    *
+    * @throws java.io.IOException when the listening socket fails
+    */
+    public void serve() throws IOException {
+        ServerSocket server = new ServerSocket(this._port, 128,
+            InetAddress.getLoopbackAddress());
+        System.out.println("Movie Net listening on "
+            + server.getLocalSocketAddress());
+        try {
+            while(true) {
+                final Socket client = server.accept();
+                this._sessions.execute(new Runnable() {
+                        public void run() {
+                            handle(client);
+                        }
+                    });
+            }
+        } finally {
+            server.close();
+            this._sessions.shutdownNow();
+        }
+    }
+
+    /**
+    * @return the number of sessions currently connected
+    */
+    public int getOpenSessions() {
+        return this._open.get();
+    }
+
+    private void handle(Socket client) {
+        this._open.incrementAndGet();
+        try {
+            Session session = new Session(
+                new BufferedReader(new InputStreamReader(
+                    client.getInputStream(), "UTF-8")),
+                new PrintStream(client.getOutputStream(), false, "UTF-8"));
+            Session.attach(session);
+            try {
+                EmbeddedSQL.runSession();
+                session.out.println("\nBye !");
+                session.out.flush();
+            } catch(Session.ClosedError e) {
+            }
+        } catch(Exception e) {
+            System.err.println(e.getMessage());
+        } finally {
+            Session.attach(null);
+            this._open.decrementAndGet();
+            try {
+                client.close();
+            } catch(IOException e) {
+            }
+        }
+    }
+
+    /*
+    ** sessions spend nearly all their time blocked on user input, so run
+    ** each one on a virtual thread when the JVM has them (Java 21+) and fall
+    ** back to a cached pool of platform threads otherwise.
+    */
+    private static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(Exception e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * This class keeps the permission table in memory, one small bitset per
+ * user with a bit set for every kind of activity the user made private.
+ * The table is loaded in bulk at startup and changes are written through
+ * to the database before they are applied here, so visibility checks never
+ * touch the database.
+ *
+ * A user without a permission row shares nothing, as the joins against
+ * the table used to treat them.
+ *
+ */
+public class Permissions {
+
+    // one bit per column; set means private.
+    public static final int LIKES = 1;
+    public static final int RATE = 2;
+    public static final int WATCH = 4;
+    public static final int PLAYLISTS = 8;
+    // the bits of a user without a permission row.
+    private static final int NO_ROW = LIKES | RATE | WATCH | PLAYLISTS;
+
+    private final EmbeddedSQL _esql;
+    private final ConcurrentHashMap<String, Integer> _private =
+        new ConcurrentHashMap<String, Integer>();
+
+    /**
+    * Creates a new permission service and loads the permission table.
+    *
+    * @param esql the database the permission table lives in
+    * @throws java.sql.SQLException when the load fails
+    */
+    public Permissions(EmbeddedSQL esql) throws SQLException {
+        this._esql = esql;
+        this._esql.forEachRow("SELECT user_id, likes, rate, watch, "
+            + "playlists FROM permission", this._esql.getFetchSize(),
+            new RowHandler() {
+                public void row(ResultSet rs) throws SQLException {
+                    int bits = 0;
+                    for(int i = 0; i < 4; ++i) {
+                        if(!"public".equals(rs.getString(i + 2))) {
+                            bits |= 1 << i;
+                        }
+                    }
+                    _private.put(rs.getString(1), bits);
+                }
+            });
+    }
+
+    /*
+    ** a service with no table behind it: users share nothing until
+    ** remember() gives them a row.
+    */
+    Permissions() {
+        this._esql = null;
+    }
+
+    /**
+    * @param user a user_id
+    * @param kind one of LIKES, RATE, WATCH or PLAYLISTS
+    * @return whether the user shares that kind of activity
+    */
+    public boolean isPublic(String user, int kind) {
+        Integer bits = this._private.get(user);
+        return ((bits == null ? NO_ROW : bits) & kind) == 0;
+    }
+
+    /**
+    * Makes one kind of a user's activity public or private, in the
+    * database first and then in memory.  Creates the user's permission row
+    * if there is none, with everything else public.
+    *
+    * @param user a user_id
+    * @param kind one of LIKES, RATE, WATCH or PLAYLISTS
+    * @param shared true for public, false for private
+    * @throws java.sql.SQLException when the database cannot be updated
+    */
+    public void set(String user, int kind, boolean shared)
+            throws SQLException {
+        String column = column(kind);
+        this._esql.executeUpdate("INSERT INTO permission(user_id, " + column
+            + ") VALUES(?, ?) ON CONFLICT (user_id) DO UPDATE SET "
+            + column + "=EXCLUDED." + column, user,
+            shared ? "public" : "private");
+        remember(user, kind, shared);
+    }
+
+    /*
+    ** makes one kind of a user's activity public or private in memory only.
+    */
+    void remember(String user, int kind, boolean shared) {
+        while(true) {
+            Integer bits = this._private.get(user);
+            if(bits == null) {
+                if(this._private.putIfAbsent(user,
+                        shared ? 0 : kind) == null) {
+                    return;
+                }
+            } else if(this._private.replace(user, bits,
+                    shared ? bits & ~kind : bits | kind)) {
+                return;
+            }
+        }
+    }
+
+    /**
+    * Forgets a user after they were deleted.
+    *
+    * @param user the user_id that was deleted
+    */
+    public void remove(String user) {
+        this._private.remove(user);
+    }
+
+    /**
+    * @param kind one of ActivityFeed.WATCHED, LIKED or RATED
+    * @return the permission bit that governs it
+    */
+    public static int of(String kind) {
+        if(ActivityFeed.WATCHED.equals(kind)) {
+            return WATCH;
+        } else if(ActivityFeed.LIKED.equals(kind)) {
+            return LIKES;
+        } else if(ActivityFeed.RATED.equals(kind)) {
+            return RATE;
+        }
+        throw new IllegalArgumentException("Unknown feed item kind: " + kind);
+    }
+
+    private static String column(int kind) {
+        switch(kind) {
+        case LIKES: return "likes";
+        case RATE: return "rate";
+        case WATCH: return "watch";
+        case PLAYLISTS: return "playlists";
+        default:
+            throw new IllegalArgumentException("Unknown permission: " + kind);
+        }
+    }
+}
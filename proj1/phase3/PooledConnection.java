@@ -0,0 +1,90 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+
+/**
+ * This class wraps one physical connection handed out by ConnectionPool,
+ * together with the prepared statements cached on it.
+ *
+ */
+public class PooledConnection {
+
+    private final Connection _connection;
+    private final StatementCache _statements;
+    private final long _createdAt;
+    private long _lastUsed;
+    private boolean _broken = false;
+
+    PooledConnection(Connection connection, int statementCacheSize) {
+        this._connection = connection;
+        this._statements = new StatementCache(connection, statementCacheSize);
+        this._createdAt = System.currentTimeMillis();
+        this._lastUsed = this._createdAt;
+    }
+
+    /**
+    * @return the underlying physical connection
+    */
+    public Connection getConnection() {
+        return this._connection;
+    }
+
+    /**
+    * Returns the cached statement for a template with parameters bound.
+    *
+    * @param sql the SQL template using '?' placeholders
+    * @param params the values to bind to the placeholders
+    * @return the prepared statement ready to execute
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+    public PreparedStatement prepare(String sql, Object... params)
+            throws SQLException {
+        return this._statements.prepare(sql, params);
+    }
+
+    /**
+    * Marks the connection as unusable so the pool discards it on release
+    * instead of handing it out again.
+    */
+    public void markBroken() {
+        this._broken = true;
+    }
+
+    boolean isBroken() {
+        return this._broken;
+    }
+
+    long getCreatedAt() {
+        return this._createdAt;
+    }
+
+    long getLastUsed() {
+        return this._lastUsed;
+    }
+
+    void touch() {
+        this._lastUsed = System.currentTimeMillis();
+    }
+
+    void close() {
+        this._statements.clear();
+        try {
+            this._connection.close();
+        } catch (SQLException e) {
+        }
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * This class keeps statistics for every query EmbeddedSQL runs: how often
+ * it ran, how often it failed, how many rows it returned or changed and
+ * how long it took.  Statistics are kept per user action and query
+ * template.  The action is the menu function that issued the query, named
+ * by the Tracer span open on the calling thread; queries run outside any
+ * span are counted under the name of the background thread that ran them.
+ * Literals in unparameterized SQL are replaced by '?' so every call of the
+ * same statement lands in one template.
+ *
+ * The statistics can be read over JMX as movienet:type=QueryMetrics and in
+ * the Prometheus text format from prometheus().
+ *
+ */
+public class QueryMetrics implements QueryMetricsMXBean {
+
+    // distinct (action, template) pairs kept before the rest are lumped.
+    private static final int MAX_KEYS = 1000;
+    private static final String OTHER = "other";
+
+    private static final Pattern STRING = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER =
+        Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+    private static final Pattern SPACE = Pattern.compile("\\s+");
+
+    /*
+    ** statistics of one (action, template) pair.
+    */
+    private static class Stats {
+        final String action;
+        final String template;
+        final LongAdder errors = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        // latency in microseconds; its count is the number of runs.
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        Stats(String action, String template) {
+            this.action = action;
+            this.template = template;
+        }
+    }
+
+    /**
+     * Times one query.  Call ok with the row count when the query
+     * succeeds and stop in a finally block; a query stopped without ok is
+     * counted as failed.
+     */
+    public class Timer {
+        private final String _sql;
+        private final boolean _literal;
+        private final Object[] _params;
+        private final long _start = System.nanoTime();
+        private int _rows = -1;
+
+        Timer(String sql, boolean literal, Object[] params) {
+            this._sql = sql;
+            this._literal = literal;
+            this._params = params;
+        }
+
+        /**
+        * @param rows the rows returned or changed
+        * @return rows, so it can be returned directly
+        */
+        public int ok(int rows) {
+            this._rows = rows;
+            return rows;
+        }
+
+        public void stop() {
+            record(this._sql, this._literal, this._params,
+                System.nanoTime() - this._start, this._rows);
+        }
+    }
+
+    /**
+     * What one (action, template) pair has done, as exposed over JMX.
+     */
+    public static class Snapshot {
+        private final String _action;
+        private final String _template;
+        private final long _count;
+        private final long _errors;
+        private final long _rows;
+        private final double _meanMicros;
+        private final long _p50Micros;
+        private final long _p99Micros;
+        private final long _maxMicros;
+
+        @ConstructorProperties({ "action", "template", "count", "errors",
+            "rows", "meanMicros", "p50Micros", "p99Micros", "maxMicros" })
+        public Snapshot(String action, String template, long count,
+                long errors, long rows, double meanMicros, long p50Micros,
+                long p99Micros, long maxMicros) {
+            this._action = action;
+            this._template = template;
+            this._count = count;
+            this._errors = errors;
+            this._rows = rows;
+            this._meanMicros = meanMicros;
+            this._p50Micros = p50Micros;
+            this._p99Micros = p99Micros;
+            this._maxMicros = maxMicros;
+        }
+
+        public String getAction() {
+            return this._action;
+        }
+
+        public String getTemplate() {
+            return this._template;
+        }
+
+        public long getCount() {
+            return this._count;
+        }
+
+        public long getErrors() {
+            return this._errors;
+        }
+
+        public long getRows() {
+            return this._rows;
+        }
+
+        public double getMeanMicros() {
+            return this._meanMicros;
+        }
+
+        public long getP50Micros() {
+            return this._p50Micros;
+        }
+
+        public long getP99Micros() {
+            return this._p99Micros;
+        }
+
+        public long getMaxMicros() {
+            return this._maxMicros;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Stats> _stats =
+        new ConcurrentHashMap<String, Stats>();
+    // templates already normalized, keyed by the SQL they came from.
+    private final ConcurrentHashMap<String, String> _templates =
+        new ConcurrentHashMap<String, String>();
+    private volatile SlowQueryLog _slowLog = null;
+
+    /**
+    * Starts timing a parameterized query.
+    *
+    * @param sql the SQL template
+    * @param params the values bound to the template
+    * @return the timer to stop when the query is done
+    */
+    public Timer start(String sql, Object... params) {
+        return new Timer(sql, false, params);
+    }
+
+    /**
+    * Starts timing a query whose SQL may contain literal values.
+    *
+    * @param sql the SQL as sent
+    * @return the timer to stop when the query is done
+    */
+    public Timer startLiteral(String sql) {
+        return new Timer(sql, true, null);
+    }
+
+    /**
+    * Sends queries slower than the log's threshold to it.
+    *
+    * @param slowLog the log, or null to stop logging
+    */
+    public void setSlowLog(SlowQueryLog slowLog) {
+        this._slowLog = slowLog;
+    }
+
+    /**
+    * Registers the statistics with the platform MBean server.
+    *
+    * @throws javax.management.JMException when registration fails
+    */
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("movienet:type=QueryMetrics");
+        if(server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+    }
+
+    public List<Snapshot> getQueries() {
+        List<Snapshot> out = new ArrayList<Snapshot>();
+        for(Stats s : this._stats.values()) {
+            LatencyHistogram h = s.latency;
+            out.add(new Snapshot(s.action, s.template, h.getCount(),
+                s.errors.sum(), s.rows.sum(), h.getMean(), h.getValueAt(50),
+                h.getValueAt(99), h.getMax()));
+        }
+        return out;
+    }
+
+    public long getTotalCount() {
+        long total = 0;
+        for(Stats s : this._stats.values()) {
+            total += s.latency.getCount();
+        }
+        return total;
+    }
+
+    public long getTotalErrors() {
+        long total = 0;
+        for(Stats s : this._stats.values()) {
+            total += s.errors.sum();
+        }
+        return total;
+    }
+
+    public void reset() {
+        this._stats.clear();
+    }
+
+    /**
+    * Writes the statistics in the Prometheus text exposition format.
+    *
+    * @param out where the metrics are appended
+    */
+    public void prometheus(StringBuilder out) {
+        out.append("# HELP movienet_query_seconds Query latency.\n");
+        out.append("# TYPE movienet_query_seconds summary\n");
+        for(Stats s : this._stats.values()) {
+            String labels = "action=\"" + label(s.action) + "\",query=\""
+                + label(s.template) + "\"";
+            LatencyHistogram h = s.latency;
+            for(double q : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+                out.append("movienet_query_seconds{").append(labels)
+                    .append(",quantile=\"").append(q).append("\"} ")
+                    .append(h.getValueAt(q * 100) / 1e6).append('\n');
+            }
+            out.append("movienet_query_seconds_sum{").append(labels)
+                .append("} ").append(h.getSum() / 1e6).append('\n');
+            out.append("movienet_query_seconds_count{").append(labels)
+                .append("} ").append(h.getCount()).append('\n');
+        }
+        out.append("# HELP movienet_query_errors_total Failed queries.\n");
+        out.append("# TYPE movienet_query_errors_total counter\n");
+        for(Stats s : this._stats.values()) {
+            out.append("movienet_query_errors_total{action=\"")
+                .append(label(s.action)).append("\",query=\"")
+                .append(label(s.template)).append("\"} ")
+                .append(s.errors.sum()).append('\n');
+        }
+        out.append("# HELP movienet_query_rows_total Rows returned or "
+            + "changed.\n");
+        out.append("# TYPE movienet_query_rows_total counter\n");
+        for(Stats s : this._stats.values()) {
+            out.append("movienet_query_rows_total{action=\"")
+                .append(label(s.action)).append("\",query=\"")
+                .append(label(s.template)).append("\"} ")
+                .append(s.rows.sum()).append('\n');
+        }
+    }
+
+    /**
+    * @param sql SQL that may contain literal values
+    * @return the SQL with literals replaced by '?' and whitespace
+    *         collapsed
+    */
+    public static String normalize(String sql) {
+        String template = STRING.matcher(sql).replaceAll("?");
+        template = NUMBER.matcher(template).replaceAll("?");
+        return SPACE.matcher(template).replaceAll(" ").trim();
+    }
+
+    private void record(String sql, boolean literal, Object[] params,
+            long nanos, int rows) {
+        String template = sql;
+        if(literal) {
+            template = this._templates.get(sql);
+            if(template == null) {
+                template = normalize(sql);
+                if(this._templates.size() < MAX_KEYS) {
+                    this._templates.put(sql, template);
+                }
+            }
+        }
+        Tracer.record(template, nanos, rows);
+        String action = action();
+        SlowQueryLog slowLog = this._slowLog;
+        if(slowLog != null && slowLog.isSlow(nanos)) {
+            slowLog.log(action, template, sql, params, nanos, rows);
+        }
+        String key = action + "\n" + template;
+        Stats stats = this._stats.get(key);
+        if(stats == null) {
+            Stats created = new Stats(action, template);
+            if(this._stats.size() >= MAX_KEYS) {
+                key = OTHER;
+                created = new Stats(OTHER, OTHER);
+            }
+            stats = this._stats.putIfAbsent(key, created);
+            if(stats == null) {
+                stats = created;
+            }
+        }
+        stats.latency.record(nanos / 1000);
+        if(rows < 0) {
+            stats.errors.increment();
+        } else {
+            stats.rows.add(rows);
+        }
+    }
+
+    /*
+    ** the action of the span open on the calling thread, or failing that
+    ** the name of the thread. session threads are unnamed, and their
+    ** queries outside a span, like the super user check, count as other.
+    */
+    private static String action() {
+        String action = Tracer.currentAction();
+        if(action != null) {
+            return action;
+        }
+        String thread = Thread.currentThread().getName();
+        return thread.isEmpty() || Session.peek() != null ? OTHER : thread;
+    }
+
+    private static String label(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"")
+            .replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.List;
+
+
+/**
+ * The JMX view of QueryMetrics.
+ *
+ */
+public interface QueryMetricsMXBean {
+
+    /**
+    * @return the statistics of every (action, query template) pair
+    */
+    List<QueryMetrics.Snapshot> getQueries();
+
+    /**
+    * @return the number of queries run since startup or the last reset
+    */
+    long getTotalCount();
+
+    /**
+    * @return the number of queries that failed
+    */
+    long getTotalErrors();
+
+    /**
+    * Forgets every statistic gathered so far.
+    */
+    void reset();
+}
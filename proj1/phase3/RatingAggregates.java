@@ -0,0 +1,386 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * This class keeps the rating aggregates of the video table in step with
+ * the rate table: votes (the number of ratings), rating_sum, rating (the
+ * rounded average) and rating_histogram (the number of each rating from 1
+ * to 10).  Every write to rate applies its difference to the aggregates in
+ * the same transaction, with the video row locked, so the aggregates never
+ * need an AVG() over rate to read.
+ *
+ * A verification job recomputes the aggregates from rate in ranges of
+ * video_ids on several threads and repairs any row that drifted, e.g. from
+ * rows changed outside this program.
+ *
+ */
+public class RatingAggregates {
+
+    public static final int MIN_RATING = 1;
+    public static final int MAX_RATING = 10;
+    // video_ids verified per transaction.
+    private static final int CHUNK = 1000;
+
+    /**
+     * The aggregates of one video.
+     */
+    public static class Summary {
+        public final int votes;
+        public final long sum;
+        // histogram[r - MIN_RATING] is the number of ratings of r.
+        public final int[] histogram;
+
+        public Summary(int votes, long sum, int[] histogram) {
+            this.votes = votes;
+            this.sum = sum;
+            this.histogram = histogram;
+        }
+
+        /**
+        * @return the average rating, or 0 when there are no votes
+        */
+        public double average() {
+            return this.votes == 0 ? 0 : (double)this.sum / this.votes;
+        }
+    }
+
+    private static final String LOCK_SQL =
+        "SELECT video_id FROM video WHERE video_id=? FOR NO KEY UPDATE";
+    private static final String OLD_SQL =
+        "SELECT rating FROM rate WHERE user_id=? AND video_id=?";
+    private static final String UPDATE_SQL;
+    private static final String SUMMARY_SQL;
+    private static final String VERIFY_SQL;
+    static {
+        StringBuilder update = new StringBuilder("UPDATE video SET "
+            + "votes=votes+?, rating_sum=rating_sum+?, "
+            + "rating=CASE WHEN votes+?>0 "
+            + "THEN round((rating_sum+?)::numeric/(votes+?)) END, "
+            + "rating_histogram=ARRAY[");
+        StringBuilder summary = new StringBuilder(
+            "SELECT votes, rating_sum");
+        StringBuilder histogram = new StringBuilder("ARRAY[");
+        for(int r = MIN_RATING; r <= MAX_RATING; ++r) {
+            String comma = (r == MIN_RATING ? "" : ", ");
+            int i = r - MIN_RATING + 1;
+            update.append(comma).append("rating_histogram[" + i + "]+?");
+            summary.append(", rating_histogram[" + i + "]");
+            histogram.append(comma)
+                .append("count(*) FILTER (WHERE r.rating=" + r + ")");
+        }
+        UPDATE_SQL = update.append("] WHERE video_id=?").toString();
+        SUMMARY_SQL = summary.append(" FROM video WHERE video_id=?")
+            .toString();
+        histogram.append("]::integer[]");
+        VERIFY_SQL = "UPDATE video v SET votes=a.votes, "
+            + "rating_sum=a.total, rating=a.rating, "
+            + "rating_histogram=a.histogram "
+            + "FROM (SELECT v.video_id, count(r.rating)::integer AS votes, "
+            + "coalesce(sum(r.rating), 0) AS total, "
+            + "round(avg(r.rating))::integer AS rating, "
+            + histogram + " AS histogram "
+            + "FROM video v LEFT JOIN rate r ON r.video_id=v.video_id "
+            + "AND r.rating BETWEEN " + MIN_RATING + " AND " + MAX_RATING
+            + " WHERE v.video_id>=? AND v.video_id<? "
+            + "GROUP BY v.video_id) a "
+            + "WHERE v.video_id=a.video_id "
+            + "AND (v.votes IS DISTINCT FROM a.votes "
+            + "OR v.rating_sum IS DISTINCT FROM a.total "
+            + "OR v.rating IS DISTINCT FROM a.rating "
+            + "OR v.rating_histogram IS DISTINCT FROM a.histogram)";
+    }
+
+    /*
+    ** the change one batch of ratings makes to a video's aggregates.
+    */
+    private static class Delta {
+        int votes;
+        long sum;
+        final int[] histogram = new int[MAX_RATING - MIN_RATING + 1];
+
+        void add(Integer rating, int sign) {
+            if(rating != null && rating >= MIN_RATING
+                    && rating <= MAX_RATING) {
+                this.votes += sign;
+                this.sum += sign * rating;
+                this.histogram[rating - MIN_RATING] += sign;
+            }
+        }
+    }
+
+    private final EmbeddedSQL _esql;
+    private final int _threads;
+    private final ScheduledExecutorService _verifier;
+    private final AtomicLong _repaired = new AtomicLong();
+
+    /**
+    * Creates a new aggregate service and schedules verification, the
+    * first run starting right away.
+    *
+    * @param esql the database the video and rate tables live in
+    * @param threads the number of ranges verified at once
+    * @param verifyMillis milliseconds between verifications, 0 for none
+    */
+    public RatingAggregates(EmbeddedSQL esql, int threads,
+            long verifyMillis) {
+        this._esql = esql;
+        this._threads = Math.max(1, threads);
+        this._verifier = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ratings-verify");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        if(verifyMillis > 0) {
+            this._verifier.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        try {
+                            verify();
+                        } catch(Exception e) {
+                            System.err.println(e.getMessage());
+                        }
+                    }
+                }, 0, verifyMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+    * Applies a batch of RATED events to the aggregates of the videos they
+    * rate.  Must run inside the transaction that then writes the events to
+    * rate, before it does: the videos are locked in video_id order and the
+    * ratings being replaced are read here.
+    *
+    * @param conn the connection of the caller's transaction
+    * @param events the RATED events, in the order they are written
+    * @throws java.sql.SQLException when the aggregates cannot be updated
+    */
+    public static void apply(PooledConnection conn,
+            List<Interactions.Event> events) throws SQLException {
+        if(events.isEmpty()) {
+            return;
+        }
+        TreeMap<Integer, Delta> deltas = new TreeMap<Integer, Delta>();
+        for(Interactions.Event event : events) {
+            deltas.put(event.videoId, new Delta());
+        }
+        for(Integer vidID : deltas.keySet()) {
+            conn.prepare(LOCK_SQL, vidID).executeQuery().close();
+        }
+        // the rating each (user, video) pair has as the batch goes on
+        HashMap<String, Integer> current = new HashMap<String, Integer>();
+        for(Interactions.Event event : events) {
+            String pair = event.user + "\t" + event.videoId;
+            if(!current.containsKey(pair)) {
+                ResultSet rs = conn.prepare(OLD_SQL, event.user,
+                    event.videoId).executeQuery();
+                Integer old = null;
+                if(rs.next()) {
+                    old = rs.getInt(1);
+                    old = (rs.wasNull() ? null : old);
+                }
+                rs.close();
+                current.put(pair, old);
+            }
+            Delta delta = deltas.get(event.videoId);
+            delta.add(current.get(pair), -1);
+            delta.add(event.rating, 1);
+            current.put(pair, event.rating);
+        }
+        PreparedStatement stmt = conn.prepare(UPDATE_SQL);
+        boolean batched = false;
+        for(Map.Entry<Integer, Delta> e : deltas.entrySet()) {
+            Delta delta = e.getValue();
+            if(isZero(delta)) {
+                continue;
+            }
+            int i = 0;
+            stmt.setInt(++i, delta.votes);
+            stmt.setLong(++i, delta.sum);
+            stmt.setInt(++i, delta.votes);
+            stmt.setLong(++i, delta.sum);
+            stmt.setInt(++i, delta.votes);
+            for(int count : delta.histogram) {
+                stmt.setInt(++i, count);
+            }
+            stmt.setInt(++i, e.getKey());
+            stmt.addBatch();
+            batched = true;
+        }
+        if(batched) {
+            stmt.executeBatch();
+        }
+    }
+
+    /**
+    * Deletes a user's ratings and takes them off the aggregates, before
+    * the user is deleted.
+    *
+    * @param user the user_id about to be deleted
+    * @throws java.sql.SQLException when the transaction fails
+    */
+    public void removeUser(final String user) throws SQLException {
+        this._esql.inTransaction(new Transaction<Void>() {
+            public Void run(PooledConnection conn) throws SQLException {
+                ResultSet rs = conn.prepare("SELECT video_id FROM rate "
+                    + "WHERE user_id=? ORDER BY video_id", user)
+                    .executeQuery();
+                List<Interactions.Event> removed =
+                    new ArrayList<Interactions.Event>();
+                while(rs.next()) {
+                    removed.add(new Interactions.Event(ActivityFeed.RATED,
+                        user, rs.getInt(1), -1, null));
+                }
+                rs.close();
+                // rating every video -1 takes the old ratings off
+                apply(conn, removed);
+                conn.prepare("DELETE FROM rate WHERE user_id=?", user)
+                    .executeUpdate();
+                return null;
+            }
+        });
+    }
+
+    /**
+    * Reads one video's aggregates from its video row.
+    *
+    * @param vidID the video_id
+    * @return the aggregates, or null if there is no such video
+    * @throws java.sql.SQLException when the query fails
+    */
+    public Summary get(int vidID) throws SQLException {
+        final Summary[] found = new Summary[1];
+        this._esql.forEachRow(SUMMARY_SQL, new RowHandler() {
+                public void row(ResultSet rs) throws SQLException {
+                    int[] histogram = new int[MAX_RATING - MIN_RATING + 1];
+                    for(int i = 0; i < histogram.length; ++i) {
+                        histogram[i] = rs.getInt(i + 3);
+                    }
+                    found[0] = new Summary(rs.getInt(1), rs.getLong(2),
+                        histogram);
+                }
+            }, vidID);
+        return found[0];
+    }
+
+    /**
+    * Recomputes the aggregates of every video from rate, CHUNK video_ids
+    * per transaction and several ranges at once, and repairs those that
+    * differ.  Each range is locked while it is checked, so it agrees with
+    * rate writes committed before or after it.
+    *
+    * @return the number of videos repaired
+    * @throws java.sql.SQLException when a range cannot be verified
+    * @throws java.lang.InterruptedException when interrupted while waiting
+    */
+    public int verify() throws SQLException, InterruptedException {
+        final int[] bounds = new int[2];
+        this._esql.forEachRow("SELECT coalesce(min(video_id), 0), "
+            + "coalesce(max(video_id), -1) FROM video", new RowHandler() {
+                public void row(ResultSet rs) throws SQLException {
+                    bounds[0] = rs.getInt(1);
+                    bounds[1] = rs.getInt(2);
+                }
+            });
+        ExecutorService workers = Executors.newFixedThreadPool(
+            this._threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ratings-verify-worker");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        try {
+            List<Future<Integer>> ranges = new ArrayList<Future<Integer>>();
+            for(long lo = bounds[0]; lo <= bounds[1]; lo += CHUNK) {
+                final int from = (int)lo;
+                final int to = (int)Math.min(lo + CHUNK, bounds[1] + 1L);
+                ranges.add(workers.submit(new Callable<Integer>() {
+                        public Integer call() throws SQLException {
+                            return verify(from, to);
+                        }
+                    }));
+            }
+            int repaired = 0;
+            for(Future<Integer> range : ranges) {
+                try {
+                    repaired += range.get();
+                } catch(ExecutionException e) {
+                    if(e.getCause() instanceof SQLException) {
+                        throw (SQLException)e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            this._repaired.addAndGet(repaired);
+            return repaired;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+    * Stops scheduled verification.
+    */
+    public void close() {
+        this._verifier.shutdownNow();
+    }
+
+    public String toString() {
+        return this._repaired.get() + " videos repaired by verification";
+    }
+
+    /*
+    ** locks the videos in [from, to) in video_id order, as the write path
+    ** does, then repairs the ones whose aggregates disagree with rate.
+    */
+    private int verify(final int from, final int to) throws SQLException {
+        return this._esql.inTransaction(new Transaction<Integer>() {
+            public Integer run(PooledConnection conn) throws SQLException {
+                conn.prepare("SELECT video_id FROM video WHERE video_id>=? "
+                    + "AND video_id<? ORDER BY video_id FOR NO KEY UPDATE",
+                    from, to).executeQuery().close();
+                return conn.prepare(VERIFY_SQL, from, to).executeUpdate();
+            }
+        });
+    }
+
+    private static boolean isZero(Delta delta) {
+        for(int count : delta.histogram) {
+            if(count != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
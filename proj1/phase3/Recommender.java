@@ -0,0 +1,853 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * This class recommends videos to users.  A rebuild reads prefers,
+ * categorize, watch, likes and rate in one read-only snapshot into compact
+ * arrays: each user's interest in the videos they watched, liked or rated,
+ * and the same interest indexed by video.  The rebuild then runs two
+ * passes in parallel on a fork/join pool.  The first finds the videos most
+ * similar to each video, by the cosine similarity of their audiences.  The
+ * second scores every user by two signals:
+ *
+ *   - item-item similarity: the neighbours of the videos the user watched,
+ *     liked or rated, weighted by how similar they are and how much the
+ *     user liked the video they are similar to;
+ *   - genre affinity: the most popular videos of the genres the user
+ *     prefers or keeps coming back to.
+ *
+ * The best videos the user has not seen yet are kept per user in one flat
+ * top-K array, swapped in as a unit when a rebuild finishes.  Users the
+ * last rebuild did not know get the most popular videos.
+ *
+ */
+public class Recommender {
+
+    // how much each interaction says about a user's interest in a video.
+    private static final float WATCH_WEIGHT = 1;
+    private static final float LIKE_WEIGHT = 2;
+    // ratings above this raise interest, ratings below it lower it.
+    private static final float NEUTRAL_RATING = 5;
+    private static final float RATING_SCALE = 2.5f;
+    // raters of a video, and videos of a rater, followed per step of the
+    // similarity walk; bounds the cost of very popular videos and users.
+    private static final int MAX_NEIGHBOURS = 200;
+    // most similar videos kept per video.
+    private static final int NEIGHBOURS = 50;
+    // most popular videos of each genre scored for genre affinity.
+    private static final int GENRE_CANDIDATES = 100;
+    // videos or users scored by one fork/join leaf.
+    private static final int GRAIN = 128;
+    // rows fetched per round trip while reading the snapshot.
+    private static final int FETCH_SIZE = 1000;
+
+    /**
+     * One recommended video.
+     */
+    public static class Recommendation {
+        public final int videoId;
+        public final float score;
+
+        public Recommendation(int videoId, float score) {
+            this.videoId = videoId;
+            this.score = score;
+        }
+    }
+
+    /*
+    ** pairs of ids with a weight, grown as rows are read.
+    */
+    private static class Pairs {
+        int[] a = new int[1024];
+        int[] b = new int[1024];
+        float[] w = new float[1024];
+        int size = 0;
+
+        void add(int a, int b, float w) {
+            if(this.size == this.a.length) {
+                int grown = this.size * 2;
+                this.a = Arrays.copyOf(this.a, grown);
+                this.b = Arrays.copyOf(this.b, grown);
+                this.w = Arrays.copyOf(this.w, grown);
+            }
+            this.a[this.size] = a;
+            this.b[this.size] = b;
+            this.w[this.size] = w;
+            ++this.size;
+        }
+    }
+
+    /*
+    ** dense numbering of database ids.
+    */
+    private static class Ids<K> {
+        final HashMap<K, Integer> index = new HashMap<K, Integer>();
+        final ArrayList<K> ids = new ArrayList<K>();
+
+        int of(K id) {
+            Integer i = this.index.get(id);
+            if(i == null) {
+                i = this.ids.size();
+                this.index.put(id, i);
+                this.ids.add(id);
+            }
+            return i;
+        }
+    }
+
+    /*
+    ** rows of a sparse matrix: row r holds col[start[r]..start[r + 1]).
+    */
+    private static class Rows {
+        final int[] start;
+        final int[] col;
+        final float[] w;
+
+        Rows(int[] start, int[] col, float[] w) {
+            this.start = start;
+            this.col = col;
+            this.w = w;
+        }
+
+        /*
+        ** groups pairs by their a id; later pairs of the same (a, b) are
+        ** added to the first when merge is set.
+        */
+        static Rows of(Pairs pairs, int rows, int cols, boolean merge) {
+            int[] start = new int[rows + 1];
+            for(int i = 0; i < pairs.size; ++i) {
+                ++start[pairs.a[i] + 1];
+            }
+            for(int r = 0; r < rows; ++r) {
+                start[r + 1] += start[r];
+            }
+            int[] at = Arrays.copyOf(start, rows);
+            int[] col = new int[pairs.size];
+            float[] w = new float[pairs.size];
+            for(int i = 0; i < pairs.size; ++i) {
+                int p = at[pairs.a[i]]++;
+                col[p] = pairs.b[i];
+                w[p] = pairs.w[i];
+            }
+            Rows grouped = new Rows(start, col, w);
+            return merge ? grouped.merged(cols) : grouped;
+        }
+
+        /*
+        ** sums repeated columns within each row and drops zero weights.
+        */
+        Rows merged(int cols) {
+            int rows = this.start.length - 1;
+            // owner[c] is the row slot[c] was last set for, plus one
+            int[] owner = new int[cols];
+            int[] slot = new int[cols];
+            int[] start = new int[rows + 1];
+            int[] col = new int[this.col.length];
+            float[] w = new float[this.col.length];
+            int n = 0;
+            for(int r = 0; r < rows; ++r) {
+                start[r] = n;
+                for(int j = this.start[r]; j < this.start[r + 1]; ++j) {
+                    int c = this.col[j];
+                    if(owner[c] != r + 1) {
+                        owner[c] = r + 1;
+                        slot[c] = n;
+                        col[n] = c;
+                        w[n++] = 0;
+                    }
+                    w[slot[c]] += this.w[j];
+                }
+                int kept = start[r];
+                for(int j = start[r]; j < n; ++j) {
+                    if(w[j] != 0) {
+                        col[kept] = col[j];
+                        w[kept++] = w[j];
+                    }
+                }
+                n = kept;
+            }
+            start[rows] = n;
+            return new Rows(start, Arrays.copyOf(col, n),
+                Arrays.copyOf(w, n));
+        }
+
+        /*
+        ** the same entries indexed by column.
+        */
+        Rows transposed(int cols) {
+            Pairs pairs = new Pairs();
+            for(int r = 0; r + 1 < this.start.length; ++r) {
+                for(int j = this.start[r]; j < this.start[r + 1]; ++j) {
+                    pairs.add(this.col[j], r, this.w[j]);
+                }
+            }
+            return of(pairs, cols, this.start.length - 1, false);
+        }
+    }
+
+    /*
+    ** one generation of recommendations, swapped as a unit.  Row r of
+    ** videos and scores holds the top size videos of user r, best first,
+    ** padded with -1.
+    */
+    private static class Model {
+        final HashMap<String, Integer> rows;
+        final int size;
+        final int[] videos;
+        final float[] scores;
+        final List<Recommendation> popular;
+        final int interactions;
+        final long buildMillis;
+
+        Model(HashMap<String, Integer> rows, int size, int[] videos,
+                float[] scores, List<Recommendation> popular,
+                int interactions, long buildMillis) {
+            this.rows = rows;
+            this.size = size;
+            this.videos = videos;
+            this.scores = scores;
+            this.popular = popular;
+            this.interactions = interactions;
+            this.buildMillis = buildMillis;
+        }
+    }
+
+    /*
+    ** everything the scoring tasks read, built once per rebuild.  The
+    ** similar arrays hold the NEIGHBOURS most similar videos of each video,
+    ** most similar first, padded with -1.
+    */
+    private static class Data {
+        HashMap<String, Integer> rows;
+        int users;
+        int videos;
+        int[] videoIds;
+        Rows history;
+        Rows audience;
+        Rows prefers;
+        Rows videoGenres;
+        float[] norm;
+        int[] popularity;
+        int[][] genreTop;
+        int[] similar;
+        float[] similarity;
+        int interactions;
+    }
+
+    /*
+    ** per-thread working arrays, reused across the videos and users a
+    ** thread scores.  seen and touched hold the stamp of the row they were
+    ** last set for, so they never need clearing.
+    */
+    private static class Scratch {
+        final float[] similar;
+        final float[] genre;
+        final int[] seen;
+        final int[] touched;
+        final int[] candidates;
+        final float[] affinity;
+        final int[] heap;
+        final float[] heapScores;
+        int stamp = 0;
+
+        Scratch(int videos, int genres, int size) {
+            this.similar = new float[videos];
+            this.genre = new float[videos];
+            this.seen = new int[videos];
+            this.touched = new int[videos];
+            this.candidates = new int[videos];
+            this.affinity = new float[genres];
+            this.heap = new int[size];
+            this.heapScores = new float[size];
+        }
+    }
+
+    private final EmbeddedSQL _esql;
+    private final int _size;
+    private final float _blend;
+    private final ForkJoinPool _pool;
+    private final ScheduledExecutorService _rebuilder;
+    private volatile Model _model = null;
+
+    /**
+    * Creates a new recommender and schedules its rebuilds, the first one
+    * right away in the background.
+    *
+    * @param esql the database holding the interaction tables
+    * @param size the number of videos kept per user
+    * @param blend the share of a score that comes from item-item
+    *        similarity, between 0 and 1; the rest comes from genres
+    * @param threads the number of threads scoring videos and users
+    * @param rebuildMillis milliseconds between rebuilds
+    */
+    public Recommender(EmbeddedSQL esql, int size, double blend, int threads,
+            long rebuildMillis) {
+        this._esql = esql;
+        this._size = size;
+        this._blend = (float)Math.max(0, Math.min(1, blend));
+        this._pool = new ForkJoinPool(threads);
+        this._rebuilder = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "recommend-rebuild");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        this._rebuilder.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        rebuild();
+                    } catch(SQLException e) {
+                        System.err.println(e.getMessage());
+                    }
+                }
+            }, 0, rebuildMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+    * Reads a fresh snapshot, scores every user and replaces the current
+    * recommendations.
+    *
+    * @throws java.sql.SQLException when the snapshot cannot be read
+    */
+    public void rebuild() throws SQLException {
+        long start = System.currentTimeMillis();
+        final Data data = snapshot();
+        final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+            protected Scratch initialValue() {
+                return new Scratch(data.videos, data.genreTop.length,
+                    Math.max(NEIGHBOURS, Recommender.this._size));
+            }
+        };
+        data.similar = new int[data.videos * NEIGHBOURS];
+        data.similarity = new float[data.videos * NEIGHBOURS];
+        this._pool.invoke(new Neighbours(data, scratch, 0, data.videos));
+
+        int[] videos = new int[data.users * this._size];
+        float[] scores = new float[data.users * this._size];
+        this._pool.invoke(new Score(data, scratch, videos, scores, 0,
+            data.users));
+        this._model = new Model(data.rows, this._size, videos, scores,
+            popular(data, this._size), data.interactions,
+            System.currentTimeMillis() - start);
+    }
+
+    /**
+    * @return whether a rebuild has finished since startup
+    */
+    public boolean isReady() {
+        return this._model != null;
+    }
+
+    /**
+    * Returns the best videos for a user as of the last rebuild.
+    *
+    * @param user the user_id to recommend to
+    * @param limit the maximum number of videos returned
+    * @return the videos, best first, or null before the first rebuild
+    */
+    public List<Recommendation> recommend(String user, int limit) {
+        Model model = this._model;
+        if(model == null) {
+            return null;
+        }
+        Integer row = model.rows.get(user);
+        if(row == null) {
+            return model.popular.subList(0,
+                Math.min(limit, model.popular.size()));
+        }
+        List<Recommendation> found = new ArrayList<Recommendation>();
+        int base = row * model.size;
+        for(int i = 0; i < model.size && i < limit; ++i) {
+            if(model.videos[base + i] < 0) {
+                break;
+            }
+            found.add(new Recommendation(model.videos[base + i],
+                model.scores[base + i]));
+        }
+        return found;
+    }
+
+    /**
+    * Stops the scheduled rebuilds.
+    */
+    public void close() {
+        this._rebuilder.shutdownNow();
+        this._pool.shutdownNow();
+    }
+
+    public String toString() {
+        Model model = this._model;
+        if(model == null) {
+            return "recommendations not built yet";
+        }
+        return model.rows.size() + " users, " + model.interactions
+            + " interactions, built in " + model.buildMillis + "ms";
+    }
+
+    /*
+    ** runs each() for the rows in [lo, hi) on the fork/join pool,
+    ** splitting until GRAIN rows are left.
+    */
+    private static abstract class Range extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final Data data;
+        final ThreadLocal<Scratch> scratch;
+        final int lo;
+        final int hi;
+
+        Range(Data data, ThreadLocal<Scratch> scratch, int lo, int hi) {
+            this.data = data;
+            this.scratch = scratch;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        abstract Range part(int lo, int hi);
+
+        abstract void each(Scratch s, int row);
+
+        protected void compute() {
+            if(this.hi - this.lo <= GRAIN) {
+                Scratch s = this.scratch.get();
+                for(int row = this.lo; row < this.hi; ++row) {
+                    each(s, row);
+                }
+                return;
+            }
+            int mid = (this.lo + this.hi) >>> 1;
+            invokeAll(part(this.lo, mid), part(mid, this.hi));
+        }
+    }
+
+    /*
+    ** finds the most similar videos of each video.
+    */
+    private static class Neighbours extends Range {
+        private static final long serialVersionUID = 1L;
+
+        Neighbours(Data data, ThreadLocal<Scratch> scratch, int lo, int hi) {
+            super(data, scratch, lo, hi);
+        }
+
+        Range part(int lo, int hi) {
+            return new Neighbours(this.data, this.scratch, lo, hi);
+        }
+
+        void each(Scratch s, int item) {
+            neighbours(this.data, s, item);
+        }
+    }
+
+    /*
+    ** fills the recommendation rows of users.
+    */
+    private class Score extends Range {
+        private static final long serialVersionUID = 1L;
+        private final int[] _videos;
+        private final float[] _scores;
+
+        Score(Data data, ThreadLocal<Scratch> scratch, int[] videos,
+                float[] scores, int lo, int hi) {
+            super(data, scratch, lo, hi);
+            this._videos = videos;
+            this._scores = scores;
+        }
+
+        Range part(int lo, int hi) {
+            return new Score(this.data, this.scratch, this._videos,
+                this._scores, lo, hi);
+        }
+
+        void each(Scratch s, int user) {
+            score(this.data, s, user, this._videos, this._scores);
+        }
+    }
+
+    /*
+    ** cosine similarity of one video's audience with the audiences of the
+    ** videos its audience is also interested in; keeps the closest.
+    */
+    private static void neighbours(Data d, Scratch s, int item) {
+        int stamp = ++s.stamp;
+        int touched = 0;
+        int rFrom = d.audience.start[item];
+        int rTo = Math.min(d.audience.start[item + 1],
+            rFrom + MAX_NEIGHBOURS);
+        for(int r = rFrom; r < rTo; ++r) {
+            int rater = d.audience.col[r];
+            float weight = d.audience.w[r];
+            int vFrom = d.history.start[rater];
+            int vTo = Math.min(d.history.start[rater + 1],
+                vFrom + MAX_NEIGHBOURS);
+            for(int q = vFrom; q < vTo; ++q) {
+                int video = d.history.col[q];
+                if(video == item) {
+                    continue;
+                }
+                if(s.touched[video] != stamp) {
+                    s.touched[video] = stamp;
+                    s.similar[video] = 0;
+                    s.candidates[touched++] = video;
+                }
+                s.similar[video] += weight * d.history.w[q];
+            }
+        }
+        int heap = 0;
+        for(int i = 0; i < touched; ++i) {
+            int video = s.candidates[i];
+            heap = offer(s, heap, NEIGHBOURS, video, s.similar[video]
+                / (d.norm[item] * d.norm[video]));
+        }
+        drain(s, heap, d.similar, d.similarity, item * NEIGHBOURS,
+            NEIGHBOURS);
+    }
+
+    /*
+    ** fills the row of one user with their best unseen videos.
+    */
+    private void score(Data d, Scratch s, int user, int[] videos,
+            float[] scores) {
+        int stamp = ++s.stamp;
+        Rows history = d.history;
+        int from = history.start[user];
+        int to = history.start[user + 1];
+        float positive = 0;
+        for(int j = from; j < to; ++j) {
+            s.seen[history.col[j]] = stamp;
+            positive += Math.max(0, history.w[j]);
+        }
+        int touched = 0;
+
+        // item-item: the user's interest in each video they have seen,
+        // spread over that video's neighbours by similarity
+        for(int j = from; j < to && j < from + MAX_NEIGHBOURS; ++j) {
+            int base = history.col[j] * NEIGHBOURS;
+            for(int n = base; n < base + NEIGHBOURS; ++n) {
+                int video = d.similar[n];
+                if(video < 0) {
+                    break;
+                }
+                if(s.seen[video] == stamp) {
+                    continue;
+                }
+                if(s.touched[video] != stamp) {
+                    s.touched[video] = stamp;
+                    s.similar[video] = 0;
+                    s.genre[video] = 0;
+                    s.candidates[touched++] = video;
+                }
+                s.similar[video] += history.w[j] * d.similarity[n];
+            }
+        }
+
+        // genre affinity: stated preferences, plus the genres of the
+        // videos the user liked, in proportion to how much
+        Arrays.fill(s.affinity, 0);
+        for(int j = d.prefers.start[user]; j < d.prefers.start[user + 1];
+                ++j) {
+            s.affinity[d.prefers.col[j]] += 1;
+        }
+        for(int j = from; j < to && positive > 0; ++j) {
+            int video = history.col[j];
+            int gFrom = d.videoGenres.start[video];
+            int gTo = d.videoGenres.start[video + 1];
+            for(int g = gFrom; g < gTo && history.w[j] > 0; ++g) {
+                s.affinity[d.videoGenres.col[g]] +=
+                    history.w[j] / positive / (gTo - gFrom);
+            }
+        }
+        for(int g = 0; g < s.affinity.length; ++g) {
+            if(s.affinity[g] <= 0) {
+                continue;
+            }
+            for(int video : d.genreTop[g]) {
+                if(s.seen[video] == stamp) {
+                    continue;
+                }
+                if(s.touched[video] != stamp) {
+                    s.touched[video] = stamp;
+                    s.similar[video] = 0;
+                    s.genre[video] = 0;
+                    s.candidates[touched++] = video;
+                }
+                s.genre[video] += s.affinity[g]
+                    / (d.videoGenres.start[video + 1]
+                        - d.videoGenres.start[video]);
+            }
+        }
+
+        // blend the two, each scaled to the user's best, and keep the top
+        float maxSimilar = 0;
+        float maxGenre = 0;
+        for(int i = 0; i < touched; ++i) {
+            maxSimilar = Math.max(maxSimilar, s.similar[s.candidates[i]]);
+            maxGenre = Math.max(maxGenre, s.genre[s.candidates[i]]);
+        }
+        int heap = 0;
+        for(int i = 0; i < touched; ++i) {
+            int video = s.candidates[i];
+            float score = 0;
+            if(maxSimilar > 0) {
+                score += this._blend * s.similar[video] / maxSimilar;
+            }
+            if(maxGenre > 0) {
+                score += (1 - this._blend) * s.genre[video] / maxGenre;
+            }
+            heap = offer(s, heap, this._size, video, score);
+        }
+        int base = user * this._size;
+        drain(s, heap, videos, scores, base, this._size);
+        for(int i = base; i < base + this._size && videos[i] >= 0; ++i) {
+            videos[i] = d.videoIds[videos[i]];
+        }
+    }
+
+    /*
+    ** adds a positive score to the min-heap of the best capacity scores;
+    ** returns the new heap size.
+    */
+    private static int offer(Scratch s, int heap, int capacity, int video,
+            float score) {
+        if(score <= 0) {
+            return heap;
+        }
+        if(heap < capacity) {
+            s.heap[heap] = video;
+            s.heapScores[heap] = score;
+            int i = heap;
+            while(i > 0) {
+                int parent = (i - 1) >>> 1;
+                if(s.heapScores[parent] <= s.heapScores[i]) {
+                    break;
+                }
+                swap(s, i, parent);
+                i = parent;
+            }
+            return heap + 1;
+        }
+        if(score > s.heapScores[0]) {
+            s.heap[0] = video;
+            s.heapScores[0] = score;
+            down(s, heap);
+        }
+        return heap;
+    }
+
+    /*
+    ** empties the heap into out[base..base + capacity), best first, padded
+    ** with -1.
+    */
+    private static void drain(Scratch s, int heap, int[] out, float[] scores,
+            int base, int capacity) {
+        Arrays.fill(out, base + heap, base + capacity, -1);
+        Arrays.fill(scores, base + heap, base + capacity, 0);
+        while(heap > 0) {
+            --heap;
+            out[base + heap] = s.heap[0];
+            scores[base + heap] = s.heapScores[0];
+            s.heap[0] = s.heap[heap];
+            s.heapScores[0] = s.heapScores[heap];
+            down(s, heap);
+        }
+    }
+
+    private static void down(Scratch s, int size) {
+        int i = 0;
+        while(true) {
+            int least = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if(left < size && s.heapScores[left] < s.heapScores[least]) {
+                least = left;
+            }
+            if(right < size && s.heapScores[right] < s.heapScores[least]) {
+                least = right;
+            }
+            if(least == i) {
+                return;
+            }
+            swap(s, i, least);
+            i = least;
+        }
+    }
+
+    private static void swap(Scratch s, int i, int j) {
+        int video = s.heap[i];
+        float score = s.heapScores[i];
+        s.heap[i] = s.heap[j];
+        s.heapScores[i] = s.heapScores[j];
+        s.heap[j] = video;
+        s.heapScores[j] = score;
+    }
+
+    /*
+    ** reads the interaction tables in one read-only snapshot.
+    */
+    private Data snapshot() throws SQLException {
+        return this._esql.inTransaction(new Transaction<Data>() {
+            public Data run(PooledConnection conn) throws SQLException {
+                conn.prepare("SET TRANSACTION ISOLATION LEVEL "
+                    + "REPEATABLE READ, READ ONLY").execute();
+                final Ids<String> users = new Ids<String>();
+                final Ids<Integer> videos = new Ids<Integer>();
+                final Ids<Integer> genres = new Ids<Integer>();
+                final Pairs interest = new Pairs();
+                final Pairs prefers = new Pairs();
+                final Pairs categorize = new Pairs();
+                scan(conn, "SELECT user_id, video_id FROM watch",
+                    new RowHandler() {
+                        public void row(ResultSet rs) throws SQLException {
+                            interest.add(users.of(rs.getString(1)),
+                                videos.of(rs.getInt(2)), WATCH_WEIGHT);
+                        }
+                    });
+                scan(conn, "SELECT user_id, video_id FROM likes",
+                    new RowHandler() {
+                        public void row(ResultSet rs) throws SQLException {
+                            interest.add(users.of(rs.getString(1)),
+                                videos.of(rs.getInt(2)), LIKE_WEIGHT);
+                        }
+                    });
+                scan(conn, "SELECT user_id, video_id, rating FROM rate "
+                    + "WHERE rating IS NOT NULL", new RowHandler() {
+                        public void row(ResultSet rs) throws SQLException {
+                            interest.add(users.of(rs.getString(1)),
+                                videos.of(rs.getInt(2)),
+                                (rs.getInt(3) - NEUTRAL_RATING)
+                                    / RATING_SCALE);
+                        }
+                    });
+                scan(conn, "SELECT user_id, genre_id FROM prefers",
+                    new RowHandler() {
+                        public void row(ResultSet rs) throws SQLException {
+                            prefers.add(users.of(rs.getString(1)),
+                                genres.of(rs.getInt(2)), 1);
+                        }
+                    });
+                scan(conn, "SELECT video_id, genre_id FROM categorize",
+                    new RowHandler() {
+                        public void row(ResultSet rs) throws SQLException {
+                            categorize.add(videos.of(rs.getInt(1)),
+                                genres.of(rs.getInt(2)), 1);
+                        }
+                    });
+                return index(users, videos, genres, interest, prefers,
+                    categorize);
+            }
+        });
+    }
+
+    private void scan(PooledConnection conn, String query,
+            RowHandler handler) throws SQLException {
+        this._esql.forEachRow(conn, query, FETCH_SIZE, handler);
+    }
+
+    /*
+    ** turns the rows read into the arrays the scoring tasks walk.
+    */
+    private static Data index(Ids<String> users, Ids<Integer> videos,
+            Ids<Integer> genres, Pairs interest, Pairs prefers,
+            Pairs categorize) {
+        Data d = new Data();
+        d.rows = users.index;
+        d.users = users.ids.size();
+        d.videos = videos.ids.size();
+        d.videoIds = new int[d.videos];
+        for(int v = 0; v < d.videos; ++v) {
+            d.videoIds[v] = videos.ids.get(v);
+        }
+        d.history = Rows.of(interest, d.users, d.videos, true);
+        d.audience = d.history.transposed(d.videos);
+        d.prefers = Rows.of(prefers, d.users, genres.ids.size(), false);
+        d.videoGenres = Rows.of(categorize, d.videos, genres.ids.size(),
+            false);
+        d.interactions = interest.size;
+
+        d.norm = new float[d.videos];
+        d.popularity = new int[d.videos];
+        for(int v = 0; v < d.videos; ++v) {
+            double sum = 0;
+            for(int r = d.audience.start[v]; r < d.audience.start[v + 1];
+                    ++r) {
+                sum += d.audience.w[r] * d.audience.w[r];
+                if(d.audience.w[r] > 0) {
+                    ++d.popularity[v];
+                }
+            }
+            d.norm[v] = (float)Math.sqrt(sum);
+        }
+
+        Rows byGenre = d.videoGenres.transposed(genres.ids.size());
+        d.genreTop = new int[genres.ids.size()][];
+        for(int g = 0; g < d.genreTop.length; ++g) {
+            List<Integer> members = new ArrayList<Integer>();
+            for(int j = byGenre.start[g]; j < byGenre.start[g + 1]; ++j) {
+                members.add(byGenre.col[j]);
+            }
+            d.genreTop[g] = mostPopular(d, members, GENRE_CANDIDATES);
+        }
+        return d;
+    }
+
+    /*
+    ** the limit videos with the most interested users, ties by lower id.
+    */
+    private static int[] mostPopular(final Data d, List<Integer> videos,
+            int limit) {
+        Collections.sort(videos, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                if(d.popularity[a] != d.popularity[b]) {
+                    return d.popularity[b] - d.popularity[a];
+                }
+                return d.videoIds[a] - d.videoIds[b];
+            }
+        });
+        int[] top = new int[Math.min(limit, videos.size())];
+        for(int i = 0; i < top.length; ++i) {
+            top[i] = videos.get(i);
+        }
+        return top;
+    }
+
+    private static List<Recommendation> popular(Data d, int size) {
+        List<Integer> all = new ArrayList<Integer>();
+        for(int v = 0; v < d.videos; ++v) {
+            if(d.popularity[v] > 0) {
+                all.add(v);
+            }
+        }
+        List<Recommendation> popular = new ArrayList<Recommendation>();
+        for(int v : mostPopular(d, all, size)) {
+            popular.add(new Recommendation(d.videoIds[v], d.popularity[v]));
+        }
+        return Collections.unmodifiableList(popular);
+    }
+}
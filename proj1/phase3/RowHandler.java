@@ -0,0 +1,33 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+
+/**
+ * This interface receives the rows of a query streamed by
+ * EmbeddedSQL.forEachRow, one call per row.
+ *
+ */
+public interface RowHandler {
+
+    /**
+    * Handles the current row.  The result set is positioned on the row and
+    * must not be advanced or closed by the handler.
+    *
+    * @param rs the result set positioned on the current row
+    * @throws java.sql.SQLException when reading a column fails
+    */
+    void row(ResultSet rs) throws SQLException;
+}
@@ -0,0 +1,118 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * This class holds the state of one Movie Net user session: who is logged
+ * in, where their input comes from and where menu output goes.  The session
+ * serving the current thread is found through Session.current().
+ *
+ */
+public class Session {
+
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);
+    private static final ThreadLocal<Session> CURRENT =
+        new ThreadLocal<Session>();
+
+    public final long id;
+    public final BufferedReader in;
+    public final PrintStream out;
+    public String username = null;
+    public String password = null;
+    // queries that failed while serving this session.
+    public int errors = 0;
+
+    /**
+    * Creates a new session reading from in and writing menus to out.
+    *
+    * @param in the line reader user input comes from
+    * @param out the stream menu output is written to
+    */
+    public Session(BufferedReader in, PrintStream out) {
+        this.id = NEXT_ID.getAndIncrement();
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+    * Reads one line of user input, flushing any pending prompt first.
+    *
+    * @return the line read, without the line terminator
+    * @throws Session.ClosedError when the user has disconnected or the
+    *         input cannot be read, e.g. after a connection reset
+    */
+    public String readLine() {
+        this.out.flush();
+        String line;
+        try {
+            line = this.in.readLine();
+        } catch(IOException e) {
+            // the menus retry on any Exception, so a dead socket must end
+            // the session like end of stream does
+            throw new ClosedError(this, e);
+        }
+        if(line == null) {
+            throw new ClosedError(this, null);
+        }
+        return line;
+    }
+
+    /**
+    * @return the session bound to the calling thread
+    */
+    public static Session current() {
+        Session session = CURRENT.get();
+        if(session == null) {
+            throw new IllegalStateException("No session on this thread");
+        }
+        return session;
+    }
+
+    /**
+    * @return the session bound to the calling thread, or null if none is
+    */
+    public static Session peek() {
+        return CURRENT.get();
+    }
+
+    /**
+    * Binds a session to the calling thread.
+    *
+    * @param session the session to bind, or null to unbind
+    */
+    public static void attach(Session session) {
+        if(session == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(session);
+        }
+    }
+
+    /**
+     * Thrown when the input of a session reaches end of stream or fails.  It
+     * is an Error so that it passes through the catch (Exception e) blocks in
+     * the menus and ends the session.
+     */
+    public static class ClosedError extends Error {
+        private static final long serialVersionUID = 1L;
+
+        public ClosedError(Session session, IOException cause) {
+            super("Session " + session.id + " closed", cause);
+        }
+    }
+}
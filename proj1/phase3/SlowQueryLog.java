@@ -0,0 +1,253 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+
+/**
+ * This class writes queries that ran longer than a threshold to a rotating
+ * log: the action that issued them, the query template, the type and size
+ * of each bind value (never the value itself), the duration and the row
+ * count.  The first time a template is slow, and again at most once per
+ * explain interval, its plan is captured in the background on a connection
+ * of its own and written to the same log.  SELECTs are explained with
+ * ANALYZE so the log shows actual row counts and timings; other statements
+ * are only planned, never run a second time.
+ *
+ */
+public class SlowQueryLog {
+
+    // string literals in plans are replaced so bind values do not leak.
+    private static final Pattern STRING = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern EXPLAINABLE = Pattern.compile(
+        "^\\s*(SELECT|WITH|INSERT|UPDATE|DELETE)\\b",
+        Pattern.CASE_INSENSITIVE);
+    private static final Pattern READ_ONLY = Pattern.compile(
+        "^\\s*SELECT\\b", Pattern.CASE_INSENSITIVE);
+    // SELECTs that change something when they run.
+    private static final Pattern SIDE_EFFECTS = Pattern.compile(
+        "\\b(nextval|setval|FOR\\s+UPDATE)\\b", Pattern.CASE_INSENSITIVE);
+
+    private final String _url;
+    private final String _user;
+    private final String _passwd;
+    private final long _thresholdNanos;
+    private final long _explainInterval;
+    private final Logger _log;
+    private final FileHandler _handler;
+    // when each template was last explained.
+    private final ConcurrentHashMap<String, Long> _explained =
+        new ConcurrentHashMap<String, Long>();
+    private final ThreadPoolExecutor _explainer;
+    // only touched by the explainer thread.
+    private Connection _conn = null;
+
+    /**
+    * Creates a new log.
+    *
+    * @param url the JDBC connection URL plans are captured through
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param thresholdMillis queries taking at least this long are logged
+    * @param pattern the log file name pattern, see
+    *        java.util.logging.FileHandler
+    * @param limit the size in bytes at which the log rotates
+    * @param count the number of rotated files kept
+    * @param explainInterval milliseconds before the same template is
+    *        explained again
+    * @throws java.io.IOException when the log file cannot be opened
+    */
+    public SlowQueryLog(String url, String user, String passwd,
+            long thresholdMillis, String pattern, int limit, int count,
+            long explainInterval) throws IOException {
+        this._url = url;
+        this._user = user;
+        this._passwd = passwd;
+        this._thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this._explainInterval = explainInterval;
+
+        this._handler = new FileHandler(pattern, limit, count, true);
+        this._handler.setFormatter(new Formatter() {
+            private final SimpleDateFormat _time =
+                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+            public synchronized String format(LogRecord record) {
+                return this._time.format(new Date(record.getMillis())) + " "
+                    + record.getMessage() + "\n";
+            }
+        });
+        this._log = Logger.getAnonymousLogger();
+        this._log.setUseParentHandlers(false);
+        this._log.addHandler(this._handler);
+
+        // a few plans may wait; beyond that they are skipped, not queued
+        this._explainer = new ThreadPoolExecutor(1, 1, 0,
+            TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(16),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "slow-query-explain");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+    * @param nanos how long a query took
+    * @return whether that is slow enough to log
+    */
+    public boolean isSlow(long nanos) {
+        return nanos >= this._thresholdNanos;
+    }
+
+    /**
+    * Logs a slow query and schedules its plan to be captured.
+    *
+    * @param action the user action that issued the query
+    * @param template the query with literals replaced by '?'
+    * @param sql the query as sent
+    * @param params the values bound to the query, or null
+    * @param nanos how long the query took
+    * @param rows the rows returned or changed, or -1 if it failed
+    */
+    public void log(String action, final String template, final String sql,
+            final Object[] params, long nanos, int rows) {
+        this._log.log(Level.WARNING, "duration="
+            + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms rows="
+            + (rows < 0 ? "failed" : String.valueOf(rows)) + " action="
+            + action + " binds=" + redact(params) + " sql=" + template);
+
+        if(rows < 0 || !EXPLAINABLE.matcher(sql).find()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Long last = this._explained.get(template);
+        boolean due = (last == null
+            ? this._explained.putIfAbsent(template, now) == null
+            : now - last >= this._explainInterval
+                && this._explained.replace(template, last, now));
+        if(due) {
+            this._explainer.execute(new Runnable() {
+                public void run() {
+                    explain(template, sql, params);
+                }
+            });
+        }
+    }
+
+    /**
+    * Stops capturing plans and closes the log.
+    */
+    public void close() {
+        this._explainer.shutdownNow();
+        try {
+            this._explainer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if(this._conn != null) {
+                this._conn.close();
+            }
+        } catch (SQLException e) {
+        }
+        this._handler.close();
+    }
+
+    private void explain(String template, String sql, Object[] params) {
+        boolean analyze = READ_ONLY.matcher(sql).find()
+            && !SIDE_EFFECTS.matcher(sql).find();
+        StringBuilder plan = new StringBuilder("plan for sql=")
+            .append(template);
+        try {
+            if(this._conn == null) {
+                this._conn = DriverManager.getConnection(this._url,
+                    this._user, this._passwd);
+            }
+            String explain = (analyze ? "EXPLAIN ANALYZE " : "EXPLAIN ")
+                + sql;
+            ResultSet rs;
+            Statement stmt;
+            if(params == null) {
+                stmt = this._conn.createStatement();
+                rs = stmt.executeQuery(explain);
+            } else {
+                PreparedStatement ps = this._conn.prepareStatement(explain);
+                for(int i = 0; i < params.length; ++i) {
+                    ps.setObject(i + 1, params[i]);
+                }
+                stmt = ps;
+                rs = ps.executeQuery();
+            }
+            while(rs.next()) {
+                plan.append("\n    | ")
+                    .append(STRING.matcher(rs.getString(1)).replaceAll("'?'"));
+            }
+            stmt.close();
+        } catch (SQLException e) {
+            plan.append("\n    | EXPLAIN failed: ").append(e.getMessage());
+            try {
+                if(this._conn != null) {
+                    this._conn.close();
+                }
+            } catch (SQLException ignored) {
+            }
+            this._conn = null;
+        }
+        this._log.log(Level.INFO, plan.toString());
+    }
+
+    /*
+    ** describes bind values by type and size only.
+    */
+    private static String redact(Object[] params) {
+        if(params == null) {
+            return "[]";
+        }
+        StringBuilder out = new StringBuilder("[");
+        for(int i = 0; i < params.length; ++i) {
+            if(i > 0) {
+                out.append(", ");
+            }
+            Object p = params[i];
+            if(p == null) {
+                out.append("null");
+            } else if(p instanceof String) {
+                out.append("string(").append(((String)p).length())
+                    .append(')');
+            } else {
+                out.append(p.getClass().getSimpleName().toLowerCase());
+            }
+        }
+        return out.append(']').toString();
+    }
+}
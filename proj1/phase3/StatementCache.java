@@ -0,0 +1,112 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.postgresql.PGStatement;
+
+
+/**
+ * This class keeps a bounded, least-recently-used cache of PreparedStatements
+ * for a single physical connection, keyed by the SQL template.  Statements
+ * are prepared on the server so Postgres parses and plans each template once.
+ *
+ */
+public class StatementCache {
+
+    // default number of templates kept open per connection.
+    public static final int DEFAULT_SIZE = 64;
+
+    private final Connection _connection;
+    private final Map<String, PreparedStatement> _statements;
+
+    /**
+    * Creates a new statement cache on top of a connection.
+    *
+    * @param connection the physical connection statements are prepared on
+    * @param maxSize the maximum number of statements kept open
+    */
+    public StatementCache(Connection connection, final int maxSize) {
+        this._connection = connection;
+        this._statements = new LinkedHashMap<String, PreparedStatement>(
+                16, 0.75f, true) {
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, PreparedStatement> eldest) {
+                if(size() > maxSize) {
+                    close(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+    * Returns the cached statement for a template, preparing it on first use,
+    * with the given parameters bound in order.
+    *
+    * @param sql the SQL template using '?' placeholders
+    * @param params the values to bind to the placeholders
+    * @return the prepared statement ready to execute
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+    public synchronized PreparedStatement prepare(String sql, Object... params)
+            throws SQLException {
+        PreparedStatement stmt = this._statements.get(sql);
+        if(stmt == null) {
+            stmt = this._connection.prepareStatement(sql);
+            if(stmt instanceof PGStatement) {
+                // use a named server-side statement from the first run
+                ((PGStatement) stmt).setPrepareThreshold(1);
+            }
+            this._statements.put(sql, stmt);
+        }
+        stmt.clearParameters();
+        for(int i = 0; i < params.length; ++i) {
+            if(params[i] == null) {
+                stmt.setNull(i + 1, java.sql.Types.VARCHAR);
+            } else {
+                stmt.setObject(i + 1, params[i]);
+            }
+        }
+        return stmt;
+    }
+
+    /**
+    * @return the number of statements currently held open
+    */
+    public synchronized int size() {
+        return this._statements.size();
+    }
+
+    /**
+    * Closes every cached statement.
+    */
+    public synchronized void clear() {
+        for(PreparedStatement stmt : this._statements.values()) {
+            close(stmt);
+        }
+        this._statements.clear();
+    }
+
+    private static void close(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+        }
+    }
+}
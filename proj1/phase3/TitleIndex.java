@@ -0,0 +1,342 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+
+/**
+ * This class searches video titles in memory.  Titles are split into
+ * lower-case words; an inverted index maps every word to the videos whose
+ * title contains it, and a trie over the words answers prefix and
+ * typo-tolerant lookups.  A query matches a video word by word: exactly,
+ * as a prefix of a longer word (so the last word can be half typed), or
+ * within one or two edits.  Results are ranked by how well each query word
+ * matched, with exact and leading title matches first.
+ *
+ * The index is safe to search while videos are added and removed.
+ *
+ */
+public class TitleIndex {
+
+    private static final Pattern WORDS = Pattern.compile("[^\\p{L}\\p{N}]+");
+    // completions of one prefix looked at per query word.
+    private static final int MAX_COMPLETIONS = 64;
+
+    // match scores per query word.
+    private static final double EXACT = 3;
+    private static final double PREFIX = 2;
+    private static final double ONE_EDIT = 1;
+    private static final double TWO_EDITS = 0.5;
+
+    /*
+    ** one trie node; word is set when a word ends here.
+    */
+    private static class Node {
+        final HashMap<Character, Node> children =
+            new HashMap<Character, Node>();
+        String word = null;
+    }
+
+    /*
+    ** a search result candidate.
+    */
+    private static class Hit {
+        final VideoCatalog.Video video;
+        double score = 0;
+
+        Hit(VideoCatalog.Video video) {
+            this.video = video;
+        }
+    }
+
+    private static final Comparator<Hit> RANK = new Comparator<Hit>() {
+        public int compare(Hit a, Hit b) {
+            if(a.score != b.score) {
+                return a.score > b.score ? -1 : 1;
+            }
+            if(a.video.title.length() != b.video.title.length()) {
+                return a.video.title.length() - b.video.title.length();
+            }
+            return a.video.id - b.video.id;
+        }
+    };
+
+    private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+    private final HashMap<Integer, VideoCatalog.Video> _videos =
+        new HashMap<Integer, VideoCatalog.Video>();
+    private final HashMap<String, Set<Integer>> _postings =
+        new HashMap<String, Set<Integer>>();
+    private final Node _root = new Node();
+
+    /**
+    * Adds a video, replacing any earlier version with the same id.
+    *
+    * @param video the video to index
+    */
+    public void add(VideoCatalog.Video video) {
+        this._lock.writeLock().lock();
+        try {
+            VideoCatalog.Video old = this._videos.put(video.id, video);
+            if(old != null) {
+                unindex(old);
+            }
+            for(String word : words(video.title)) {
+                Set<Integer> ids = this._postings.get(word);
+                if(ids == null) {
+                    ids = new HashSet<Integer>();
+                    this._postings.put(word, ids);
+                    insert(word);
+                }
+                ids.add(video.id);
+            }
+        } finally {
+            this._lock.writeLock().unlock();
+        }
+    }
+
+    /**
+    * Removes a video.
+    *
+    * @param vidID the video_id to remove
+    */
+    public void remove(int vidID) {
+        this._lock.writeLock().lock();
+        try {
+            VideoCatalog.Video old = this._videos.remove(vidID);
+            if(old != null) {
+                unindex(old);
+            }
+        } finally {
+            this._lock.writeLock().unlock();
+        }
+    }
+
+    /**
+    * @return the number of videos indexed
+    */
+    public int size() {
+        this._lock.readLock().lock();
+        try {
+            return this._videos.size();
+        } finally {
+            this._lock.readLock().unlock();
+        }
+    }
+
+    /**
+    * Finds the videos whose titles best match a query.
+    *
+    * @param query words of a title, the last of which may be incomplete
+    * @param limit the maximum number of videos returned
+    * @return the best matches, best first
+    */
+    public List<VideoCatalog.Video> search(String query, int limit) {
+        List<String> words = words(query);
+        List<VideoCatalog.Video> found = new ArrayList<VideoCatalog.Video>();
+        if(words.isEmpty() || limit <= 0) {
+            return found;
+        }
+        String phrase = query.trim().toLowerCase(Locale.ROOT);
+        List<Hit> hits = new ArrayList<Hit>();
+        this._lock.readLock().lock();
+        try {
+            HashMap<Integer, Hit> byId = new HashMap<Integer, Hit>();
+            for(String word : words) {
+                for(Map.Entry<Integer, Double> e : match(word).entrySet()) {
+                    Hit hit = byId.get(e.getKey());
+                    if(hit == null) {
+                        hit = new Hit(this._videos.get(e.getKey()));
+                        byId.put(e.getKey(), hit);
+                    }
+                    hit.score += e.getValue();
+                }
+            }
+            for(Hit hit : byId.values()) {
+                String title = hit.video.title.toLowerCase(Locale.ROOT);
+                if(title.equals(phrase)) {
+                    hit.score += 10 * EXACT;
+                } else if(title.startsWith(phrase)) {
+                    hit.score += PREFIX;
+                }
+                hits.add(hit);
+            }
+        } finally {
+            this._lock.readLock().unlock();
+        }
+        Collections.sort(hits, RANK);
+        for(int i = 0; i < hits.size() && i < limit; ++i) {
+            found.add(hits.get(i).video);
+        }
+        return found;
+    }
+
+    /*
+    ** the best score each video earns for one query word.
+    */
+    private Map<Integer, Double> match(String word) {
+        HashMap<Integer, Double> best = new HashMap<Integer, Double>();
+        Set<Integer> exact = this._postings.get(word);
+        if(exact != null) {
+            credit(best, exact, EXACT);
+        }
+        for(String completion : complete(word)) {
+            if(!completion.equals(word)) {
+                credit(best, this._postings.get(completion), PREFIX);
+            }
+        }
+        int edits = word.length() < 3 ? 0 : word.length() <= 5 ? 1 : 2;
+        if(exact == null && edits > 0) {
+            HashMap<String, Integer> near = new HashMap<String, Integer>();
+            int[] row = new int[word.length() + 1];
+            for(int i = 0; i < row.length; ++i) {
+                row[i] = i;
+            }
+            for(Map.Entry<Character, Node> e
+                    : this._root.children.entrySet()) {
+                fuzzy(e.getValue(), e.getKey(), row, word, edits, near);
+            }
+            for(Map.Entry<String, Integer> e : near.entrySet()) {
+                credit(best, this._postings.get(e.getKey()),
+                    e.getValue() == 1 ? ONE_EDIT : TWO_EDITS);
+            }
+        }
+        return best;
+    }
+
+    private static void credit(Map<Integer, Double> best, Set<Integer> ids,
+            double score) {
+        for(Integer id : ids) {
+            Double had = best.get(id);
+            if(had == null || had < score) {
+                best.put(id, score);
+            }
+        }
+    }
+
+    /*
+    ** words in the trie that start with prefix, up to MAX_COMPLETIONS.
+    */
+    private List<String> complete(String prefix) {
+        List<String> out = new ArrayList<String>();
+        Node node = this._root;
+        for(int i = 0; i < prefix.length() && node != null; ++i) {
+            node = node.children.get(prefix.charAt(i));
+        }
+        if(node != null) {
+            collect(node, out);
+        }
+        return out;
+    }
+
+    private static void collect(Node node, List<String> out) {
+        if(out.size() >= MAX_COMPLETIONS) {
+            return;
+        }
+        if(node.word != null) {
+            out.add(node.word);
+        }
+        for(Node child : node.children.values()) {
+            collect(child, out);
+        }
+    }
+
+    /*
+    ** walks the trie keeping one row of the edit distance table per node,
+    ** and prunes branches that are already more than max edits away.
+    */
+    private static void fuzzy(Node node, char c, int[] prev, String word,
+            int max, Map<String, Integer> out) {
+        int[] row = new int[prev.length];
+        row[0] = prev[0] + 1;
+        int least = row[0];
+        for(int i = 1; i < row.length; ++i) {
+            int replace = prev[i - 1] + (word.charAt(i - 1) == c ? 0 : 1);
+            row[i] = Math.min(replace, Math.min(row[i - 1], prev[i]) + 1);
+            least = Math.min(least, row[i]);
+        }
+        int distance = row[row.length - 1];
+        if(node.word != null && distance > 0 && distance <= max) {
+            out.put(node.word, distance);
+        }
+        if(least <= max) {
+            for(Map.Entry<Character, Node> e : node.children.entrySet()) {
+                fuzzy(e.getValue(), e.getKey(), row, word, max, out);
+            }
+        }
+    }
+
+    private void insert(String word) {
+        Node node = this._root;
+        for(int i = 0; i < word.length(); ++i) {
+            Node next = node.children.get(word.charAt(i));
+            if(next == null) {
+                next = new Node();
+                node.children.put(word.charAt(i), next);
+            }
+            node = next;
+        }
+        node.word = word;
+    }
+
+    private void unindex(VideoCatalog.Video video) {
+        for(String word : words(video.title)) {
+            Set<Integer> ids = this._postings.get(word);
+            if(ids != null && ids.remove(video.id) && ids.isEmpty()) {
+                this._postings.remove(word);
+                delete(this._root, word, 0);
+            }
+        }
+    }
+
+    /*
+    ** unmarks word and drops the nodes only it was using.
+    ** returns whether node itself can go.
+    */
+    private static boolean delete(Node node, String word, int at) {
+        if(at == word.length()) {
+            node.word = null;
+        } else {
+            Node child = node.children.get(word.charAt(at));
+            if(child != null && delete(child, word, at + 1)) {
+                node.children.remove(word.charAt(at));
+            }
+        }
+        return node.word == null && node.children.isEmpty();
+    }
+
+    /*
+    ** the distinct lower-case words of a title or query.
+    */
+    private static List<String> words(String text) {
+        List<String> words = new ArrayList<String>();
+        if(text == null) {
+            return words;
+        }
+        for(String word : WORDS.split(text.toLowerCase(Locale.ROOT))) {
+            if(word.length() > 0 && !words.contains(word)) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * This class traces the database round trips of user actions.  A span is
+ * opened around each menu action; every query EmbeddedSQL runs on that
+ * thread while the span is open is counted against it with its template
+ * and time.  A transaction counts as one round trip.
+ *
+ * When a span ends it is flagged if one template ran movienet.trace.repeat
+ * times or more (an N+1 loop), or if the action ran more queries than its
+ * budget in movienet.trace.budget, e.g. "viewCart=1,checkMovieQuery=2".
+ * Flagged spans are reported on stderr.  Across spans, each action also
+ * keeps how its query count relates to the rows it read, so actions whose
+ * round trips grow with the data show up in summary().
+ *
+ * Tracing is off unless movienet.trace is true.
+ *
+ */
+public class Tracer {
+
+    public static final boolean ENABLED = Boolean.getBoolean("movienet.trace");
+    // runs of one template within a span that mark it as an N+1 loop.
+    private static final int REPEAT =
+        Integer.getInteger("movienet.trace.repeat", 3);
+    private static final Map<String, Integer> BUDGETS =
+        budgets(System.getProperty("movienet.trace.budget", ""));
+
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<Span>();
+    private static final ConcurrentHashMap<String, Action> ACTIONS =
+        new ConcurrentHashMap<String, Action>();
+
+    // handed out for no action or when a span is already open.
+    private static final Span NONE = new Span(null);
+
+    /**
+     * The queries of one user action.
+     */
+    public static class Span {
+        private final String _action;
+        private final long _start = System.nanoTime();
+        private final LinkedHashMap<String, int[]> _templates =
+            new LinkedHashMap<String, int[]>();
+        private int _queries = 0;
+        private long _rows = 0;
+        private long _dbNanos = 0;
+
+        Span(String action) {
+            this._action = action;
+        }
+
+        /**
+        * Closes the span, checks it and adds it to its action's totals.
+        */
+        public void end() {
+            if(this._action == null) {
+                return;
+            }
+            CURRENT.remove();
+            if(!ENABLED) {
+                return;
+            }
+            StringBuilder why = new StringBuilder();
+            for(Map.Entry<String, int[]> e : this._templates.entrySet()) {
+                if(e.getValue()[0] >= REPEAT) {
+                    why.append("\n    N+1: ").append(e.getValue()[0])
+                        .append(" x ").append(e.getKey());
+                }
+            }
+            Integer budget = BUDGETS.get(this._action);
+            if(budget != null && this._queries > budget) {
+                why.append("\n    over budget: ").append(this._queries)
+                    .append(" queries, budget ").append(budget);
+            }
+            boolean flagged = why.length() > 0;
+            action(this._action).add(this, flagged);
+            if(flagged) {
+                System.err.println("trace: " + this + why);
+            }
+        }
+
+        public String toString() {
+            return this._action + " ran " + this._queries + " queries in "
+                + TimeUnit.NANOSECONDS.toMicros(this._dbNanos) / 1e3
+                + "ms of " + TimeUnit.NANOSECONDS.toMicros(
+                    System.nanoTime() - this._start) / 1e3 + "ms, "
+                + this._rows + " rows";
+        }
+    }
+
+    /*
+    ** totals of every span of one action, with the sums needed to
+    ** correlate query count with rows read.
+    */
+    private static class Action {
+        long spans = 0;
+        long flagged = 0;
+        long queries = 0;
+        int minQueries = Integer.MAX_VALUE;
+        int maxQueries = 0;
+        long dbNanos = 0;
+        double sumRows = 0;
+        double sumQueries = 0;
+        double sumRowsQueries = 0;
+        double sumRows2 = 0;
+        double sumQueries2 = 0;
+
+        synchronized void add(Span span, boolean flag) {
+            ++this.spans;
+            this.flagged += flag ? 1 : 0;
+            this.queries += span._queries;
+            this.minQueries = Math.min(this.minQueries, span._queries);
+            this.maxQueries = Math.max(this.maxQueries, span._queries);
+            this.dbNanos += span._dbNanos;
+            double r = span._rows;
+            double q = span._queries;
+            this.sumRows += r;
+            this.sumQueries += q;
+            this.sumRowsQueries += r * q;
+            this.sumRows2 += r * r;
+            this.sumQueries2 += q * q;
+        }
+
+        /*
+        ** pearson correlation of queries with rows, 0 when either is
+        ** constant.
+        */
+        synchronized double correlation() {
+            double n = this.spans;
+            double cov = n * this.sumRowsQueries
+                - this.sumRows * this.sumQueries;
+            double vr = n * this.sumRows2 - this.sumRows * this.sumRows;
+            double vq = n * this.sumQueries2
+                - this.sumQueries * this.sumQueries;
+            return vr <= 0 || vq <= 0 ? 0 : cov / Math.sqrt(vr * vq);
+        }
+    }
+
+    /**
+    * Opens a span for a user action on the calling thread.  Actions
+    * started inside another span are counted as part of it.  The span
+    * names the action of its queries in QueryMetrics even when tracing
+    * is off; only the checks need movienet.trace.
+    *
+    * @param action the name of the action, or null to trace nothing
+    * @return the span, to be ended in a finally block
+    */
+    public static Span begin(String action) {
+        if(action == null || CURRENT.get() != null) {
+            return NONE;
+        }
+        Span span = new Span(action);
+        CURRENT.set(span);
+        return span;
+    }
+
+    /**
+    * @return the action of the span open on the calling thread, or null
+    */
+    static String currentAction() {
+        Span span = CURRENT.get();
+        return span == null ? null : span._action;
+    }
+
+    /**
+    * Counts a query against the span open on the calling thread, if any.
+    *
+    * @param template the query template
+    * @param nanos how long the query took
+    * @param rows the rows it returned or changed, or -1 if it failed
+    */
+    static void record(String template, long nanos, int rows) {
+        if(!ENABLED) {
+            return;
+        }
+        Span span = CURRENT.get();
+        if(span == null) {
+            return;
+        }
+        ++span._queries;
+        span._dbNanos += nanos;
+        span._rows += Math.max(0, rows);
+        int[] count = span._templates.get(template);
+        if(count == null) {
+            span._templates.put(template, new int[] { 1 });
+        } else {
+            ++count[0];
+        }
+    }
+
+    /**
+    * @return the number of spans flagged since startup or the last reset
+    */
+    public static long getFlaggedCount() {
+        long flagged = 0;
+        for(Action a : ACTIONS.values()) {
+            synchronized(a) {
+                flagged += a.flagged;
+            }
+        }
+        return flagged;
+    }
+
+    /**
+    * Forgets every action's totals.
+    */
+    public static void reset() {
+        ACTIONS.clear();
+    }
+
+    /**
+    * @return one line per traced action with its round trips per span,
+    *         database time and how strongly its query count follows the
+    *         rows it reads
+    */
+    public static String summary() {
+        StringBuilder out = new StringBuilder(String.format(
+            "%-20s %7s %7s %5s %5s %7s %9s %6s%n", "action", "spans",
+            "flagged", "min", "max", "mean", "db ms/op", "corr"));
+        for(Map.Entry<String, Action> e
+                : new TreeMap<String, Action>(ACTIONS).entrySet()) {
+            Action a = e.getValue();
+            synchronized(a) {
+                double corr = a.correlation();
+                out.append(String.format(
+                    "%-20s %7d %7d %5d %5d %7.1f %9.2f %6.2f%s%n",
+                    e.getKey(), a.spans, a.flagged, a.minQueries,
+                    a.maxQueries, (double)a.queries / a.spans,
+                    a.dbNanos / 1e6 / a.spans, corr,
+                    corr > 0.8 && a.maxQueries > a.minQueries
+                        ? "  grows with data" : ""));
+            }
+        }
+        return out.toString();
+    }
+
+    private static Action action(String name) {
+        Action action = ACTIONS.get(name);
+        if(action == null) {
+            Action created = new Action();
+            action = ACTIONS.putIfAbsent(name, created);
+            if(action == null) {
+                action = created;
+            }
+        }
+        return action;
+    }
+
+    private static Map<String, Integer> budgets(String spec) {
+        Map<String, Integer> budgets = new ConcurrentHashMap<String, Integer>();
+        for(String pair : spec.split(",")) {
+            String[] kv = pair.split("=");
+            if(kv.length == 2) {
+                budgets.put(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+            }
+        }
+        return budgets;
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+
+
+/**
+ * This interface is a unit of work run by EmbeddedSQL.inTransaction.  All
+ * statements it issues through the given connection commit or roll back
+ * together.
+ *
+ */
+public interface Transaction<T> {
+
+    /**
+    * Runs the work.  Throwing rolls the transaction back.
+    *
+    * @param conn the connection the transaction is open on
+    * @return the result handed back by inTransaction
+    * @throws java.sql.SQLException when a statement fails
+    */
+    T run(PooledConnection conn) throws SQLException;
+}
@@ -0,0 +1,416 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * This class keeps what is trending: how much each video was watched,
+ * liked and rated in the last hour, day and week.  Events are counted in
+ * five-minute slots on a ring covering a week.  Each window keeps running
+ * totals per video; an event adds to its slot and to the totals of every
+ * window it falls in, and as the clock moves past a slot its counts are
+ * subtracted from the windows it leaves.
+ *
+ * The top videos of every window, overall and per genre, are picked with
+ * bounded heaps on a fixed schedule and published as one immutable
+ * snapshot, so reading them costs a map lookup.  At startup the last week
+ * is read back from the watch, likes and rate tables.
+ *
+ */
+public class Trending {
+
+    public static final int HOUR = 0;
+    public static final int DAY = 1;
+    public static final int WEEK = 2;
+
+    // how much each kind of event counts.
+    private static final float WATCH_WEIGHT = 1;
+    private static final float LIKE_WEIGHT = 2;
+    // a rating of r counts r / RATING_SCALE.
+    private static final float RATING_SCALE = 5;
+
+    static final long SLOT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    // slots in the hour, day and week windows.
+    static final int[] WINDOW_SLOTS = { 12, 12 * 24, 12 * 24 * 7 };
+    private static final int SLOTS = WINDOW_SLOTS[WEEK];
+
+    /**
+     * A trending video and its score in a window.
+     */
+    public static class Entry {
+        public final int videoId;
+        public final float score;
+
+        public Entry(int videoId, float score) {
+            this.videoId = videoId;
+            this.score = score;
+        }
+    }
+
+    /*
+    ** the counts of one five-minute slot.
+    */
+    private static class Slot {
+        long index = -1;
+        final HashMap<Integer, float[]> scores =
+            new HashMap<Integer, float[]>();
+    }
+
+    /*
+    ** the published top lists: overall and per genre_id, per window.
+    */
+    private static class Snapshot {
+        final List<List<Entry>> overall = new ArrayList<List<Entry>>();
+        final List<Map<Integer, List<Entry>>> byGenre =
+            new ArrayList<Map<Integer, List<Entry>>>();
+    }
+
+    private final EmbeddedSQL _esql;
+    private final int _size;
+    private final Slot[] _ring = new Slot[SLOTS];
+    // the newest slot the ring has advanced to.
+    private long _current = -1;
+    private final List<HashMap<Integer, float[]>> _totals =
+        new ArrayList<HashMap<Integer, float[]>>();
+    // genre_ids of each video, and the genre names by genre_id.
+    private volatile Map<Integer, int[]> _genres =
+        new HashMap<Integer, int[]>();
+    private volatile Map<Integer, String> _genreNames =
+        new LinkedHashMap<Integer, String>();
+    private volatile Snapshot _snapshot = new Snapshot();
+    private ScheduledExecutorService _publisher = null;
+
+    /**
+    * Creates a new engine, reads back the last week of interactions and
+    * schedules publishing of the top lists.
+    *
+    * @param esql the database the interaction tables live in
+    * @param size the number of videos kept per window and genre
+    * @param publishMillis milliseconds between publishing the top lists
+    * @throws java.sql.SQLException when the initial load fails
+    */
+    public Trending(EmbeddedSQL esql, int size, long publishMillis)
+            throws SQLException {
+        this(esql, size);
+        loadGenres();
+        load();
+        publish();
+        this._publisher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "trending-publish");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        this._publisher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    publish();
+                }
+            }, publishMillis, publishMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+    ** an engine that has counted nothing yet, with nothing loaded and no
+    ** publishing scheduled.
+    */
+    Trending(EmbeddedSQL esql, int size) {
+        this._esql = esql;
+        this._size = size;
+        for(int i = 0; i < SLOTS; ++i) {
+            this._ring[i] = new Slot();
+        }
+        for(int w = 0; w < WINDOW_SLOTS.length; ++w) {
+            this._totals.add(new HashMap<Integer, float[]>());
+        }
+    }
+
+    /**
+    * Counts one interaction.
+    *
+    * @param kind ActivityFeed.WATCHED, LIKED or RATED
+    * @param vidID the video acted on
+    * @param rating the rating for RATED events
+    * @param ts when the interaction happened
+    */
+    public void record(String kind, int vidID, int rating, Timestamp ts) {
+        float weight;
+        if(ActivityFeed.WATCHED.equals(kind)) {
+            weight = WATCH_WEIGHT;
+        } else if(ActivityFeed.LIKED.equals(kind)) {
+            weight = LIKE_WEIGHT;
+        } else if(ActivityFeed.RATED.equals(kind)) {
+            weight = rating / RATING_SCALE;
+        } else {
+            return;
+        }
+        add(vidID, weight, ts.getTime(),
+            System.currentTimeMillis() / SLOT_MILLIS);
+    }
+
+    /**
+    * Returns the top videos of a window as of the last publish.
+    *
+    * @param window HOUR, DAY or WEEK
+    * @param genreID a genre_id, or 0 for every genre
+    * @return the videos, highest score first
+    */
+    public List<Entry> top(int window, int genreID) {
+        Snapshot snapshot = this._snapshot;
+        if(genreID == 0) {
+            return snapshot.overall.get(window);
+        }
+        List<Entry> top = snapshot.byGenre.get(window).get(genreID);
+        return top == null ? Collections.<Entry>emptyList() : top;
+    }
+
+    /**
+    * @return the genre names by genre_id, in genre_id order
+    */
+    public Map<Integer, String> getGenres() {
+        return this._genreNames;
+    }
+
+    /**
+    * Picks the top videos of every window, overall and per genre, from the
+    * running totals and publishes them.
+    */
+    public void publish() {
+        Map<Integer, int[]> genres = this._genres;
+        Snapshot snapshot = new Snapshot();
+        synchronized(this) {
+            advance(System.currentTimeMillis() / SLOT_MILLIS);
+            for(HashMap<Integer, float[]> totals : this._totals) {
+                PriorityQueue<Entry> overall = heap();
+                HashMap<Integer, PriorityQueue<Entry>> byGenre =
+                    new HashMap<Integer, PriorityQueue<Entry>>();
+                for(Map.Entry<Integer, float[]> e : totals.entrySet()) {
+                    Entry entry = new Entry(e.getKey(), e.getValue()[0]);
+                    offer(overall, entry);
+                    int[] ids = genres.get(e.getKey());
+                    for(int g = 0; ids != null && g < ids.length; ++g) {
+                        PriorityQueue<Entry> top = byGenre.get(ids[g]);
+                        if(top == null) {
+                            top = heap();
+                            byGenre.put(ids[g], top);
+                        }
+                        offer(top, entry);
+                    }
+                }
+                snapshot.overall.add(sorted(overall));
+                HashMap<Integer, List<Entry>> lists =
+                    new HashMap<Integer, List<Entry>>();
+                for(Map.Entry<Integer, PriorityQueue<Entry>> e
+                        : byGenre.entrySet()) {
+                    lists.put(e.getKey(), sorted(e.getValue()));
+                }
+                snapshot.byGenre.add(lists);
+            }
+        }
+        this._snapshot = snapshot;
+    }
+
+    /*
+    ** reads the genres of every video and the genre names.
+    */
+    private void loadGenres() throws SQLException {
+        final HashMap<Integer, int[]> genres = new HashMap<Integer, int[]>();
+        this._esql.forEachRow("SELECT video_id, genre_id FROM categorize",
+            this._esql.getFetchSize(), new RowHandler() {
+                public void row(ResultSet rs) throws SQLException {
+                    int[] had = genres.get(rs.getInt(1));
+                    int[] ids = new int[had == null ? 1 : had.length + 1];
+                    if(had != null) {
+                        System.arraycopy(had, 0, ids, 0, had.length);
+                    }
+                    ids[ids.length - 1] = rs.getInt(2);
+                    genres.put(rs.getInt(1), ids);
+                }
+            });
+        final LinkedHashMap<Integer, String> names =
+            new LinkedHashMap<Integer, String>();
+        this._esql.forEachRow("SELECT genre_id, genre_name FROM genre "
+            + "ORDER BY genre_id", new RowHandler() {
+                public void row(ResultSet rs) throws SQLException {
+                    names.put(rs.getInt(1), rs.getString(2));
+                }
+            });
+        this._genres = genres;
+        this._genreNames = Collections.unmodifiableMap(names);
+    }
+
+    /**
+    * Stops publishing.
+    */
+    public void close() {
+        if(this._publisher != null) {
+            this._publisher.shutdownNow();
+        }
+    }
+
+    /*
+    ** reads back the interactions of the last week.
+    */
+    private void load() throws SQLException {
+        Timestamp since = new Timestamp(System.currentTimeMillis()
+            - SLOTS * SLOT_MILLIS);
+        final String[] kinds = { ActivityFeed.WATCHED, ActivityFeed.LIKED,
+            ActivityFeed.RATED };
+        String[] queries = {
+            "SELECT video_id, watch_time, -1 FROM watch WHERE watch_time>?",
+            "SELECT video_id, like_time, -1 FROM likes WHERE like_time>?",
+            "SELECT video_id, rate_time, rating FROM rate "
+                + "WHERE rate_time>? AND rating IS NOT NULL" };
+        for(int i = 0; i < queries.length; ++i) {
+            final String kind = kinds[i];
+            this._esql.forEachRow(queries[i], this._esql.getFetchSize(),
+                new RowHandler() {
+                    public void row(ResultSet rs) throws SQLException {
+                        record(kind, rs.getInt(1), rs.getInt(3),
+                            rs.getTimestamp(2));
+                    }
+                }, since);
+        }
+    }
+
+    /*
+    ** counts weight for a video at millis, with the clock at slot now.
+    */
+    synchronized void add(int vidID, float weight, long millis, long now) {
+        advance(now);
+        // events from a clock ahead of ours count as now
+        long index = Math.min(millis / SLOT_MILLIS, this._current);
+        long age = this._current - index;
+        if(age >= SLOTS) {
+            return;
+        }
+        Slot slot = this._ring[(int)(index % SLOTS)];
+        if(slot.index != index) {
+            slot.index = index;
+            slot.scores.clear();
+        }
+        addTo(slot.scores, vidID, weight);
+        for(int w = 0; w < WINDOW_SLOTS.length; ++w) {
+            if(age < WINDOW_SLOTS[w]) {
+                addTo(this._totals.get(w), vidID, weight);
+            }
+        }
+    }
+
+    /*
+    ** moves the ring forward to slot now, taking the slots that fall out
+    ** of each window off its totals.  callers hold the lock.
+    */
+    void advance(long now) {
+        if(now - this._current > SLOTS) {
+            // idle for over a week: nothing is left in any window
+            for(Slot slot : this._ring) {
+                slot.index = -1;
+                slot.scores.clear();
+            }
+            for(HashMap<Integer, float[]> totals : this._totals) {
+                totals.clear();
+            }
+            this._current = now;
+            return;
+        }
+        while(this._current < now) {
+            ++this._current;
+            for(int w = 0; w < WINDOW_SLOTS.length; ++w) {
+                long leaving = this._current - WINDOW_SLOTS[w];
+                Slot slot = this._ring[(int)(leaving % SLOTS)];
+                if(leaving >= 0 && slot.index == leaving) {
+                    HashMap<Integer, float[]> totals = this._totals.get(w);
+                    for(Map.Entry<Integer, float[]> e
+                            : slot.scores.entrySet()) {
+                        float[] total = totals.get(e.getKey());
+                        total[0] -= e.getValue()[0];
+                        if(total[0] <= 1e-3f) {
+                            totals.remove(e.getKey());
+                        }
+                    }
+                }
+            }
+            // the week window just let go of this slot
+            Slot slot = this._ring[(int)(this._current % SLOTS)];
+            slot.index = this._current;
+            slot.scores.clear();
+        }
+    }
+
+    /*
+    ** the running total of a video in a window, 0 if it has none.
+    */
+    synchronized float total(int window, int vidID) {
+        float[] total = this._totals.get(window).get(vidID);
+        return total == null ? 0 : total[0];
+    }
+
+    private static void addTo(HashMap<Integer, float[]> scores, int vidID,
+            float weight) {
+        float[] score = scores.get(vidID);
+        if(score == null) {
+            scores.put(vidID, new float[] { weight });
+        } else {
+            score[0] += weight;
+        }
+    }
+
+    /*
+    ** bounded min-heaps of the best entries, ties broken towards lower
+    ** video ids.
+    */
+    private static PriorityQueue<Entry> heap() {
+        return new PriorityQueue<Entry>(11, new java.util.Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                if(a.score != b.score) {
+                    return a.score < b.score ? -1 : 1;
+                }
+                return b.videoId - a.videoId;
+            }
+        });
+    }
+
+    private void offer(PriorityQueue<Entry> heap, Entry entry) {
+        if(heap.size() < this._size) {
+            heap.add(entry);
+        } else if(heap.comparator().compare(entry, heap.peek()) > 0) {
+            heap.poll();
+            heap.add(entry);
+        }
+    }
+
+    private static List<Entry> sorted(PriorityQueue<Entry> heap) {
+        Entry[] entries = new Entry[heap.size()];
+        for(int i = entries.length - 1; i >= 0; --i) {
+            entries[i] = heap.poll();
+        }
+        List<Entry> list = new ArrayList<Entry>(entries.length);
+        Collections.addAll(list, entries);
+        return Collections.unmodifiableList(list);
+    }
+}
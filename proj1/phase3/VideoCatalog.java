@@ -0,0 +1,234 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * This class caches the video table in memory for title, id and price
+ * lookups and title search.  The whole table is loaded at startup and
+ * reloaded on a fixed schedule to pick up changes made outside the
+ * application; lookups that miss fall through to the database and are
+ * cached.  Titles found missing are remembered until the next reload, so
+ * mistyped titles do not reach the database again.
+ *
+ */
+public class VideoCatalog {
+
+    // columns every lookup needs.
+    private static final String COLUMNS =
+        "video_id, title, online_price, dvd_price";
+    // missing titles remembered per generation of the cache.
+    private static final int MAX_MISSING = 10000;
+
+    /**
+     * The cached columns of one video.
+     */
+    public static class Video {
+        public final int id;
+        public final String title;
+        public final int onlinePrice;
+        public final int dvdPrice;
+
+        public Video(int id, String title, int onlinePrice, int dvdPrice) {
+            this.id = id;
+            this.title = title;
+            this.onlinePrice = onlinePrice;
+            this.dvdPrice = dvdPrice;
+        }
+
+        /**
+        * @param type 1 for online, 2 for DVD
+        * @return the price of the video for that purchase type
+        */
+        public int price(int type) {
+            return type == 1 ? this.onlinePrice : this.dvdPrice;
+        }
+    }
+
+    /*
+    ** the indexes of one generation of the cache, swapped as a unit.
+    */
+    private static class Maps {
+        final ConcurrentHashMap<Integer, Video> byId =
+            new ConcurrentHashMap<Integer, Video>();
+        final ConcurrentHashMap<String, Video> byTitle =
+            new ConcurrentHashMap<String, Video>();
+        final TitleIndex search = new TitleIndex();
+        final Set<String> missing = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+
+        void put(Video video) {
+            this.byId.put(video.id, video);
+            this.missing.remove(video.title);
+            this.search.add(video);
+            // titles are not unique; keep the lowest id like the old query
+            Video other = this.byTitle.putIfAbsent(video.title, video);
+            if(other != null && other.id > video.id) {
+                this.byTitle.put(video.title, video);
+            }
+        }
+    }
+
+    private final EmbeddedSQL _esql;
+    private volatile Maps _maps = new Maps();
+    private final ScheduledExecutorService _refresher;
+
+    /**
+    * Creates a new catalog, loads the video table and schedules reloads.
+    *
+    * @param esql the database the video table lives in
+    * @param refreshMillis milliseconds between full reloads
+    * @throws java.sql.SQLException when the initial load fails
+    */
+    public VideoCatalog(EmbeddedSQL esql, long refreshMillis)
+            throws SQLException {
+        this._esql = esql;
+        refresh();
+        this._refresher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "catalog-refresh");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        this._refresher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        refresh();
+                    } catch(SQLException e) {
+                        System.err.println(e.getMessage());
+                    }
+                }
+            }, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+    * Reloads the whole video table and replaces the cached maps.
+    *
+    * @throws java.sql.SQLException when the load fails
+    */
+    public void refresh() throws SQLException {
+        final Maps maps = new Maps();
+        this._esql.forEachRow("SELECT " + COLUMNS + " FROM video",
+            this._esql.getFetchSize(), new RowHandler() {
+                public void row(ResultSet rs) throws SQLException {
+                    maps.put(read(rs));
+                }
+            });
+        this._maps = maps;
+    }
+
+    /**
+    * @param vidID the video_id to look up
+    * @return the video, or null if there is no such video
+    * @throws java.sql.SQLException when a cache miss cannot be loaded
+    */
+    public Video get(int vidID) throws SQLException {
+        Maps maps = this._maps;
+        Video video = maps.byId.get(vidID);
+        if(video == null) {
+            video = load(maps, "SELECT " + COLUMNS
+                + " FROM video WHERE video_id=?", vidID);
+        }
+        return video;
+    }
+
+    /**
+    * @param title the exact title to look up
+    * @return the video with the lowest id with that title, or null
+    * @throws java.sql.SQLException when a cache miss cannot be loaded
+    */
+    public Video byTitle(String title) throws SQLException {
+        Maps maps = this._maps;
+        Video video = maps.byTitle.get(title);
+        if(video == null && !maps.missing.contains(title)) {
+            video = load(maps, "SELECT " + COLUMNS + " FROM video "
+                + "WHERE title=? ORDER BY video_id LIMIT 1", title);
+            if(video == null && maps.missing.size() < MAX_MISSING) {
+                maps.missing.add(title);
+            }
+        }
+        return video;
+    }
+
+    /**
+    * Searches titles by words, prefixes and near misses.
+    *
+    * @param query the words to look for; the last may be incomplete
+    * @param limit the maximum number of videos returned
+    * @return the best matching videos, best first
+    */
+    public List<Video> search(String query, int limit) {
+        return this._maps.search.search(query, limit);
+    }
+
+    /**
+    * Adds or replaces a video after it was written by this process.
+    *
+    * @param video the video as stored in the database
+    */
+    public void put(Video video) {
+        this._maps.put(video);
+    }
+
+    /**
+    * Drops a video after it was deleted.
+    *
+    * @param vidID the video_id that was deleted
+    */
+    public void invalidate(int vidID) {
+        Maps maps = this._maps;
+        Video video = maps.byId.remove(vidID);
+        if(video != null) {
+            maps.byTitle.remove(video.title, video);
+            maps.search.remove(vidID);
+        }
+    }
+
+    /**
+    * Stops the scheduled reloads.
+    */
+    public void close() {
+        this._refresher.shutdownNow();
+    }
+
+    private Video load(Maps maps, String query, Object param)
+            throws SQLException {
+        final Video[] found = new Video[1];
+        this._esql.forEachRow(query, new RowHandler() {
+            public void row(ResultSet rs) throws SQLException {
+                found[0] = read(rs);
+            }
+        }, param);
+        if(found[0] != null) {
+            maps.put(found[0]);
+        }
+        return found[0];
+    }
+
+    private static Video read(ResultSet rs) throws SQLException {
+        return new Video(rs.getInt(1), rs.getString(2), rs.getInt(3),
+            rs.getInt(4));
+    }
+}
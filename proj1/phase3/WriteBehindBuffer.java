@@ -0,0 +1,635 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * This class buffers interaction events in memory and writes them behind
+ * the caller.  A background thread groups queued events into one
+ * Interactions.recordAll transaction per flush, so many users pay for one
+ * commit.  Every accepted event is first appended to a local spill file,
+ * so events survive a crash of the process.  The spill is split into
+ * numbered segments of flushSize events; a segment is deleted as soon as
+ * every event in it has been committed, so the spill holds little more
+ * than what is still queued.  Segments left by an earlier run are replayed
+ * at startup, written without being fanned out to walls or counted as
+ * trending.
+ *
+ * A flush that fails for a transient reason (a lost connection, a
+ * deadlock, an exhausted pool) is retried until it commits.  One that
+ * fails for any other reason is retried an event at a time, and events
+ * that can never be written, e.g. for a video deleted meanwhile, are
+ * appended to a dead-letter file next to the spill instead of holding up
+ * the events behind them.
+ *
+ * Events reach the database up to one flush interval after they are
+ * submitted; reads of the same user's likes or wall may lag by that much.
+ *
+ */
+public class WriteBehindBuffer {
+
+    // longest pause between attempts to write a failed flush.
+    private static final long MAX_BACKOFF = 5000;
+
+    /*
+    ** one numbered spill file and how many of its events are not yet
+    ** committed.
+    */
+    private static class Segment {
+        final File file;
+        FileChannel channel;
+        int appended = 0;
+        int pending = 0;
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.channel.truncate(0);
+        }
+    }
+
+    private final Interactions _interactions;
+    private final int _flushSize;
+    private final long _flushInterval;
+    private final long _offerTimeout;
+    private final boolean _fsync;
+    // one permit per event queued or being written.
+    private final Semaphore _slots;
+    private final LinkedBlockingQueue<Interactions.Event> _queue =
+        new LinkedBlockingQueue<Interactions.Event>();
+    // guards the spill segments; the last one is appended to.
+    private final Object _spillLock = new Object();
+    private final File _spillFile;
+    private final File _deadFile;
+    private final ArrayDeque<Segment> _segments = new ArrayDeque<Segment>();
+    private long _nextSegment;
+    // events appended to the spill so far, under _spillLock.
+    private long _appended = 0;
+    // events forced to disk so far; one force covers every event appended
+    // before it, so threads waiting on _syncLock usually find theirs done.
+    private final Object _syncLock = new Object();
+    private long _synced = 0;
+    private final Thread _writer;
+    private volatile boolean _closed = false;
+
+    private final AtomicLong _flushes = new AtomicLong();
+    private final AtomicLong _written = new AtomicLong();
+    private final AtomicLong _failures = new AtomicLong();
+    private final AtomicLong _overflows = new AtomicLong();
+    private final AtomicLong _dead = new AtomicLong();
+
+    /**
+    * Creates a new buffer, replays events left in the spill by an earlier
+    * run and starts the writer thread.  Spill segments that cannot be
+    * replayed are renamed aside and reported, rather than failing startup.
+    *
+    * @param interactions the recorder events are written through
+    * @param spillFile the path spill segments are numbered from, e.g.
+    *        spillFile.7; spillFile.dead holds events that failed for good
+    * @param capacity the maximum number of events queued or being written
+    * @param flushSize the maximum number of events per transaction
+    * @param flushInterval milliseconds an event may wait for others to
+    *        join its transaction
+    * @param offerTimeout milliseconds a caller waits for room in a full
+    *        buffer before writing its event itself
+    * @param fsync whether each event is forced to disk before submit
+    *        returns; callers arriving together share one force
+    * @throws java.io.IOException when the spill file cannot be opened
+    */
+    public WriteBehindBuffer(Interactions interactions, File spillFile,
+            int capacity, int flushSize, long flushInterval, long offerTimeout,
+            boolean fsync) throws IOException {
+        if(capacity < 1 || flushSize < 1) {
+            throw new IllegalArgumentException("Invalid buffer size: capacity="
+                + capacity + " flushSize=" + flushSize);
+        }
+        this._interactions = interactions;
+        this._flushSize = flushSize;
+        this._flushInterval = flushInterval;
+        this._offerTimeout = offerTimeout;
+        this._fsync = fsync;
+        this._slots = new Semaphore(capacity);
+        this._spillFile = spillFile;
+        this._deadFile = new File(spillFile.getPath() + ".dead");
+
+        this._nextSegment = replay();
+        this._segments.add(new Segment(segment(this._nextSegment++)));
+
+        this._writer = new Thread(new Runnable() {
+                public void run() {
+                    drain();
+                }
+            }, "write-behind");
+        this._writer.setDaemon(true);
+        this._writer.start();
+    }
+
+    /**
+    * Accepts an event for writing.  When the buffer is full the caller
+    * waits up to the offer timeout for the writer to catch up, then
+    * records the event itself, so a slow database slows producers down
+    * instead of growing the queue.
+    *
+    * @param event the event to record
+    * @throws java.io.IOException when the event cannot be spilled, or
+    *         cannot be forced to disk; it is still written in that case
+    * @throws java.sql.SQLException when an overflowing event cannot be
+    *         written directly
+    */
+    public void submit(Interactions.Event event)
+            throws IOException, SQLException {
+        if(this._closed) {
+            throw new IllegalStateException("Write-behind buffer is closed");
+        }
+        boolean queued;
+        try {
+            queued = this._slots.tryAcquire(this._offerTimeout,
+                TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queued = false;
+        }
+        if(!queued) {
+            this._overflows.incrementAndGet();
+            this._interactions.record(event);
+            return;
+        }
+        long appended;
+        try {
+            synchronized(this._spillLock) {
+                Segment tail = this._segments.getLast();
+                if(tail.appended >= this._flushSize) {
+                    // later events go to a new segment; this one is
+                    // deleted once its events are committed
+                    if(this._fsync) {
+                        tail.channel.force(false);
+                    }
+                    tail.channel.close();
+                    tail.channel = null;
+                    tail = new Segment(segment(this._nextSegment++));
+                    this._segments.add(tail);
+                }
+                tail.channel.write(ByteBuffer.wrap(
+                    encode(event).getBytes(StandardCharsets.UTF_8)));
+                ++tail.appended;
+                ++tail.pending;
+                appended = ++this._appended;
+                this._queue.add(event);
+            }
+        } catch (IOException e) {
+            this._slots.release();
+            throw e;
+        }
+        if(this._fsync) {
+            sync(appended);
+        }
+    }
+
+    /*
+    ** forces the spill to disk up to the given appended event, unless a
+    ** force by another thread already covered it.  runs outside _spillLock
+    ** so other producers keep appending meanwhile.
+    */
+    private void sync(long appended) throws IOException {
+        synchronized(this._syncLock) {
+            if(this._synced >= appended) {
+                return;
+            }
+            long upto;
+            FileChannel channel;
+            synchronized(this._spillLock) {
+                upto = this._appended;
+                channel = this._segments.getLast().channel;
+            }
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // the segment was forced when later events rotated it out
+            }
+            this._synced = upto;
+        }
+    }
+
+    /**
+    * Stops accepting events and waits for the writer to flush the queue.
+    * Events that still cannot be written stay in the spill for the next
+    * run.
+    */
+    public void close() {
+        this._closed = true;
+        try {
+            this._writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized(this._spillLock) {
+            for(Segment segment : this._segments) {
+                try {
+                    if(segment.channel != null) {
+                        segment.channel.close();
+                    }
+                } catch (IOException e) {
+                }
+                if(segment.pending == 0) {
+                    segment.file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+    * @return the number of events waiting to be written
+    */
+    public int getQueuedCount() {
+        return this._queue.size();
+    }
+
+    /**
+    * @return the number of transactions committed by the writer
+    */
+    public long getFlushCount() {
+        return this._flushes.get();
+    }
+
+    /**
+    * @return the number of events committed by the writer
+    */
+    public long getWrittenCount() {
+        return this._written.get();
+    }
+
+    /**
+    * @return the number of writes that failed and were retried
+    */
+    public long getFailureCount() {
+        return this._failures.get();
+    }
+
+    /**
+    * @return the number of events written by their caller because the
+    *         buffer was full
+    */
+    public long getOverflowCount() {
+        return this._overflows.get();
+    }
+
+    /**
+    * @return the number of events moved to the dead-letter file
+    */
+    public long getDeadCount() {
+        return this._dead.get();
+    }
+
+    public String toString() {
+        return "queued=" + getQueuedCount() + " flushes=" + getFlushCount()
+            + " written=" + getWrittenCount() + " failures="
+            + getFailureCount() + " overflows=" + getOverflowCount()
+            + " dead=" + getDeadCount();
+    }
+
+    /*
+    ** writer loop: waits for an event, gathers more until the batch is full
+    ** or the flush interval has passed, and commits them together.
+    */
+    private void drain() {
+        List<Interactions.Event> batch = new ArrayList<Interactions.Event>();
+        while(!this._closed || !this._queue.isEmpty()) {
+            try {
+                Interactions.Event first = this._queue.poll(
+                    this._flushInterval, TimeUnit.MILLISECONDS);
+                if(first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(this._flushInterval);
+                while(batch.size() < this._flushSize) {
+                    this._queue.drainTo(batch,
+                        this._flushSize - batch.size());
+                    long wait = deadline - System.nanoTime();
+                    if(batch.size() >= this._flushSize || wait <= 0
+                            || this._closed) {
+                        break;
+                    }
+                    Interactions.Event next = this._queue.poll(wait,
+                        TimeUnit.NANOSECONDS);
+                    if(next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if(!flush(batch)) {
+                return;
+            }
+            batch.clear();
+        }
+    }
+
+    /*
+    ** writes one batch, then frees its spill segments and buffer slots.
+    ** returns false if the buffer was closed before the batch was written,
+    ** leaving its events in the spill.
+    */
+    private boolean flush(List<Interactions.Event> batch) {
+        int dead = write(batch, true, true);
+        if(dead < 0) {
+            return false;
+        }
+        this._flushes.incrementAndGet();
+        this._written.addAndGet(batch.size() - dead);
+        synchronized(this._spillLock) {
+            int done = batch.size();
+            while(done > 0) {
+                Segment head = this._segments.getFirst();
+                int n = Math.min(done, head.pending);
+                head.pending -= n;
+                done -= n;
+                if(head.channel != null || head.pending > 0) {
+                    if(head.pending == 0) {
+                        // the segment being appended to is fully
+                        // committed; start it over
+                        try {
+                            head.channel.truncate(0);
+                            head.appended = 0;
+                        } catch (IOException e) {
+                            System.err.println(e.getMessage());
+                        }
+                    }
+                    break;
+                }
+                this._segments.removeFirst();
+                head.file.delete();
+            }
+        }
+        this._slots.release(batch.size());
+        return true;
+    }
+
+    /*
+    ** writes events, retrying transient failures with backoff when retry
+    ** is set. when the events cannot be written as one transaction for any
+    ** other reason, writes them one at a time and moves those that still
+    ** fail to the dead-letter file. returns the number moved, or -1 if
+    ** the buffer was closed (or a transient failure was not retried)
+    ** before everything was written.
+    */
+    private int write(List<Interactions.Event> events, boolean publish,
+            boolean retry) {
+        SQLException failed;
+        try {
+            return commit(events, publish, retry) ? 0 : -1;
+        } catch (SQLException e) {
+            failed = e;
+        }
+        if(events.size() == 1) {
+            deadLetter(events.get(0), failed.getMessage());
+            return 1;
+        }
+        System.err.println(failed.getMessage());
+        int dead = 0;
+        for(Interactions.Event event : events) {
+            try {
+                if(!commit(Collections.singletonList(event), publish,
+                        retry)) {
+                    return -1;
+                }
+            } catch (SQLException e) {
+                deadLetter(event, e.getMessage());
+                ++dead;
+            }
+        }
+        return dead;
+    }
+
+    /*
+    ** one recordAll, repeated with backoff while it fails transiently.
+    ** recordAll only throws before its transaction commits, so a retry
+    ** never writes or publishes an event twice.  throws the failures that
+    ** no retry can fix.
+    */
+    private boolean commit(List<Interactions.Event> events, boolean publish,
+            boolean retry) throws SQLException {
+        long backoff = Math.max(1, this._flushInterval);
+        while(true) {
+            try {
+                this._interactions.recordAll(events, publish);
+                return true;
+            } catch (SQLException e) {
+                this._failures.incrementAndGet();
+                if(!isTransient(e)) {
+                    throw e;
+                }
+                System.err.println(e.getMessage());
+                if(!retry || this._closed) {
+                    return false;
+                }
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    /*
+    ** lost connections, transaction rollbacks, exhausted resources and
+    ** server shutdowns can succeed later; a pool timeout has no SQLState.
+    ** constraint, data and syntax errors fail the same way every time.
+    */
+    private static boolean isTransient(SQLException e) {
+        String state = e.getSQLState();
+        if(state == null) {
+            return true;
+        }
+        for(String cls : new String[] { "08", "40", "53", "57", "58" }) {
+            if(state.startsWith(cls)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+    ** appends an event that can never be written to the dead-letter file,
+    ** in the spill format after a comment line with the error, so it can
+    ** be inspected and replayed by hand.
+    */
+    private void deadLetter(Interactions.Event event, String error) {
+        this._dead.incrementAndGet();
+        String entry = "# " + escape(error) + "\n" + encode(event);
+        System.err.println("Dead-lettered " + event.kind + " by "
+            + event.user + " of video " + event.videoId + " to "
+            + this._deadFile);
+        try {
+            OutputStream out = new FileOutputStream(this._deadFile, true);
+            try {
+                out.write(entry.getBytes(StandardCharsets.UTF_8));
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /*
+    ** replays the segments left by an earlier run, oldest first, and
+    ** returns the number to start new segments from. the events are not
+    ** published: some may already be on walls and in the trending counts.
+    ** watch, like and rate are upserts and comments carry their id, so
+    ** rewriting rows that were already committed changes nothing.
+    */
+    private long replay() {
+        TreeMap<Long, File> segments = new TreeMap<Long, File>();
+        File dir = this._spillFile.getAbsoluteFile().getParentFile();
+        String prefix = this._spillFile.getName() + ".";
+        File[] files = dir.listFiles();
+        for(int i = 0; files != null && i < files.length; ++i) {
+            String name = files[i].getName();
+            if(name.startsWith(prefix)
+                    && name.substring(prefix.length()).matches("[0-9]+")) {
+                segments.put(Long.parseLong(name.substring(prefix.length())),
+                    files[i]);
+            }
+        }
+        // a single spill file from before segments were numbered
+        if(this._spillFile.isFile()) {
+            segments.put(-1L, this._spillFile);
+        }
+        for(File file : segments.values()) {
+            boolean replayed;
+            try {
+                replayed = replay(file);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                replayed = false;
+            }
+            if(replayed) {
+                file.delete();
+                continue;
+            }
+            File aside = new File(file.getPath() + ".unreplayed-"
+                + System.currentTimeMillis());
+            System.err.println("Could not replay " + file
+                + "; moved it to " + aside);
+            file.renameTo(aside);
+        }
+        return segments.isEmpty() ? 0 : Math.max(0, segments.lastKey() + 1);
+    }
+
+    /*
+    ** writes the events of one segment in flushSize batches. returns false
+    ** if a transient failure stopped it.
+    */
+    private boolean replay(File file) throws IOException {
+        List<Interactions.Event> batch = new ArrayList<Interactions.Event>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+            new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while((line = in.readLine()) != null) {
+                Interactions.Event event = decode(line);
+                if(event == null) {
+                    continue;
+                }
+                batch.add(event);
+                if(batch.size() == this._flushSize) {
+                    if(write(batch, false, false) < 0) {
+                        return false;
+                    }
+                    batch.clear();
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return batch.isEmpty() || write(batch, false, false) >= 0;
+    }
+
+    private File segment(long number) {
+        return new File(this._spillFile.getPath() + "." + number);
+    }
+
+    private static String encode(Interactions.Event event) {
+        return event.kind + "\t" + escape(event.user) + "\t" + event.videoId
+            + "\t" + event.rating + "\t" + event.time.getTime() + "\t"
+            + event.commentId + "\t"
+            + (event.content == null ? "\\N" : escape(event.content)) + "\n";
+    }
+
+    /*
+    ** returns null for a line that was cut short by a crash.
+    */
+    private static Interactions.Event decode(String line) {
+        String[] f = line.split("\t", -1);
+        if(f.length != 7) {
+            return null;
+        }
+        try {
+            return new Interactions.Event(f[0], unescape(f[1]),
+                Integer.parseInt(f[2]), Integer.parseInt(f[3]),
+                new Timestamp(Long.parseLong(f[4])), Long.parseLong(f[5]),
+                f[6].equals("\\N") ? null : unescape(f[6]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t")
+            .replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String s) {
+        StringBuilder out = new StringBuilder(s.length());
+        for(int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if(c == '\\' && i + 1 < s.length()) {
+                c = s.charAt(++i);
+                c = (c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c);
+            }
+            out.append(c);
+        }
+        return out.toString();
+    }
+}
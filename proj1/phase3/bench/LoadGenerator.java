@@ -0,0 +1,409 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+
+/**
+ * This class drives Movie Net with simulated users.  Every simulated user
+ * is a thread with its own session, logged in as one of the users in
+ * dataset/users.data, that runs a weighted mix of menu actions through the
+ * same EmbeddedSQL query functions the console uses, answering prompts
+ * from a script.  Follows start from dataset/followers.data so nobody
+ * follows the same user twice.
+ *
+ * The run steps through increasing numbers of users and prints, for each
+ * level, an HDR latency histogram summary and the error count of every
+ * action, so the level where latency or errors take off can be read off
+ * the output.  It funds the simulated users and writes orders, follows and
+ * interactions, so run it against a scratch database.
+ *
+ * Settings, as system properties: load.users, the comma separated user
+ * counts to step through (1,2,4,8,16,32,64); load.time, seconds per level
+ * (30); load.think, milliseconds between actions (0); load.seed (1); and
+ * load.mix, comma separated action=weight pairs over login, wall, follow,
+ * purchase, watch, like, rate, comment and cart.  With movienet.trace set,
+ * each action is traced, the round trip summary is printed at the end and
+ * the run fails if any action was flagged.
+ *
+ */
+public class LoadGenerator {
+
+    private static final String DEFAULT_MIX = "login=5,wall=25,follow=5,"
+        + "purchase=10,watch=20,like=10,rate=10,comment=5,cart=10";
+
+    /*
+    ** a user from users.data.
+    */
+    private static class Account {
+        final String user;
+        final String password;
+
+        Account(String user, String password) {
+            this.user = user;
+            this.password = password;
+        }
+    }
+
+    /*
+    ** prompt answers for one session; holds whatever the next action will
+    ** read and reports end of input once that is used up.
+    */
+    private static class Script extends Reader {
+        private final StringBuilder _pending = new StringBuilder();
+
+        void clear() {
+            this._pending.setLength(0);
+        }
+
+        void say(String line) {
+            this._pending.append(line).append('\n');
+        }
+
+        public int read(char[] buf, int off, int len) {
+            if(this._pending.length() == 0) {
+                return -1;
+            }
+            int n = Math.min(len, this._pending.length());
+            this._pending.getChars(0, n, buf, off);
+            this._pending.delete(0, n);
+            return n;
+        }
+
+        public void close() {
+        }
+    }
+
+    private final List<Account> _accounts;
+    // who each user already follows, shared by every level.
+    private final Map<String, Set<String>> _follows;
+    private final Set<String> _funded =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final List<VideoCatalog.Video> _videos;
+    private final LinkedHashMap<String, Integer> _mix;
+    private final int _mixTotal;
+    private final long _think;
+    private final long _seed;
+
+    LoadGenerator(List<Account> accounts, Map<String, Set<String>> follows,
+            List<VideoCatalog.Video> videos, LinkedHashMap<String, Integer> mix,
+            long think, long seed) {
+        this._accounts = accounts;
+        this._follows = follows;
+        this._videos = videos;
+        this._mix = mix;
+        int total = 0;
+        for(int weight : mix.values()) {
+            total += weight;
+        }
+        this._mixTotal = total;
+        this._think = think;
+        this._seed = seed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length != 5) {
+            System.err.println("Usage: java -cp "
+                + "bench/target/benchmarks.jar "
+                + LoadGenerator.class.getName()
+                + " <dbname> <port> <user> <passwd> <dataset dir>");
+            return;
+        }
+        Class.forName("org.postgresql.Driver");
+        EmbeddedSQL.esql = new EmbeddedSQL(args[0], args[1], args[2],
+            args[3]);
+        EmbeddedSQL.permissions = new Permissions(EmbeddedSQL.esql);
+        EmbeddedSQL.feed = new ActivityFeed(EmbeddedSQL.esql,
+            EmbeddedSQL.permissions, 50,
+            Long.getLong("movienet.feed.ttl", 30000L));
+        EmbeddedSQL.catalog = new VideoCatalog(EmbeddedSQL.esql,
+            Long.getLong("movienet.catalog.refresh", 60000L));
+        EmbeddedSQL.cart = new Cart(EmbeddedSQL.esql);
+        EmbeddedSQL.graph = new FollowGraph(EmbeddedSQL.esql,
+            Long.getLong("movienet.graph.refresh", 600000L));
+        EmbeddedSQL.interactions = new Interactions(EmbeddedSQL.esql,
+            EmbeddedSQL.feed);
+        File dataset = new File(args[4]);
+
+        List<Account> accounts = new ArrayList<Account>();
+        Map<String, Set<String>> follows =
+            new ConcurrentHashMap<String, Set<String>>();
+        for(String[] f : read(new File(dataset, "users.data"))) {
+            accounts.add(new Account(f[0], f[1]));
+            follows.put(f[0], Collections.newSetFromMap(
+                new ConcurrentHashMap<String, Boolean>()));
+        }
+        for(String[] f : read(new File(dataset, "followers.data"))) {
+            Set<String> followed = follows.get(f[0]);
+            if(followed != null) {
+                followed.add(f[1]);
+            }
+        }
+        List<VideoCatalog.Video> videos = new ArrayList<VideoCatalog.Video>();
+        ResultSet rs = EmbeddedSQL.esql.getResultSet(
+            "SELECT video_id FROM video ORDER BY video_id");
+        while(rs.next()) {
+            videos.add(EmbeddedSQL.catalog.get(rs.getInt(1)));
+        }
+        if(accounts.isEmpty() || videos.isEmpty()) {
+            System.err.println("No users or no videos to work with");
+            return;
+        }
+
+        LinkedHashMap<String, Integer> mix =
+            new LinkedHashMap<String, Integer>();
+        for(String pair : System.getProperty("load.mix", DEFAULT_MIX)
+                .split(",")) {
+            String[] kv = pair.split("=");
+            mix.put(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+        }
+        LoadGenerator load = new LoadGenerator(accounts, follows, videos, mix,
+            Long.getLong("load.think", 0), Long.getLong("load.seed", 1));
+
+        long seconds = Long.getLong("load.time", 30);
+        double lastRate = 0;
+        try {
+            for(String level : System.getProperty("load.users",
+                    "1,2,4,8,16,32,64").split(",")) {
+                lastRate = load.level(Integer.parseInt(level.trim()),
+                    seconds * 1000, lastRate);
+            }
+        } finally {
+            EmbeddedSQL.catalog.close();
+            EmbeddedSQL.graph.close();
+            EmbeddedSQL.esql.cleanup();
+        }
+        if(Tracer.ENABLED) {
+            System.out.println();
+            System.out.print(Tracer.summary());
+            if(Tracer.getFlaggedCount() > 0) {
+                // fail the run so it can gate changes to chatty paths
+                System.exit(1);
+            }
+        }
+    }
+
+    /*
+    ** runs one concurrency level and prints its report.
+    ** returns the throughput reached.
+    */
+    private double level(int users, long millis, double lastRate)
+            throws InterruptedException {
+        final Map<String, LatencyHistogram> latency =
+            new LinkedHashMap<String, LatencyHistogram>();
+        final Map<String, long[]> errors = new LinkedHashMap<String, long[]>();
+        for(String action : this._mix.keySet()) {
+            latency.put(action, new LatencyHistogram());
+            errors.put(action, new long[1]);
+        }
+        final long end = System.currentTimeMillis() + millis;
+        final CountDownLatch done = new CountDownLatch(users);
+        for(int u = 0; u < users; ++u) {
+            final Account account = this._accounts.get(
+                u % this._accounts.size());
+            final Random random = new Random(this._seed * 31 + u);
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        simulate(account, random, end, latency, errors);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "load-" + u);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+
+        long ops = 0;
+        long failed = 0;
+        System.out.printf("%n%d users, %ds%n", users, millis / 1000);
+        System.out.printf("%-10s %9s %8s %7s %9s %9s %9s %9s %9s%n", "action",
+            "count", "ops/s", "errors", "p50 ms", "p90 ms", "p99 ms",
+            "p99.9 ms", "max ms");
+        for(Map.Entry<String, LatencyHistogram> e : latency.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            long err;
+            synchronized(errors) {
+                err = errors.get(e.getKey())[0];
+            }
+            ops += h.getCount();
+            failed += err;
+            System.out.printf(
+                "%-10s %9d %8.1f %7d %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                e.getKey(), h.getCount(), h.getCount() * 1000.0 / millis,
+                err, h.getValueAt(50) / 1e3, h.getValueAt(90) / 1e3,
+                h.getValueAt(99) / 1e3, h.getValueAt(99.9) / 1e3,
+                h.getMax() / 1e3);
+        }
+        double rate = ops * 1000.0 / millis;
+        System.out.printf("total %d actions, %.1f/s, %d errors, pool: %s%n",
+            ops, rate, failed, EmbeddedSQL.esql.getPool());
+        if(failed * 100 > ops) {
+            System.out.println("OVERLOADED: more than 1% of actions failed");
+        } else if(lastRate > 0 && rate < lastRate) {
+            System.out.println("SATURATED: throughput fell as users were "
+                + "added");
+        }
+        return rate;
+    }
+
+    /*
+    ** one simulated user: logs in, then runs actions from the mix until
+    ** the level ends, timing each one in microseconds.
+    */
+    private void simulate(Account account, Random random, long end,
+            Map<String, LatencyHistogram> latency, Map<String, long[]> errors) {
+        Script script = new Script();
+        Session session = new Session(new BufferedReader(script),
+            new PrintStream(OutputStream.nullOutputStream()));
+        session.username = account.user;
+        session.password = account.password;
+        Session.attach(session);
+        List<Integer> owned = new ArrayList<Integer>();
+        try {
+            fund(account.user);
+            String action = "login";
+            while(System.currentTimeMillis() < end) {
+                if(latency.containsKey(action)) {
+                    script.clear();
+                    int before = session.errors;
+                    long start = System.nanoTime();
+                    boolean ok;
+                    Tracer.Span span = Tracer.begin(action);
+                    try {
+                        ok = act(action, account, random, script, owned);
+                    } catch(Exception e) {
+                        ok = false;
+                    } finally {
+                        span.end();
+                    }
+                    latency.get(action).record(
+                        (System.nanoTime() - start) / 1000);
+                    if(!ok || session.errors != before) {
+                        synchronized(errors) {
+                            errors.get(action)[0]++;
+                        }
+                    }
+                }
+                if(this._think > 0) {
+                    Thread.sleep(this._think);
+                }
+                action = pick(random);
+            }
+        } catch(InterruptedException e) {
+        } catch(Exception e) {
+            System.err.println(account.user + ": " + e.getMessage());
+        } finally {
+            Session.attach(null);
+        }
+    }
+
+    /*
+    ** performs one action, returning false when it failed without an
+    ** exception.
+    */
+    private boolean act(String action, Account account, Random random,
+            Script script, List<Integer> owned) throws Exception {
+        VideoCatalog.Video video = this._videos.get(
+            random.nextInt(this._videos.size()));
+        if(action.equals("login")) {
+            return EmbeddedSQL.loginQuery() > 0;
+        } else if(action.equals("wall")) {
+            EmbeddedSQL.seeUpdatesQuery();
+        } else if(action.equals("follow")) {
+            Account other = this._accounts.get(
+                random.nextInt(this._accounts.size()));
+            if(!other.user.equals(account.user)
+                    && this._follows.get(account.user).add(other.user)) {
+                EmbeddedSQL.followUserQuery(other.user);
+            }
+        } else if(action.equals("purchase")) {
+            if(EmbeddedSQL.purchaseQuery(video, 1) < 0) {
+                return false;
+            }
+            owned.add(video.id);
+        } else if(action.equals("watch")) {
+            EmbeddedSQL.addWatched(owned.isEmpty() ? video.id
+                : owned.get(random.nextInt(owned.size())));
+        } else if(action.equals("like")) {
+            EmbeddedSQL.addLike(video.id);
+        } else if(action.equals("rate")) {
+            script.say(String.valueOf(1 + random.nextInt(10)));
+            EmbeddedSQL.addRate(video.id);
+        } else if(action.equals("comment")) {
+            script.say("load test comment " + random.nextInt(1000));
+            EmbeddedSQL.addComment(video.id);
+        } else if(action.equals("cart")) {
+            script.say("2");
+            EmbeddedSQL.viewCart();
+        } else {
+            throw new IllegalArgumentException("Unknown action: " + action);
+        }
+        return true;
+    }
+
+    private String pick(Random random) {
+        int n = random.nextInt(this._mixTotal);
+        for(Map.Entry<String, Integer> e : this._mix.entrySet()) {
+            n -= e.getValue();
+            if(n < 0) {
+                return e.getKey();
+            }
+        }
+        return "login";
+    }
+
+    /*
+    ** gives a user enough money that purchases never run out.
+    */
+    private void fund(String user) throws Exception {
+        if(this._funded.add(user)) {
+            EmbeddedSQL.esql.executeUpdate(
+                "UPDATE users SET balance=? WHERE user_id=?",
+                Integer.MAX_VALUE, user);
+        }
+    }
+
+    private static List<String[]> read(File file) throws Exception {
+        List<String[]> rows = new ArrayList<String[]>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while((line = in.readLine()) != null) {
+                if(line.length() > 0) {
+                    rows.add(line.split(";"));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import movienet.bench.Workload;
+
+
+/**
+ * This class runs the operations movienet.bench.MovieNetBenchmark
+ * measures, through the same EmbeddedSQL query functions the console
+ * uses.  Each calling thread gets its own session as the benchmarked user,
+ * bound on its first operation.
+ *
+ */
+public class MovieNetWorkload implements Workload {
+
+    private String _user = null;
+    private String _password = null;
+    // videos the operations pick from at random.
+    private List<VideoCatalog.Video> _videos = null;
+    // what fund replaced, put back by refund.
+    private int _balance = 0;
+    private long _lastOrder = 0;
+
+    public void open(String dbname, String port, String user, String passwd,
+            String userId, String password) throws Exception {
+        Class.forName("org.postgresql.Driver");
+        EmbeddedSQL.esql = new EmbeddedSQL(dbname, port, user, passwd);
+        EmbeddedSQL.permissions = new Permissions(EmbeddedSQL.esql);
+        EmbeddedSQL.feed = new ActivityFeed(EmbeddedSQL.esql,
+            EmbeddedSQL.permissions, 50,
+            Long.getLong("movienet.feed.ttl", 30000L));
+        EmbeddedSQL.catalog = new VideoCatalog(EmbeddedSQL.esql,
+            Long.getLong("movienet.catalog.refresh", 60000L));
+        EmbeddedSQL.cart = new Cart(EmbeddedSQL.esql);
+        EmbeddedSQL.interactions = new Interactions(EmbeddedSQL.esql,
+            EmbeddedSQL.feed);
+        this._user = userId;
+        this._password = password;
+        this._videos = sampleVideos(1000);
+        if(this._videos.isEmpty()) {
+            close();
+            throw new IllegalStateException("The video table is empty");
+        }
+    }
+
+    public void loginQuery() {
+        session();
+        EmbeddedSQL.loginQuery();
+    }
+
+    public void movieIDQuery() {
+        session();
+        EmbeddedSQL.movieIDQuery(pick().title);
+    }
+
+    public void viewCart() {
+        session();
+        EmbeddedSQL.viewCart();
+    }
+
+    public void seeUpdatesQuery() {
+        session();
+        EmbeddedSQL.seeUpdatesQuery();
+    }
+
+    public void fund() throws SQLException {
+        EmbeddedSQL esql = EmbeddedSQL.esql;
+        ResultSet rs = esql.getResultSet("SELECT balance, "
+            + "(SELECT coalesce(max(order_id), 0) FROM orders) "
+            + "FROM users WHERE user_id=?", this._user);
+        if(!rs.next()) {
+            throw new SQLException("No user " + this._user);
+        }
+        this._balance = rs.getInt(1);
+        this._lastOrder = rs.getLong(2);
+        esql.executeUpdate("UPDATE users SET balance=? WHERE user_id=?",
+            Integer.MAX_VALUE, this._user);
+    }
+
+    /*
+    ** checks out one online video at a time with the balance fund gave.
+    */
+    public void purchase() throws SQLException {
+        VideoCatalog.Video video = pick();
+        List<Cart.Item> item = new ArrayList<Cart.Item>(1);
+        item.add(new Cart.Item(video.id, 1, video.onlinePrice));
+        if(EmbeddedSQL.cart.checkout(this._user, item) < 0) {
+            throw new SQLException("Balance ran out");
+        }
+    }
+
+    public void refund() throws SQLException {
+        EmbeddedSQL esql = EmbeddedSQL.esql;
+        esql.executeUpdate("DELETE FROM orders WHERE user_id=? "
+            + "AND order_id>?", this._user, this._lastOrder);
+        esql.executeUpdate("UPDATE users SET balance=? WHERE user_id=?",
+            this._balance, this._user);
+    }
+
+    public void interaction() throws SQLException {
+        Timestamp ts = new Timestamp(
+            System.currentTimeMillis() / 1000 * 1000);
+        EmbeddedSQL.interactions.record(new Interactions.Event(
+            ActivityFeed.WATCHED, this._user, pick().id, -1, ts));
+    }
+
+    public void close() {
+        EmbeddedSQL.catalog.close();
+        EmbeddedSQL.esql.cleanup();
+    }
+
+    /*
+    ** binds a session for the benchmarked user to the calling thread. menu
+    ** prompts are answered with "2", which leaves paged views after the
+    ** first page.
+    */
+    private void session() {
+        if(Session.peek() == null) {
+            Session session = new Session(new BufferedReader(new Answer("2")),
+                new PrintStream(OutputStream.nullOutputStream()));
+            session.username = this._user;
+            session.password = this._password;
+            Session.attach(session);
+        }
+    }
+
+    private VideoCatalog.Video pick() {
+        return this._videos.get(
+            ThreadLocalRandom.current().nextInt(this._videos.size()));
+    }
+
+    private static List<VideoCatalog.Video> sampleVideos(int limit)
+            throws SQLException {
+        List<VideoCatalog.Video> videos = new ArrayList<VideoCatalog.Video>();
+        ResultSet rs = EmbeddedSQL.esql.getResultSet(
+            "SELECT video_id FROM video ORDER BY video_id LIMIT ?", limit);
+        while(rs.next()) {
+            VideoCatalog.Video video = EmbeddedSQL.catalog.get(rs.getInt(1));
+            if(video != null) {
+                videos.add(video);
+            }
+        }
+        return videos;
+    }
+
+    /*
+    ** endless input that gives the same answer to every prompt.
+    */
+    private static class Answer extends Reader {
+        private final char[] _line;
+        private int _at = 0;
+
+        Answer(String answer) {
+            this._line = (answer + "\n").toCharArray();
+        }
+
+        public int read(char[] buf, int off, int len) {
+            for(int i = 0; i < len; ++i) {
+                buf[off + i] = this._line[this._at];
+                this._at = (this._at + 1) % this._line.length;
+            }
+            return len;
+        }
+
+        public void close() {
+        }
+    }
+}
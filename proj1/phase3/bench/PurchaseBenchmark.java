@@ -0,0 +1,131 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * This class hammers the purchase path with many parallel buyers charging
+ * the same account, then checks that no money was lost or created: every
+ * successful purchase must have exactly one order and one debit, and the
+ * balance must never go below zero.
+ *
+ */
+public class PurchaseBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if(args.length != 8) {
+            System.err.println("Usage: java "
+                + PurchaseBenchmark.class.getName()
+                + " <dbname> <port> <user> <passwd> <buyer user_id>"
+                + " <video_id> <threads> <purchases per thread>");
+            return;
+        }
+        Class.forName("org.postgresql.Driver");
+        final EmbeddedSQL esql = new EmbeddedSQL(args[0], args[1], args[2],
+            args[3]);
+        final String buyer = args[4];
+        final int vidID = Integer.parseInt(args[5]);
+        int threads = Integer.parseInt(args[6]);
+        final int perThread = Integer.parseInt(args[7]);
+
+        VideoCatalog.Video video = new VideoCatalog(esql, Long.MAX_VALUE)
+            .get(vidID);
+        if(video == null) {
+            System.err.println("No video " + vidID);
+            return;
+        }
+        final Cart cart = new Cart(esql);
+        final List<Cart.Item> item = new ArrayList<Cart.Item>();
+        item.add(new Cart.Item(video.id, 1, video.onlinePrice));
+
+        // fund the buyer for exactly half the attempts
+        int attempts = threads * perThread;
+        int startBalance = attempts / 2 * video.onlinePrice;
+        esql.executeUpdate("UPDATE users SET balance=? WHERE user_id=?",
+            startBalance, buyer);
+        long startOrders = countOrders(esql, buyer);
+
+        final AtomicInteger bought = new AtomicInteger();
+        final AtomicInteger refused = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for(int t = 0; t < threads; ++t) {
+            workers[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        go.await();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                    for(int i = 0; i < perThread; ++i) {
+                        try {
+                            if(cart.checkout(buyer, item) < 0) {
+                                refused.incrementAndGet();
+                            } else {
+                                bought.incrementAndGet();
+                            }
+                        } catch(SQLException e) {
+                            failed.incrementAndGet();
+                            System.err.println(e.getMessage());
+                        }
+                    }
+                }
+            });
+            workers[t].start();
+        }
+
+        long start = System.nanoTime();
+        go.countDown();
+        for(Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        ResultSet rs = esql.getResultSet(
+            "SELECT balance FROM users WHERE user_id=?", buyer);
+        rs.next();
+        int endBalance = rs.getInt(1);
+        long newOrders = countOrders(esql, buyer) - startOrders;
+
+        System.out.printf("%d attempts on %d threads in %.2fs: %.0f tx/s%n",
+            attempts, threads, seconds, attempts / seconds);
+        System.out.println("bought=" + bought + " refused=" + refused
+            + " failed=" + failed + " pool: " + esql.getPool());
+
+        boolean ok = endBalance >= 0
+            && newOrders == bought.get()
+            && startBalance - endBalance == bought.get() * video.onlinePrice;
+        System.out.println("balance " + startBalance + " -> " + endBalance
+            + ", new orders " + newOrders + ": "
+            + (ok ? "CONSISTENT" : "INCONSISTENT"));
+        esql.cleanup();
+        if(!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static long countOrders(EmbeddedSQL esql, String buyer)
+            throws SQLException {
+        ResultSet rs = esql.getResultSet(
+            "SELECT count(*) FROM orders WHERE user_id=?", buyer);
+        rs.next();
+        return rs.getLong(1);
+    }
+}
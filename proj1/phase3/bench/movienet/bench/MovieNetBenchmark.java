@@ -0,0 +1,131 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+package movienet.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * This class benchmarks the hot paths of EmbeddedSQL against a database
+ * created with script/create_tables.sql and seeded from dataset/.  Each
+ * benchmark thread acts as the given user with its own session, whose menu
+ * output is discarded.  Both throughput and sampled latencies are reported;
+ * add -prof gc for the bytes allocated per operation.
+ *
+ * The purchase benchmark funds the user and removes the orders it placed
+ * afterwards; the interaction benchmark leaves its watch rows behind, so
+ * run it against a scratch database.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MovieNetBenchmark {
+
+    // the default package implementation of Workload.
+    private static final String WORKLOAD = "MovieNetWorkload";
+
+    @Param("movienet")
+    public String dbname;
+    @Param("5432")
+    public String port;
+    @Param("postgres")
+    public String user;
+    @Param("postgres")
+    public String passwd;
+    @Param("user1")
+    public String userId;
+    @Param("pass1")
+    public String password;
+
+    private Workload _workload = null;
+
+    /**
+     * The user's balance, funded for the purchase benchmark only.
+     */
+    @State(Scope.Benchmark)
+    public static class Funded {
+        private Workload _workload = null;
+
+        @Setup(Level.Trial)
+        public void fund(MovieNetBenchmark bench) throws Exception {
+            this._workload = bench._workload;
+            this._workload.fund();
+        }
+
+        @TearDown(Level.Trial)
+        public void refund() throws Exception {
+            this._workload.refund();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws Exception {
+        this._workload = (Workload)Class.forName(WORKLOAD)
+            .getDeclaredConstructor().newInstance();
+        this._workload.open(this.dbname, this.port, this.user, this.passwd,
+            this.userId, this.password);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        this._workload.close();
+    }
+
+    @Benchmark
+    public void loginQuery() throws Exception {
+        this._workload.loginQuery();
+    }
+
+    @Benchmark
+    public void movieIDQuery() throws Exception {
+        this._workload.movieIDQuery();
+    }
+
+    @Benchmark
+    public void viewCart() throws Exception {
+        this._workload.viewCart();
+    }
+
+    @Benchmark
+    public void seeUpdatesQuery() throws Exception {
+        this._workload.seeUpdatesQuery();
+    }
+
+    @Benchmark
+    public void purchase(Funded funded) throws Exception {
+        this._workload.purchase();
+    }
+
+    @Benchmark
+    public void interaction() throws Exception {
+        this._workload.interaction();
+    }
+}
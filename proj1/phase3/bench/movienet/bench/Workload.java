@@ -0,0 +1,67 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+package movienet.bench;
+
+
+/**
+ * This interface is what MovieNetBenchmark measures.  JMH only accepts
+ * benchmarks in a named package, and a named package cannot refer to the
+ * default package Movie Net lives in, so the operations are implemented
+ * by MovieNetWorkload in the default package and loaded by name.
+ *
+ */
+public interface Workload {
+
+    /**
+     * Connects to the database and loads the caches the operations use.
+     *
+     * @param dbname the name of the database
+     * @param port the port the database listens on
+     * @param user the database user
+     * @param passwd the password of the database user
+     * @param userId the Movie Net user every operation acts as
+     * @param password the password of that user
+     * @throws java.lang.Exception when the database cannot be reached
+     */
+    void open(String dbname, String port, String user, String passwd,
+        String userId, String password) throws Exception;
+
+    void loginQuery() throws Exception;
+
+    void movieIDQuery() throws Exception;
+
+    void viewCart() throws Exception;
+
+    void seeUpdatesQuery() throws Exception;
+
+    /**
+     * Gives the user a balance that never runs out, for purchase.
+     *
+     * @throws java.lang.Exception when the balance cannot be set
+     */
+    void fund() throws Exception;
+
+    void purchase() throws Exception;
+
+    /**
+     * Puts back the balance fund replaced and removes the orders placed
+     * since.
+     *
+     * @throws java.lang.Exception when the database cannot be updated
+     */
+    void refund() throws Exception;
+
+    void interaction() throws Exception;
+
+    void close();
+}
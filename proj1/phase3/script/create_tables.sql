@@ -53,8 +53,11 @@ CREATE TABLE video (
 	year INTEGER NOT NULL,
 	online_price INTEGER NOT NULL,
 	dvd_price INTEGER NOT NULL,
-	votes INTEGER,
+	votes INTEGER NOT NULL DEFAULT 0,
 	rating INTEGER,
+	/* votes, rating_sum and the number of each rating 1-10, kept in step with rate */
+	rating_sum BIGINT NOT NULL DEFAULT 0,
+	rating_histogram INTEGER[] NOT NULL DEFAULT '{0,0,0,0,0,0,0,0,0,0}',
 	episode VARCHAR(9) ,
 	season_id INTEGER ,
 	FOREIGN KEY(season_id) REFERENCES season
@@ -155,6 +158,8 @@ CREATE TABLE rate (
 	FOREIGN KEY(user_id) REFERENCES users ON DELETE CASCADE,
 	FOREIGN KEY(video_id) REFERENCES video ON DELETE CASCADE
 );
+/* Rating aggregates are verified per range of video_id */
+CREATE INDEX rate_video ON rate(video_id);
 drop table watch CASCADE;
 CREATE TABLE watch (
     user_id VARCHAR(9) NOT NULL,
@@ -184,3 +189,22 @@ create TABLE permission (
     PRIMARY KEY(user_id),
     FOREIGN KEY(user_id) REFERENCES users ON DELETE CASCADE
 );
+
+drop table feed_item CASCADE;
+CREATE TABLE feed_item (
+	feed_id SERIAL PRIMARY KEY,
+	owner_id VARCHAR(9) NOT NULL,
+	actor_id VARCHAR(9) NOT NULL,
+	video_id INTEGER NOT NULL,
+	title VARCHAR(50) NOT NULL,
+	kind VARCHAR(9) NOT NULL,
+	rating INTEGER NOT NULL DEFAULT -1,
+	event_time TIMESTAMP NOT NULL,
+	FOREIGN KEY(owner_id) REFERENCES users ON DELETE CASCADE,
+	FOREIGN KEY(actor_id) REFERENCES users ON DELETE CASCADE,
+	FOREIGN KEY(video_id) REFERENCES video ON DELETE CASCADE
+);
+/* Walls are read newest first for one owner */
+CREATE INDEX feed_item_owner_time ON feed_item(owner_id, event_time DESC, feed_id DESC);
+/* Fan-out joins follow on the actor; the primary key leads with user_id_to */
+CREATE INDEX follow_from ON follow(user_id_from);
@@ -49,3 +49,33 @@ COPY written ( video_id , author_id )
 FROM '/tmp/dataset/written.data' 
 WITH DELIMITER ';';
 
+
+/* Fan existing public activity out to followers' walls */
+INSERT INTO feed_item(owner_id, actor_id, video_id, title, kind, rating, event_time)
+SELECT D.user_id_to, A.user_id, B.video_id, B.title, 'rated', A.rating, A.rate_time
+FROM rate A, video B, permission C, follow D
+WHERE A.video_id=B.video_id AND A.user_id=C.user_id AND C.rate='public'
+AND A.user_id=D.user_id_from AND A.rate_time IS NOT NULL;
+
+INSERT INTO feed_item(owner_id, actor_id, video_id, title, kind, rating, event_time)
+SELECT D.user_id_to, A.user_id, B.video_id, B.title, 'watched', -1, A.watch_time
+FROM watch A, video B, permission C, follow D
+WHERE A.video_id=B.video_id AND A.user_id=C.user_id AND C.watch='public'
+AND A.user_id=D.user_id_from AND A.watch_time IS NOT NULL;
+
+INSERT INTO feed_item(owner_id, actor_id, video_id, title, kind, rating, event_time)
+SELECT D.user_id_to, A.user_id, B.video_id, B.title, 'liked', -1, A.like_time
+FROM likes A, video B, permission C, follow D
+WHERE A.video_id=B.video_id AND A.user_id=C.user_id AND C.likes='public'
+AND A.user_id=D.user_id_from AND A.like_time IS NOT NULL;
+
+/* COPY sets ids explicitly, so move the SERIAL sequences past them. orders and
+   comment are not loaded here but may hold rows from before their keys came
+   from the sequences; the next value is max(id) + 1, or 1 for an empty table */
+SELECT setval('video_video_id_seq', coalesce((SELECT max(video_id) FROM video), 0) + 1, false);
+SELECT setval('genre_genre_id_seq', coalesce((SELECT max(genre_id) FROM genre), 0) + 1, false);
+SELECT setval('director_director_id_seq', coalesce((SELECT max(director_id) FROM director), 0) + 1, false);
+SELECT setval('star_star_id_seq', coalesce((SELECT max(star_id) FROM star), 0) + 1, false);
+SELECT setval('author_author_id_seq', coalesce((SELECT max(author_id) FROM author), 0) + 1, false);
+SELECT setval('orders_order_id_seq', coalesce((SELECT max(order_id) FROM orders), 0) + 1, false);
+SELECT setval('comment_comment_id_seq', coalesce((SELECT max(comment_id) FROM comment), 0) + 1, false);
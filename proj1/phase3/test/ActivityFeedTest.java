@@ -0,0 +1,116 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * This class tests how ActivityFeed places new items on a cached wall and
+ * pages through it, on walls cached in memory with no database behind
+ * them.
+ *
+ */
+public class ActivityFeedTest {
+
+    public static void main(String[] args) throws Exception {
+        Permissions permissions = new Permissions();
+        permissions.remember("alice", Permissions.WATCH, true);
+        permissions.remember("carol", Permissions.WATCH, false);
+
+        insertKeepsNewestFirst(permissions);
+        pagesSkipHiddenItems(permissions);
+        Check.done("ActivityFeedTest");
+    }
+
+    private static void insertKeepsNewestFirst(Permissions permissions)
+            throws Exception {
+        ActivityFeed feed = new ActivityFeed(null, permissions, 3,
+            Long.MAX_VALUE);
+        feed.cache("owner", Arrays.asList(item(3, 3, "alice"),
+            item(1, 1, "alice")), true);
+
+        feed.insert("owner", item(2, 2, "alice"));
+        Check.equal(Arrays.asList(3L, 2L, 1L), ids(feed.recent("owner", 3)),
+            "an item goes between the older and the newer");
+
+        feed.insert("owner", item(4, 4, "alice"));
+        Check.equal(Arrays.asList(4L, 3L, 2L), ids(feed.recent("owner", 3)),
+            "a full wall drops its oldest item");
+
+        feed.insert("owner", item(0, 0, "alice"));
+        Check.equal(Arrays.asList(4L, 3L, 2L), ids(feed.recent("owner", 3)),
+            "a wall missing its tail ignores items older than it holds");
+
+        feed.insert("owner", item(5, 4, "alice"));
+        Check.equal(Arrays.asList(5L, 4L, 3L), ids(feed.recent("owner", 3)),
+            "items at the same time are ordered by id");
+
+        // nothing is cached for this wall, so there is nothing to update
+        feed.insert("nobody", item(6, 6, "alice"));
+    }
+
+    private static void pagesSkipHiddenItems(Permissions permissions)
+            throws Exception {
+        ActivityFeed feed = new ActivityFeed(null, permissions, 10,
+            Long.MAX_VALUE);
+        List<ActivityFeed.Item> wall = new ArrayList<ActivityFeed.Item>();
+        for(int id = 10; id >= 1; --id) {
+            // carol hides watches but not likes
+            if(id == 8 || id == 5) {
+                wall.add(item(id, id, "carol"));
+            } else if(id == 3) {
+                wall.add(new ActivityFeed.Item(id, "carol", "Video " + id,
+                    new Timestamp(id * 1000L), ActivityFeed.LIKED, -1));
+            } else {
+                wall.add(item(id, id, "alice"));
+            }
+        }
+        feed.cache("owner", wall, true);
+
+        ActivityFeed.Page page = feed.page("owner", null, 3);
+        Check.equal(Arrays.asList(10L, 9L, 7L), ids(page.items),
+            "first page");
+        Check.equal(7L, page.next().id, "first cursor");
+        page = feed.page("owner", page.next(), 3);
+        Check.equal(Arrays.asList(6L, 4L, 3L), ids(page.items),
+            "a page reads past hidden items to fill up");
+        Check.equal(3L, page.next().id, "second cursor");
+        page = feed.page("owner", page.next(), 3);
+        Check.equal(Arrays.asList(2L, 1L), ids(page.items), "last page");
+        Check.that(page.next() == null, "the last page has no cursor");
+
+        page = feed.page("owner", null, 4);
+        page = feed.page("owner", page.next(), 4);
+        Check.equal(Arrays.asList(4L, 3L, 2L, 1L), ids(page.items),
+            "a page ending with the wall");
+        Check.that(page.next() == null,
+            "a page that reads the last row has no cursor");
+    }
+
+    private static ActivityFeed.Item item(long id, long seconds,
+            String actor) {
+        return new ActivityFeed.Item(id, actor, "Video " + id,
+            new Timestamp(seconds * 1000), ActivityFeed.WATCHED, -1);
+    }
+
+    private static List<Long> ids(List<ActivityFeed.Item> items) {
+        List<Long> ids = new ArrayList<Long>();
+        for(ActivityFeed.Item item : items) {
+            ids.add(item.id);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * This class tests that BloomFilter never forgets a key, keeps its false
+ * positive rate near the one it was sized for, and loses no bits to
+ * concurrent adds.
+ *
+ */
+public class BloomFilterTest {
+
+    public static void main(String[] args) throws Exception {
+        final int keys = 100000;
+        double fpp = 0.01;
+        BloomFilter filter = new BloomFilter(keys, fpp);
+        for(int i = 0; i < keys; ++i) {
+            filter.add("user" + i);
+        }
+        filter.add("user0");
+        Check.equal((long)keys + 1, filter.getAdded(), "adds count repeats");
+        Check.equal((long)keys, filter.getCapacity(), "capacity");
+        // -n ln p / (ln 2)^2 bits, about 9.6 per key at 1%
+        Check.that(filter.getBits() > 9 * keys && filter.getBits() < 10 * keys,
+            "sized at " + filter.getBits() + " bits");
+
+        int missing = 0;
+        for(int i = 0; i < keys; ++i) {
+            if(!filter.mightContain("user" + i)) {
+                ++missing;
+            }
+        }
+        Check.equal(0, missing, "keys added but not found");
+
+        int positives = 0;
+        int probes = 100000;
+        for(int i = 0; i < probes; ++i) {
+            if(filter.mightContain("video" + i)) {
+                ++positives;
+            }
+        }
+        double rate = (double)positives / probes;
+        Check.that(rate < 2 * fpp, "false positive rate " + rate);
+
+        BloomFilter tiny = new BloomFilter(0, fpp);
+        Check.that(tiny.getBits() >= 64, "at least one word of bits");
+        Check.that(!tiny.mightContain("anything"), "empty filter");
+
+        // threads setting bits in the same words must not undo each other
+        final BloomFilter shared = new BloomFilter(keys, fpp);
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int t = 0; t < 4; ++t) {
+            final int offset = t;
+            threads.add(new Thread() {
+                public void run() {
+                    for(int i = offset; i < keys; i += 4) {
+                        shared.add("user" + i);
+                    }
+                }
+            });
+        }
+        for(Thread thread : threads) {
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        missing = 0;
+        for(int i = 0; i < keys; ++i) {
+            if(!shared.mightContain("user" + i)) {
+                ++missing;
+            }
+        }
+        Check.equal(0, missing, "keys added concurrently but not found");
+        Check.equal((long)keys, shared.getAdded(), "concurrent adds");
+        Check.done("BloomFilterTest");
+    }
+}
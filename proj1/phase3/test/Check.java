@@ -0,0 +1,62 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+/**
+ * This class is the assertion helper of the tests in this directory.  Each
+ * test is a main() that runs its checks and then calls done(), which
+ * reports how many failed and exits with a non-zero status if any did, so
+ * the tests run without pulling a test framework into the project.
+ *
+ */
+public class Check {
+
+    private static int checks = 0;
+    private static int failed = 0;
+
+    /**
+    * Checks a condition.
+    *
+    * @param ok the condition
+    * @param what what was checked, printed if it failed
+    */
+    public static void that(boolean ok, String what) {
+        ++checks;
+        if(!ok) {
+            ++failed;
+            System.err.println("FAILED: " + what);
+        }
+    }
+
+    /**
+    * Checks that a value is the one expected.
+    *
+    * @param expected the value wanted
+    * @param actual the value found
+    * @param what what was checked, printed if it failed
+    */
+    public static void equal(Object expected, Object actual, String what) {
+        that(expected == null ? actual == null : expected.equals(actual),
+            what + ": expected " + expected + ", got " + actual);
+    }
+
+    /**
+    * Reports the checks run so far and ends the test.
+    *
+    * @param test the name of the test
+    */
+    public static void done(String test) {
+        System.out.println(test + ": " + checks + " checks, " + failed
+            + " failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
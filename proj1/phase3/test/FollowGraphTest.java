@@ -0,0 +1,111 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * This class tests follow suggestions and reachability in FollowGraph,
+ * before and after the graph rebuilds its arrays, on a graph built in
+ * memory with no database behind it.
+ *
+ */
+public class FollowGraphTest {
+
+    public static void main(String[] args) {
+        suggestions();
+        reachability();
+        Check.done("FollowGraphTest");
+    }
+
+    private static void suggestions() {
+        FollowGraph graph = new FollowGraph();
+        graph.follow("ann", "bob");
+        graph.follow("ann", "cat");
+        graph.follow("ann", "dan");
+        graph.follow("bob", "eve");
+        graph.follow("cat", "eve");
+        graph.follow("dan", "eve");
+        graph.follow("bob", "fay");
+        graph.follow("cat", "fay");
+        graph.follow("bob", "gus");
+        // already followed by ann, or ann: never suggested
+        graph.follow("bob", "cat");
+        graph.follow("cat", "ann");
+        // a repeated follow is counted once
+        graph.follow("dan", "eve");
+
+        Check.equal(3, graph.followingCount("ann"), "following count");
+        Check.equal(3, graph.followerCount("eve"), "follower count");
+        Check.equal(Arrays.asList("eve:3", "fay:2", "gus:1"),
+            suggestions(graph.suggest("ann", 5)),
+            "suggestions ranked by mutual follows");
+        Check.equal(Arrays.asList("eve:3", "fay:2"),
+            suggestions(graph.suggest("ann", 2)), "limit");
+        Check.that(graph.suggest("nobody", 5).isEmpty(),
+            "an unknown user gets no suggestions");
+
+        graph.remove("cat");
+        Check.equal(2, graph.followingCount("ann"),
+            "follows of a removed user are dropped");
+        Check.equal(Arrays.asList("eve:2", "fay:1", "gus:1"),
+            suggestions(graph.suggest("ann", 5)),
+            "a removed user no longer counts as a mutual follow");
+        graph.close();
+    }
+
+    private static void reachability() {
+        FollowGraph graph = new FollowGraph();
+        graph.follow("u0", "u1");
+        graph.follow("u1", "u2");
+        graph.follow("u2", "u3");
+        Check.that(graph.isReachable("u0", "u0", 0), "a user reaches itself");
+        Check.that(graph.isReachable("u0", "u3", 3), "three hops");
+        Check.that(!graph.isReachable("u0", "u3", 2), "not in two hops");
+        Check.that(!graph.isReachable("u3", "u0", 5),
+            "follows only lead one way");
+        Check.that(!graph.isReachable("u0", "nobody", 5),
+            "an unknown user is never reached");
+
+        graph.follow("u0", "u2");
+        Check.that(graph.isReachable("u0", "u3", 2), "a shortcut");
+        graph.remove("u2");
+        Check.that(!graph.isReachable("u0", "u3", 5),
+            "chains through a removed user are cut");
+
+        // enough follows to make the graph rebuild its arrays
+        FollowGraph chain = new FollowGraph();
+        int length = 1500;
+        for(int i = 0; i < length; ++i) {
+            chain.follow("c" + i, "c" + (i + 1));
+        }
+        Check.that(chain.isReachable("c0", "c" + length, length),
+            "a long chain after a rebuild");
+        Check.that(!chain.isReachable("c0", "c" + length, length - 1),
+            "one hop short of a long chain");
+        Check.equal(1, chain.followerCount("c" + length),
+            "counts after a rebuild");
+        chain.close();
+    }
+
+    private static List<String> suggestions(
+            List<FollowGraph.Suggestion> found) {
+        List<String> out = new ArrayList<String>();
+        for(FollowGraph.Suggestion suggestion : found) {
+            out.add(suggestion.user + ":" + suggestion.mutual);
+        }
+        return out;
+    }
+}
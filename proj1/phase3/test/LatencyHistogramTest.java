@@ -0,0 +1,77 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.Random;
+
+
+/**
+ * This class tests the counts, percentiles and precision of
+ * LatencyHistogram.
+ *
+ */
+public class LatencyHistogramTest {
+
+    public static void main(String[] args) {
+        LatencyHistogram empty = new LatencyHistogram();
+        Check.equal(0L, empty.getValueAt(50), "percentile of nothing");
+        Check.equal(0.0, empty.getMean(), "mean of nothing");
+
+        LatencyHistogram small = new LatencyHistogram();
+        for(int v = 1; v <= 100; ++v) {
+            small.record(v);
+        }
+        Check.equal(100L, small.getCount(), "count");
+        Check.equal(5050L, small.getSum(), "sum");
+        Check.equal(50.5, small.getMean(), "mean");
+        Check.equal(50L, small.getValueAt(50), "small values are exact");
+        Check.equal(99L, small.getValueAt(99), "p99 of 1..100");
+        Check.equal(100L, small.getValueAt(100), "p100 is the max");
+
+        LatencyHistogram negative = new LatencyHistogram();
+        negative.record(-5);
+        Check.equal(0L, negative.getMax(), "negative values count as zero");
+
+        // every value comes back within one sub-bucket, 1/64 of its size;
+        // a larger max keeps the bucket's highest value from being capped
+        Random random = new Random(42);
+        for(int i = 0; i < 10000; ++i) {
+            long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            LatencyHistogram one = new LatencyHistogram();
+            one.record(value);
+            one.record(Long.MAX_VALUE);
+            long reported = one.getValueAt(50);
+            if(reported < value || reported - value > value / 64) {
+                Check.that(false, value + " was reported as " + reported);
+                break;
+            }
+        }
+        LatencyHistogram big = new LatencyHistogram();
+        big.record(Long.MAX_VALUE);
+        Check.equal(Long.MAX_VALUE, big.getValueAt(50),
+            "the largest long is reported as itself");
+
+        // the highest value of a bucket is capped by the max recorded
+        LatencyHistogram capped = new LatencyHistogram();
+        capped.record(1000);
+        Check.equal(1000L, capped.getValueAt(50), "capped at the max");
+
+        LatencyHistogram total = new LatencyHistogram();
+        total.record(7);
+        total.add(small);
+        Check.equal(101L, total.getCount(), "count after add");
+        Check.equal(5057L, total.getSum(), "sum after add");
+        Check.equal(100L, total.getMax(), "max after add");
+        Check.equal(7L, total.getValueAt(7.5), "values of both after add");
+        Check.done("LatencyHistogramTest");
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * This class tests exact, prefix and typo-tolerant matching in TitleIndex,
+ * its ranking, and that removed and replaced titles stop matching.
+ *
+ */
+public class TitleIndexTest {
+
+    public static void main(String[] args) {
+        TitleIndex index = new TitleIndex();
+        add(index, 1, "The Godfather");
+        add(index, 2, "The Godfather: Part II");
+        add(index, 3, "Godzilla");
+        add(index, 4, "Star Wars");
+        add(index, 5, "The Matrix");
+        Check.equal(5, index.size(), "size");
+
+        Check.equal(Arrays.asList(1, 2, 5),
+            ids(index.search("the godfather", 5)),
+            "the exact title ranks first, titles sharing fewer words last");
+        Check.equal(Arrays.asList(1, 2), ids(index.search("GODF", 5)),
+            "a half typed word matches as a prefix, ignoring case");
+        Check.equal(Arrays.asList(3, 1, 2), ids(index.search("god", 5)),
+            "titles starting with the query rank above the rest");
+        Check.equal(Arrays.asList(3), ids(index.search("god", 1)), "limit");
+        Check.equal(Arrays.asList(1, 2), ids(index.search("godfahter", 5)),
+            "long words match within two edits");
+        Check.equal(Arrays.asList(5), ids(index.search("matirx", 5)),
+            "six letter words match within two edits");
+        Check.equal(Arrays.asList(4), ids(index.search("strr", 5)),
+            "short words match within one edit");
+        Check.that(index.search("sx", 5).isEmpty(),
+            "words under three letters must match exactly");
+        Check.that(index.search(" : ", 5).isEmpty(),
+            "a query without words matches nothing");
+
+        index.remove(1);
+        Check.equal(4, index.size(), "size after remove");
+        Check.equal(Arrays.asList(2), ids(index.search("godfather", 5)),
+            "a removed title stops matching");
+        Check.equal(Arrays.asList(5, 2), ids(index.search("the", 5)),
+            "words shared with a removed title still match, shortest first");
+
+        add(index, 4, "Empire Strikes Back");
+        Check.equal(4, index.size(), "size after replacing a title");
+        Check.that(index.search("wars", 5).isEmpty(),
+            "the old words of a replaced title stop matching");
+        Check.equal(Arrays.asList(4), ids(index.search("empire", 5)),
+            "the new words of a replaced title match");
+        Check.done("TitleIndexTest");
+    }
+
+    private static void add(TitleIndex index, int id, String title) {
+        index.add(new VideoCatalog.Video(id, title, 1, 2));
+    }
+
+    private static List<Integer> ids(List<VideoCatalog.Video> videos) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for(VideoCatalog.Video video : videos) {
+            ids.add(video.id);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * This class tests how Trending slides its windows as the clock moves on
+ * and how it ranks the published top lists, on an engine with no database
+ * behind it.
+ *
+ */
+public class TrendingTest {
+
+    private static final int HOUR_SLOTS =
+        Trending.WINDOW_SLOTS[Trending.HOUR];
+    private static final int DAY_SLOTS = Trending.WINDOW_SLOTS[Trending.DAY];
+    private static final int WEEK_SLOTS =
+        Trending.WINDOW_SLOTS[Trending.WEEK];
+
+    public static void main(String[] args) {
+        windowsSlide();
+        topLists();
+        Check.done("TrendingTest");
+    }
+
+    private static void windowsSlide() {
+        Trending trending = new Trending(null, 10);
+        long now = 100000;
+        add(trending, 1, 1, now, now);
+        add(trending, 1, 1, now, now);
+        add(trending, 2, 2, now - (HOUR_SLOTS - 1), now);
+        add(trending, 3, 1, now - HOUR_SLOTS, now);
+        add(trending, 4, 1, now - WEEK_SLOTS, now);
+        add(trending, 5, 1, now + 3, now);
+
+        check(trending, 1, 2, 2, 2, "events of one slot add up");
+        check(trending, 2, 2, 2, 2, "the oldest slot of the hour");
+        check(trending, 3, 0, 1, 1, "just outside the hour");
+        check(trending, 4, 0, 0, 0, "events older than a week are dropped");
+        check(trending, 5, 1, 1, 1, "events from the future count as now");
+
+        trending.advance(now + 1);
+        check(trending, 2, 0, 2, 2, "a slot leaves the hour");
+        check(trending, 1, 2, 2, 2, "newer slots stay in the hour");
+        trending.advance(now + HOUR_SLOTS);
+        check(trending, 1, 0, 2, 2, "the hour has moved past every event");
+        check(trending, 5, 0, 1, 1, "events counted as now leave with it");
+
+        long dayEnd = now - HOUR_SLOTS + DAY_SLOTS;
+        trending.advance(dayEnd - 1);
+        check(trending, 3, 0, 1, 1, "the last slot of the day");
+        trending.advance(dayEnd);
+        check(trending, 3, 0, 0, 1, "a slot leaves the day");
+        trending.advance(now - HOUR_SLOTS + WEEK_SLOTS);
+        check(trending, 3, 0, 0, 0, "a slot leaves the week");
+        check(trending, 1, 0, 0, 2, "newer slots stay in the week");
+
+        // the ring wrapped around; its reused slots start empty
+        long later = now + WEEK_SLOTS + 5;
+        add(trending, 6, 1, later, later);
+        check(trending, 6, 1, 1, 1, "counting in a reused slot");
+        check(trending, 1, 0, 0, 0, "the week has moved past every event");
+
+        trending.advance(later + WEEK_SLOTS + 1);
+        check(trending, 6, 0, 0, 0, "a week idle empties every window");
+        add(trending, 6, 1, later + WEEK_SLOTS + 1, later + WEEK_SLOTS + 1);
+        check(trending, 6, 1, 1, 1, "counting again after idling");
+    }
+
+    private static void topLists() {
+        Trending trending = new Trending(null, 2);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        for(int i = 0; i < 3; ++i) {
+            trending.record(ActivityFeed.WATCHED, 10, -1, now);
+        }
+        trending.record(ActivityFeed.LIKED, 13, -1, now);
+        trending.record(ActivityFeed.LIKED, 11, -1, now);
+        trending.record(ActivityFeed.RATED, 12, 5, now);
+        trending.record("shared", 14, -1, now);
+
+        trending.publish();
+        Check.equal(Arrays.asList("10:3.0", "11:2.0"),
+            entries(trending.top(Trending.HOUR, 0)),
+            "the best videos, ties towards lower ids, up to the size");
+        Check.equal(entries(trending.top(Trending.HOUR, 0)),
+            entries(trending.top(Trending.WEEK, 0)),
+            "recent events are in every window");
+        Check.that(trending.top(Trending.HOUR, 7).isEmpty(),
+            "a genre without videos");
+        Check.equal(1f, trending.total(Trending.HOUR, 12),
+            "a rating counts its share of the scale");
+        Check.equal(0f, trending.total(Trending.HOUR, 14),
+            "unknown kinds of events are ignored");
+        trending.close();
+    }
+
+    private static void add(Trending trending, int vidID, float weight,
+            long slot, long now) {
+        trending.add(vidID, weight, slot * Trending.SLOT_MILLIS, now);
+    }
+
+    private static void check(Trending trending, int vidID, float hour,
+            float day, float week, String what) {
+        Check.equal(Arrays.asList(hour, day, week), Arrays.asList(
+            trending.total(Trending.HOUR, vidID),
+            trending.total(Trending.DAY, vidID),
+            trending.total(Trending.WEEK, vidID)),
+            what + ", video " + vidID);
+    }
+
+    private static List<String> entries(List<Trending.Entry> top) {
+        List<String> out = new ArrayList<String>();
+        for(Trending.Entry entry : top) {
+            out.add(entry.videoId + ":" + entry.score);
+        }
+        return out;
+    }
+}